@@ -0,0 +1,81 @@
+package com.assortedsolutions.streaming.rtp;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test, which will execute on an Android device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RtpSocketTest
+{
+    private static final int PAYLOAD_LENGTH = 100;
+
+    @Test
+    public void retransmitsAfterTheSequenceNumberWrapped() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramSocket receiver = new DatagramSocket(0, loopback);
+        RtpSocket socket = new RtpSocket();
+        try
+        {
+            socket.setClockFrequency(90000);
+            socket.setRetransmissionHistory(128, 10000, 128 * 1024);
+            RtpDestination destination = socket.addDestination(loopback, receiver.getLocalPort(), receiver.getLocalPort() + 1, null);
+
+            // More packets than the 16 bits sequence number can count
+            int count = 70000;
+            for (int i = 1; i <= count; i++)
+            {
+                send(socket, i);
+            }
+
+            awaitEmptyQueue(socket);
+
+            // The receiver asks for the last packet with the sequence number it saw
+            destination.onNack(destination.getSequence(count & 0xFFFF));
+
+            // The sender thread handles the requests once it has sent a batch
+            send(socket, count + 1);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (socket.getRetransmittedPackets() == 0 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+
+            assertEquals(1, socket.getRetransmittedPackets());
+            assertEquals(0, socket.getMissedRetransmissions());
+        }
+        finally
+        {
+            socket.close();
+            receiver.close();
+        }
+    }
+
+    private static void send(RtpSocket socket, int frame) throws InterruptedException
+    {
+        socket.requestBuffer();
+        socket.updateTimestamp(frame * 1000000L);
+        socket.commitBuffer(RtpSocket.RTP_HEADER_LENGTH + PAYLOAD_LENGTH);
+    }
+
+    private static void awaitEmptyQueue(RtpSocket socket) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (socket.getQueueSize() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, socket.getQueueSize());
+    }
+}
+
@@ -2,8 +2,17 @@ package com.assortedsolutions.streaming;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
 import com.assortedsolutions.streaming.audio.AudioStream;
+import com.assortedsolutions.streaming.rtcp.ReceiverStatistics;
 import com.assortedsolutions.streaming.rtp.AbstractPacketizer;
+import com.assortedsolutions.streaming.rtp.AsyncEncoder;
+import com.assortedsolutions.streaming.rtp.InterleavedWriter;
+import com.assortedsolutions.streaming.rtp.MediaClock;
+import com.assortedsolutions.streaming.rtp.RtpDestination;
+import com.assortedsolutions.streaming.rtp.RtpSocket;
+import com.assortedsolutions.streaming.rtp.SrtpContext;
 import com.assortedsolutions.streaming.video.VideoStream;
 import android.media.MediaCodec;
 import android.util.Log;
@@ -30,8 +39,19 @@ public abstract class MediaStream implements Stream
 
     private int timeToLive = 64;
 
+    // The receivers of the multicast group share a single destination
+    private RtpDestination multicastDestination = null;
+    private int multicastReceivers = 0;
+
+    protected int egressMode = RtpSocket.EGRESS_SOCKET;
+
+    protected MediaClock mediaClock = null;
+
     protected MediaCodec mediaCodec;
 
+    /** Runs the callbacks of {@link #mediaCodec}. */
+    protected AsyncEncoder encoder;
+
     static
     {
         try
@@ -98,6 +118,117 @@ public abstract class MediaStream implements Stream
         timeToLive = ttl;
     }
 
+    /**
+     * Sets how the RTP packets are written to the network.
+     * Changes will be taken into account the next time you call {@link #configure()}.
+     * @param mode Either {@link RtpSocket#EGRESS_SOCKET} or {@link RtpSocket#EGRESS_CHANNEL}
+     */
+    public void setEgressMode(int mode)
+    {
+        egressMode = mode;
+    }
+
+    /**
+     * Adds a receiver to the stream, it will get the same packets as the other receivers.
+     * This method can only be called after {@link #configure()}.
+     * @param dest The destination address
+     * @param rtpPort Destination port that will be used for RTP
+     * @param rtcpPort Destination port that will be used for RTCP
+     * @param srtp Protects the packets sent to this destination, null to send them in the clear
+     * @return The destination, with the SSRC and the source ports the receiver will see
+     */
+    public synchronized RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort, SrtpContext srtp)
+    {
+        if (packetizer == null)
+        {
+            throw new IllegalStateException("addDestination() called before configure()");
+        }
+
+        return packetizer.getRtpSocket().addDestination(dest, rtpPort, rtcpPort, srtp);
+    }
+
+    /**
+     * Adds a receiver getting the packets interleaved in its RTSP connection.
+     * This method can only be called after {@link #configure()}.
+     * @param writer The writer of the RTSP connection
+     * @param rtpChannel Interleaved channel identifier that will be used for RTP
+     * @param rtcpChannel Interleaved channel identifier that will be used for RTCP
+     * @param srtp Protects the packets sent to this destination, null to send them in the clear
+     * @return The destination, with the SSRC the receiver will see
+     */
+    public synchronized RtpDestination addDestination(InterleavedWriter writer, int rtpChannel, int rtcpChannel, SrtpContext srtp)
+    {
+        if (packetizer == null)
+        {
+            throw new IllegalStateException("addDestination() called before configure()");
+        }
+
+        return packetizer.getRtpSocket().addDestination(writer, rtpChannel, rtcpChannel, srtp);
+    }
+
+    /**
+     * Sets the clock shared with the other streams of the session, so that the receivers can synchronize them.
+     * Changes will take effect next time you start the stream.
+     */
+    public void setMediaClock(MediaClock mediaClock)
+    {
+        this.mediaClock = mediaClock;
+    }
+
+    /**
+     * Adds a receiver of the multicast group of the stream. All of them share a single destination
+     * so each packet is sent once, however many receivers joined the group.
+     * This method can only be called after {@link #configure()}.
+     * @param group The multicast group, the packets are sent to the destination ports of the stream
+     * @param srtp Protects the packets sent to the group if it is the first receiver, null to send them in the clear
+     * @return The destination shared by the receivers of the group
+     */
+    public synchronized RtpDestination addMulticastDestination(InetAddress group, SrtpContext srtp)
+    {
+        if (packetizer == null)
+        {
+            throw new IllegalStateException("addMulticastDestination() called before configure()");
+        }
+
+        if (multicastDestination == null)
+        {
+            multicastDestination = packetizer.getRtpSocket().addDestination(group, rtpPort, rtcpPort, srtp);
+            multicastReceivers = 0;
+        }
+
+        multicastReceivers++;
+        return multicastDestination;
+    }
+
+    /**
+     * Stops sending packets to a receiver added with {@link #addDestination(InetAddress, int, int, SrtpContext)}.
+     * The multicast destination is only removed when its last receiver leaves.
+     * @param destination The destination to remove
+     */
+    public synchronized void removeDestination(RtpDestination destination)
+    {
+        if (destination != null && destination == multicastDestination)
+        {
+            if (--multicastReceivers > 0)
+            {
+                return;
+            }
+
+            multicastDestination = null;
+        }
+
+        if (packetizer != null)
+        {
+            packetizer.getRtpSocket().removeDestination(destination);
+        }
+    }
+
+    /** Returns the number of receivers of the stream. */
+    public int getDestinationCount()
+    {
+        return packetizer == null ? 0 : packetizer.getRtpSocket().getDestinationCount();
+    }
+
     /**
      * Returns a pair of destination ports, the first one is the
      * one used for RTP and the second one is used for RTCP.
@@ -133,6 +264,20 @@ public abstract class MediaStream implements Stream
         return !streaming ? 0 : packetizer.getRtpSocket().getBitrate();
     }
 
+    /**
+     * Returns what the receivers of the stream reported in their RTCP Receiver Reports.
+     * @return Snapshots of the statistics, one per receiver
+     */
+    public List<ReceiverStatistics> getReceiverStatistics()
+    {
+        if (packetizer == null)
+        {
+            return Collections.emptyList();
+        }
+
+        return packetizer.getRtpSocket().getReceiverStatistics();
+    }
+
     /**
      * Indicates if the {@link MediaStream} is streaming.
      * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -158,6 +303,7 @@ public abstract class MediaStream implements Stream
         if (packetizer != null)
         {
             packetizer.setDestination(destination, rtpPort, rtcpPort);
+            packetizer.getRtpSocket().setEgressMode(egressMode);
         }
 
         configured = true;
@@ -165,17 +311,25 @@ public abstract class MediaStream implements Stream
 
     public synchronized void start() throws IllegalStateException, IOException
     {
-        if (destination == null)
+        // Receivers added with addDestination() make the default destination optional
+        if (getDestinationCount() == 0)
         {
-            throw new IllegalStateException("No destination ip address set for the stream !");
-        }
+            if (destination == null)
+            {
+                throw new IllegalStateException("No destination ip address set for the stream !");
+            }
 
-        if (rtpPort <= 0 || rtcpPort <= 0)
-        {
-            throw new IllegalStateException("No destination ports set for the stream !");
+            if (rtpPort <= 0 || rtcpPort <= 0)
+            {
+                throw new IllegalStateException("No destination ports set for the stream !");
+            }
         }
 
         packetizer.setTimeToLive(timeToLive);
+        if (mediaClock != null)
+        {
+            packetizer.getRtpSocket().setMediaClock(mediaClock);
+        }
 
         encodeWithMediaCodec();
     }
@@ -193,6 +347,8 @@ public abstract class MediaStream implements Stream
             mediaCodec.stop();
             mediaCodec.release();
             mediaCodec = null;
+            encoder.quit();
+            encoder = null;
         }
         catch (Exception e)
         {
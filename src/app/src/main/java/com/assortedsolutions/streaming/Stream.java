@@ -2,6 +2,9 @@ package com.assortedsolutions.streaming;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import com.assortedsolutions.streaming.rtp.InterleavedWriter;
+import com.assortedsolutions.streaming.rtp.RtpDestination;
+import com.assortedsolutions.streaming.rtp.SrtpContext;
 
 /**
  * An interface that represents a Stream.
@@ -55,6 +58,49 @@ public interface Stream
      */
     void setDestinationPorts(int rtpPort, int rtcpPort);
 
+    /**
+     * Adds a receiver to the stream, it will get the same packets as the other receivers.
+     * This method can only be called after {@link Stream#configure()}.
+     * @param dest The destination address
+     * @param rtpPort Destination port that will be used for RTP
+     * @param rtcpPort Destination port that will be used for RTCP
+     * @param srtp Protects the packets sent to this destination, null to send them in the clear
+     * @return The destination, with the SSRC and the source ports the receiver will see
+     */
+    RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort, SrtpContext srtp);
+
+    /**
+     * Adds a receiver getting the packets interleaved in its RTSP connection.
+     * This method can only be called after {@link Stream#configure()}.
+     * @param writer The writer of the RTSP connection
+     * @param rtpChannel Interleaved channel identifier that will be used for RTP
+     * @param rtcpChannel Interleaved channel identifier that will be used for RTCP
+     * @param srtp Protects the packets sent to this destination, null to send them in the clear
+     * @return The destination, with the SSRC the receiver will see
+     */
+    RtpDestination addDestination(InterleavedWriter writer, int rtpChannel, int rtcpChannel, SrtpContext srtp);
+
+    /**
+     * Adds a receiver of the multicast group of the stream. All of them share a single destination
+     * so each packet is sent once, however many receivers joined the group.
+     * This method can only be called after {@link Stream#configure()}.
+     * @param group The multicast group, the packets are sent to the destination ports of the stream
+     * @param srtp Protects the packets sent to the group if it is the first receiver, null to send them in the clear
+     * @return The destination shared by the receivers of the group
+     */
+    RtpDestination addMulticastDestination(InetAddress group, SrtpContext srtp);
+
+    /**
+     * Stops sending packets to a receiver added with {@link #addDestination(InetAddress, int, int, SrtpContext)}.
+     * @param destination The destination to remove
+     */
+    void removeDestination(RtpDestination destination);
+
+    /**
+     * Returns the number of receivers of the stream.
+     */
+    int getDestinationCount();
+
     /**
      * Returns a pair of source ports, the first one is the
      * one used for RTP and the second one is used for RTCP.
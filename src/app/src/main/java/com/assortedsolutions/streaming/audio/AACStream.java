@@ -5,6 +5,7 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import com.assortedsolutions.streaming.session.SessionBuilder;
 import com.assortedsolutions.streaming.rtp.AACLATMPacketizer;
+import com.assortedsolutions.streaming.rtp.AsyncEncoder;
 import com.assortedsolutions.streaming.rtp.MediaCodecInputStream;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -55,6 +56,7 @@ public class AACStream extends AudioStream
     private int config;
     private AudioRecord audioRecord = null;
     private Thread thread = null;
+    private int maxAggregationLatency = 100;
 
     public AACStream()
     {
@@ -89,6 +91,15 @@ public class AACStream extends AudioStream
         }
     }
 
+    /**
+     * Sends several access units in each RTP packet, see {@link AACLATMPacketizer#setMaxAggregationLatency(int)}.
+     * 100 ms by default.
+     */
+    public void setMaxAggregationLatency(int maxLatency)
+    {
+        maxAggregationLatency = maxLatency;
+    }
+
     @Override
     public synchronized void start() throws IllegalStateException, IOException
     {
@@ -127,6 +138,7 @@ public class AACStream extends AudioStream
         {
             packetizer = new AACLATMPacketizer();
             packetizer.setDestination(destination, rtpPort, rtcpPort);
+            packetizer.getRtpSocket().setEgressMode(egressMode);
         }
 
         profile = 2; // AAC LC
@@ -152,9 +164,11 @@ public class AACStream extends AudioStream
         final int bufferSize = AudioRecord.getMinBufferSize(quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT) * 2;
 
         ((AACLATMPacketizer) packetizer).setSamplingRate(quality.samplingRate);
+        ((AACLATMPacketizer) packetizer).setMaxAggregationLatency(maxAggregationLatency);
 
         audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
         mediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
+        encoder = new AsyncEncoder(mediaCodec, "AudioEncoder");
         MediaFormat format = new MediaFormat();
         format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
         format.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitRate);
@@ -166,8 +180,7 @@ public class AACStream extends AudioStream
         audioRecord.startRecording();
         mediaCodec.start();
 
-        final MediaCodecInputStream inputStream = new MediaCodecInputStream(mediaCodec);
-        final ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();
+        final MediaCodecInputStream inputStream = new MediaCodecInputStream(encoder);
 
         thread = new Thread(new Runnable() {
             @Override
@@ -179,12 +192,14 @@ public class AACStream extends AudioStream
             {
                 while (!Thread.interrupted())
                 {
-                    bufferIndex = mediaCodec.dequeueInputBuffer(10000);
+                    // Parked until the encoder frees an input buffer
+                    bufferIndex = encoder.dequeueInputBuffer(500000);
 
                     if (bufferIndex >= 0)
                     {
-                        inputBuffers[bufferIndex].clear();
-                        len = audioRecord.read(inputBuffers[bufferIndex], bufferSize);
+                        ByteBuffer inputBuffer = mediaCodec.getInputBuffer(bufferIndex);
+                        inputBuffer.clear();
+                        len = audioRecord.read(inputBuffer, bufferSize);
 
                         if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE)
                         {
@@ -197,6 +212,10 @@ public class AACStream extends AudioStream
                     }
                 }
             }
+            catch (InterruptedException e)
+            {
+                Log.d(TAG, "Encoding interrupted");
+            }
             catch (RuntimeException e)
             {
                 Log.e(TAG, "Encoding threw", e);
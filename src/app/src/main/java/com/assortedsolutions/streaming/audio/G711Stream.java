@@ -0,0 +1,107 @@
+package com.assortedsolutions.streaming.audio;
+
+import java.io.IOException;
+import com.assortedsolutions.streaming.rtp.G711Packetizer;
+import com.assortedsolutions.streaming.session.SessionBuilder;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+/**
+ * A class for streaming G.711 (PCMU or PCMA) from the microphone of an android device using RTP.
+ * The samples are encoded by the packetizer itself, no MediaCodec nor feeder thread is needed,
+ * and about every receiver can decode it. It takes 64 kbit/s at 8 kHz whatever the quality requested.
+ * You should use a {@link com.assortedsolutions.streaming.session.Session} instantiated with {@link SessionBuilder}
+ * instead of using this class directly.
+ */
+public class G711Stream extends AudioStream
+{
+    public final static String TAG = "G711Stream";
+
+    private final int payloadType;
+    private String sessionDescription = null;
+    private AudioRecord audioRecord = null;
+
+    /**
+     * Constructs the G.711 stream.
+     * @param payloadType Either {@link G711Packetizer#PAYLOAD_TYPE_PCMU} or {@link G711Packetizer#PAYLOAD_TYPE_PCMA}
+     */
+    public G711Stream(int payloadType)
+    {
+        super();
+        this.payloadType = payloadType;
+        packetizer = new G711Packetizer();
+        ((G711Packetizer) packetizer).setPayloadType(payloadType);
+    }
+
+    @Override
+    public synchronized void start() throws IllegalStateException, IOException
+    {
+        if (streaming)
+        {
+            return;
+        }
+
+        configure();
+        super.start();
+    }
+
+    public synchronized void configure() throws IllegalStateException, IOException
+    {
+        super.configure();
+        quality = new AudioQuality(G711Packetizer.SAMPLING_RATE, 64000);
+
+        String encoding = payloadType == G711Packetizer.PAYLOAD_TYPE_PCMA ? "PCMA" : "PCMU";
+        sessionDescription = "m=audio " + getDestinationPorts()[0] + " RTP/AVP " + payloadType + "\r\n" +
+                "a=rtpmap:" + payloadType + " " + encoding + "/" + G711Packetizer.SAMPLING_RATE + "\r\n" +
+                "a=ptime:20\r\n";
+    }
+
+    /** Starts recording, the packetizer reads and encodes the samples itself. */
+    @Override
+    protected void encodeWithMediaCodec() throws IOException
+    {
+        int bufferSize = AudioRecord.getMinBufferSize(quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT) * 2;
+
+        audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, quality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+        audioRecord.startRecording();
+
+        ((G711Packetizer) packetizer).setAudioRecord(audioRecord);
+        packetizer.start();
+
+        streaming = true;
+    }
+
+    /** Stops the stream. */
+    public synchronized void stop()
+    {
+        if (!streaming)
+        {
+            return;
+        }
+
+        Log.d(TAG, "Stopping the recording...");
+
+        // The packetizer is waiting for samples until the recording stops
+        audioRecord.stop();
+        packetizer.stop();
+        audioRecord.release();
+        audioRecord = null;
+
+        streaming = false;
+    }
+
+    /**
+     * Returns a description of the stream using SDP. It can then be included in an SDP file.
+     */
+    public String getSessionDescription() throws IllegalStateException
+    {
+        if (sessionDescription == null)
+        {
+            throw new IllegalStateException("You need to call configure() first!");
+        }
+
+        return sessionDescription;
+    }
+}
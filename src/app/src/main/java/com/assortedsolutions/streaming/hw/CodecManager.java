@@ -1,7 +1,9 @@
 package com.assortedsolutions.streaming.hw;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
@@ -20,8 +22,9 @@ public class CodecManager
         MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar
     };
 
-    private static Codec[] sEncoders = null;
-    private static Codec[] sDecoders = null;
+    // The codecs found for each mime type
+    private static final Map<String, Codec[]> sEncoders = new HashMap<>();
+    private static final Map<String, Codec[]> sDecoders = new HashMap<>();
 
     static class Codec
     {
@@ -41,9 +44,9 @@ public class CodecManager
      */
     public synchronized static Codec[] findEncodersForMimeType(String mimeType)
     {
-        if (sEncoders != null)
+        if (sEncoders.containsKey(mimeType))
         {
-            return sEncoders;
+            return sEncoders.get(mimeType);
         }
 
         ArrayList<Codec> encoders = new ArrayList<>();
@@ -92,8 +95,23 @@ public class CodecManager
             }
         }
 
-        sEncoders = encoders.toArray(new Codec[encoders.size()]);
-        return sEncoders;
+        Codec[] codecs = encoders.toArray(new Codec[encoders.size()]);
+        sEncoders.put(mimeType, codecs);
+        return codecs;
+    }
+
+    /** Whether the phone has an encoder for the mime type that accepts a color format we know how to use. */
+    public static boolean hasEncoder(String mimeType)
+    {
+        for (Codec codec : findEncodersForMimeType(mimeType))
+        {
+            if (codec.formats.length > 0)
+            {
+                return true;
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -102,9 +120,9 @@ public class CodecManager
      */
     public synchronized static Codec[] findDecodersForMimeType(String mimeType)
     {
-        if (sDecoders != null)
+        if (sDecoders.containsKey(mimeType))
         {
-            return sDecoders;
+            return sDecoders.get(mimeType);
         }
 
         ArrayList<Codec> decoders = new ArrayList<>();
@@ -153,19 +171,20 @@ public class CodecManager
             }
         }
 
-        sDecoders = decoders.toArray(new Codec[decoders.size()]);
+        Codec[] codecs = decoders.toArray(new Codec[decoders.size()]);
 
         // We will use the decoder from google first, it seems to work properly on many phones
-        for (int i = 0; i < sDecoders.length; i++)
+        for (int i = 0; i < codecs.length; i++)
         {
-            if (sDecoders[i].name.equalsIgnoreCase("omx.google.h264.decoder"))
+            if (codecs[i].name.equalsIgnoreCase("omx.google.h264.decoder") || codecs[i].name.equalsIgnoreCase("omx.google.hevc.decoder"))
             {
-                Codec codec = sDecoders[0];
-                sDecoders[0] = sDecoders[i];
-                sDecoders[i] = codec;
+                Codec codec = codecs[0];
+                codecs[0] = codecs[i];
+                codecs[i] = codec;
             }
         }
 
-        return sDecoders;
+        sDecoders.put(mimeType, codecs);
+        return codecs;
     }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import com.assortedsolutions.streaming.hw.CodecManager.Codec;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -46,7 +47,7 @@ public class EncoderDebugger
     private static final boolean VERBOSE = false;
 
     /** Will be incremented every time this test is modified. */
-    private static final int VERSION = 3;
+    private static final int VERSION = 4;
 
     /** Bit rate that will be used with the encoder. */
     private final static int BITRATE = 1000000;
@@ -54,11 +55,14 @@ public class EncoderDebugger
     /** Frame rate that will be used to test the encoder. */
     private final static int FRAMERATE = 20;
 
-    private final static String MIME_TYPE = "video/avc";
+    /** Mime types of the encoders that can be tested. */
+    public final static String MIME_AVC = "video/avc";
+    public final static String MIME_HEVC = "video/hevc";
 
     private final static int NB_DECODED = 34;
     private final static int NB_ENCODED = 50;
 
+    private final String mimeType;
     private int decoderColorFormat;
     private int encoderColorFormat;
     private String decoderName;
@@ -69,6 +73,7 @@ public class EncoderDebugger
     private int width;
     private int height;
     private int size;
+    private byte[] VPS;
     private byte[] SPS;
     private byte[] PPS;
     private byte[] data;
@@ -80,6 +85,7 @@ public class EncoderDebugger
     private byte[][] decodedVideo;
     private String base64PPS;
     private String base64SPS;
+    private String base64VPS;
 
     public synchronized static void asyncDebug(final Context context, final int width, final int height)
     {
@@ -107,7 +113,16 @@ public class EncoderDebugger
 
     public synchronized static EncoderDebugger debug(SharedPreferences prefs, int width, int height)
     {
-        EncoderDebugger debugger = new EncoderDebugger(prefs, width, height);
+        return debug(prefs, MIME_AVC, width, height);
+    }
+
+    /**
+     * Finds an encoder of the given type usable at the given resolution, the result is saved for each type.
+     * @param mimeType Either {@link #MIME_AVC} or {@link #MIME_HEVC}
+     */
+    public synchronized static EncoderDebugger debug(SharedPreferences prefs, String mimeType, int width, int height)
+    {
+        EncoderDebugger debugger = new EncoderDebugger(prefs, mimeType, width, height);
         debugger.debug();
         return debugger;
     }
@@ -122,6 +137,12 @@ public class EncoderDebugger
         return base64SPS;
     }
 
+    /** Returns the VPS of an H.265 encoder, empty for H.264. */
+    public String getBase64VPS()
+    {
+        return base64VPS;
+    }
+
     public String getEncoderName()
     {
         return encoderName;
@@ -144,9 +165,10 @@ public class EncoderDebugger
         return errorLog;
     }
 
-    private EncoderDebugger(SharedPreferences prefs, int width, int height)
+    private EncoderDebugger(SharedPreferences prefs, String mimeType, int width, int height)
     {
         preferences = prefs;
+        this.mimeType = mimeType;
         this.width = width;
         this.height = height;
         size = width*height;
@@ -161,6 +183,13 @@ public class EncoderDebugger
         errorLog = "";
         PPS = null;
         SPS = null;
+        VPS = null;
+    }
+
+    /** The results are saved for each resolution, and for each type of encoder other than H.264. */
+    private String getResolutionKey()
+    {
+        return (mimeType.equals(MIME_AVC) ? "" : mimeType.substring(mimeType.indexOf('/') + 1) + "-") + width + "x" + height + "-";
     }
 
     private void debug()
@@ -169,7 +198,7 @@ public class EncoderDebugger
         // we just restore the result from the shared preferences
         if (!checkTestNeeded())
         {
-            String resolution = width + "x" + height + "-";
+            String resolution = getResolutionKey();
 
             boolean success = preferences.getBoolean(PREF_PREFIX + resolution + "success",false);
             if (!success)
@@ -187,6 +216,7 @@ public class EncoderDebugger
             encoderColorFormat = preferences.getInt(PREF_PREFIX + resolution + "colorFormat", 0);
             base64PPS = preferences.getString(PREF_PREFIX + resolution + "pps", "");
             base64SPS = preferences.getString(PREF_PREFIX + resolution + "sps", "");
+            base64VPS = preferences.getString(PREF_PREFIX + resolution + "vps", "");
 
             return;
         }
@@ -195,8 +225,8 @@ public class EncoderDebugger
 
         // Builds a list of available encoders and decoders we may be able to use
         // because they support some nice color formats
-        Codec[] encoders = CodecManager.findEncodersForMimeType(MIME_TYPE);
-        Codec[] decoders = CodecManager.findDecodersForMimeType(MIME_TYPE);
+        Codec[] encoders = CodecManager.findEncodersForMimeType(mimeType);
+        Codec[] decoders = CodecManager.findDecodersForMimeType(mimeType);
 
         int count = 0;
         int n = 1;
@@ -224,14 +254,20 @@ public class EncoderDebugger
                 nv21Convertor.setYPadding(0);
                 nv21Convertor.setEncoderColorFormat(encoderColorFormat);
 
-                // /!\ NV21Convertor can directly modify the input
+                // The converted image lives in a buffer of the NV21Convertor, valid until the next conversion
                 createTestImage();
                 data = nv21Convertor.convert(initialImage);
 
                 try
                 {
-                    // Starts the encoder
+                    // Starts the encoder, it may tell the layout it expects
                     configureEncoder();
+                    if (applyInputLayout())
+                    {
+                        createTestImage();
+                        data = nv21Convertor.convert(initialImage);
+                    }
+
                     searchSPSandPPS();
 
                     Log.v(TAG, "SPS and PPS in b64: SPS=" + base64SPS + ", PPS=" + base64PPS);
@@ -282,10 +318,8 @@ public class EncoderDebugger
                     }
 
                     // Compares the image before and after
-                    if (!compareLumaPanes())
+                    if (!compareLumaPanes() && !searchStride())
                     {
-                        // TODO: try again with a different stride
-                        // TODO: try again with the "stride" param
                         throw new RuntimeException("It is likely that stride != width");
                     }
 
@@ -301,10 +335,8 @@ public class EncoderDebugger
                             data = nv21Convertor.convert(initialImage);
                             encodeDecode();
                         }
-                        else
+                        else if (!searchSliceHeight())
                         {
-                            // TODO: try again with a different sliceHeight
-                            // TODO: try again with the "slice-height" param
                             throw new RuntimeException("It is likely that sliceHeight != height");
                         }
                     }
@@ -351,7 +383,7 @@ public class EncoderDebugger
 
     private boolean checkTestNeeded()
     {
-        String resolution = width + "x" + height + "-";
+        String resolution = getResolutionKey();
 
         // Forces the test
         if (DEBUG || preferences ==null)
@@ -381,7 +413,7 @@ public class EncoderDebugger
      */
     private void saveTestResult(boolean success)
     {
-        String resolution = width + "x" + height + "-";
+        String resolution = getResolutionKey();
         Editor editor = preferences.edit();
 
         editor.putBoolean(PREF_PREFIX + resolution + "success", success);
@@ -400,6 +432,7 @@ public class EncoderDebugger
             editor.putString(PREF_PREFIX + resolution + "encoderName", encoderName);
             editor.putString(PREF_PREFIX + resolution + "pps", base64PPS);
             editor.putString(PREF_PREFIX + resolution + "sps", base64SPS);
+            editor.putString(PREF_PREFIX + resolution + "vps", base64VPS);
         }
 
         editor.apply();
@@ -588,44 +621,161 @@ public class EncoderDebugger
                 break;
         }
 
-        for (int i = 0; i < size; i++)
+        // Row by row, the decoder may pad them
+        byte[] decoded = decodedVideo[k];
+        int chroma = stride * sliceHeight;
+        for (int row = 0; row < height && (row + 1) * stride <= decoded.length; row++)
+        {
+            System.arraycopy(decoded, row * stride, buffer, row * width, width);
+        }
+
+        for (int row = 0; row < height / 2; row++)
         {
-            if (i % width == 0)
+            for (int i = 0; i < width / 2; i++)
             {
-                i += stride - width;
+                int u = !planar ? chroma + row * stride + 2 * i : chroma + row * (stride / 2) + i;
+                int v = !planar ? u + 1 : u + (stride / 2) * (sliceHeight / 2);
+                if (v >= decoded.length)
+                {
+                    break;
+                }
+
+                buffer[size + row * width + 2 * i + 1] = decoded[u];
+                buffer[size + row * width + 2 * i] = decoded[v];
             }
+        }
 
-            buffer[i] = decodedVideo[k][i];
+        decodedVideo[k] = buffer;
+    }
+
+    /**
+     * Sets the stride and the slice height of the convertor to the ones of the input format of the encoder, if it tells them.
+     * @return Whether the layout changed
+     */
+    private boolean applyInputLayout()
+    {
+        MediaFormat format;
+        try
+        {
+            format = encoder.getInputFormat();
+        }
+        catch (RuntimeException e)
+        {
+            Log.e(TAG, "Getting the input format threw", e);
+            return false;
         }
 
-        if (!planar)
+        if (format == null)
+        {
+            return false;
+        }
+
+        int stride = format.containsKey("stride") ? format.getInteger("stride") : 0;
+        int sliceHeight = format.containsKey("slice-height") ? format.getInteger("slice-height") : 0;
+        boolean changed = false;
+
+        if (stride > width && stride != nv21Convertor.getStride())
         {
-            for (int i = 0, j = 0; j < size / 4; i += 1, j += 1)
+            nv21Convertor.setStride(stride);
+            changed = true;
+        }
+
+        if (sliceHeight > height && sliceHeight != nv21Convertor.getSliceHeigth())
+        {
+            nv21Convertor.setSliceHeigth(sliceHeight);
+            changed = true;
+        }
+
+        if (changed)
+        {
+            Log.d(TAG, "The encoder expects a stride of " + nv21Convertor.getStride() + " and a slice height of " + nv21Convertor.getSliceHeigth());
+        }
+
+        return changed;
+    }
+
+    /**
+     * Tries the strides encoders commonly expect, the width aligned on 16 to 256 bytes.
+     * @return Whether the luma pane came back right with one of them, the convertor then keeps it
+     */
+    private boolean searchStride() throws IOException
+    {
+        int initial = nv21Convertor.getStride();
+        for (int alignment = 16; alignment <= 256; alignment *= 2)
+        {
+            int stride = align(width, alignment);
+            if (stride == initial || stride == align(width, alignment / 2) && alignment > 16)
             {
-                if (i % width / 2 == 0)
-                {
-                    i += (stride - width) / 2;
-                }
+                continue;
+            }
 
-                buffer[size + 2 * j + 1] = decodedVideo[k][stride * sliceHeight + 2 * i];
-                buffer[size + 2 * j] = decodedVideo[k][stride * sliceHeight + 2 * i + 1];
+            nv21Convertor.setStride(stride);
+            if (!fitsInputBuffer())
+            {
+                Log.d(TAG, "A stride of " + stride + " does not fit in the input buffers");
+                continue;
+            }
+
+            Log.d(TAG, "Trying a stride of " + stride);
+            createTestImage();
+            data = nv21Convertor.convert(initialImage);
+            encodeDecode();
+            if (compareLumaPanes())
+            {
+                return true;
             }
         }
-        else
+
+        nv21Convertor.setStride(initial);
+        return false;
+    }
+
+    /**
+     * Tries the slice heights encoders commonly expect, the height aligned on 16 to 64 rows.
+     * @return Whether the chroma came back where it belongs with one of them, the convertor then keeps it
+     */
+    private boolean searchSliceHeight() throws IOException
+    {
+        int initial = nv21Convertor.getSliceHeigth();
+        nv21Convertor.setYPadding(0);
+        for (int alignment = 16; alignment <= 64; alignment *= 2)
         {
-            for (int i = 0, j = 0; j < size / 4; i += 1, j += 1)
+            int sliceHeight = align(height, alignment);
+            if (sliceHeight == initial || sliceHeight == align(height, alignment / 2) && alignment > 16)
             {
-                if (i % width / 2 == 0)
-                {
-                    i += (stride - width) / 2;
-                }
+                continue;
+            }
 
-                buffer[size + 2 * j + 1] = decodedVideo[k][stride * sliceHeight + i];
-                buffer[size + 2 * j] = decodedVideo[k][stride * sliceHeight * 5 / 4 + i];
+            nv21Convertor.setSliceHeigth(sliceHeight);
+            if (!fitsInputBuffer())
+            {
+                Log.d(TAG, "A slice height of " + sliceHeight + " does not fit in the input buffers");
+                continue;
+            }
+
+            Log.d(TAG, "Trying a slice height of " + sliceHeight);
+            createTestImage();
+            data = nv21Convertor.convert(initialImage);
+            encodeDecode();
+            if (checkPaddingNeeded() == 0)
+            {
+                return true;
             }
         }
 
-        decodedVideo[k] = buffer;
+        nv21Convertor.setSliceHeigth(initial);
+        return false;
+    }
+
+    /** Whether a frame laid out as the convertor is set fits in the input buffers of the encoder, encode() fails otherwise. */
+    private boolean fitsInputBuffer()
+    {
+        return nv21Convertor.getEncoderBufferSize() <= encoder.getInputBuffers()[0].capacity();
+    }
+
+    private static int align(int value, int alignment)
+    {
+        return (value + alignment - 1) / alignment * alignment;
     }
 
     /**
@@ -635,7 +785,7 @@ public class EncoderDebugger
     private void configureEncoder() throws IOException
     {
         encoder = MediaCodec.createByCodecName(encoderName);
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType, width, height);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, BITRATE);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAMERATE);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, encoderColorFormat);
@@ -678,14 +828,24 @@ public class EncoderDebugger
     {
         byte[] prefix = new byte[] { 0x00, 0x00, 0x00, 0x01 };
 
-        ByteBuffer csd0 = ByteBuffer.allocate(4 + SPS.length + 4 + PPS.length);
-        csd0.put(new byte[] { 0x00, 0x00, 0x00, 0x01 });
-        csd0.put(SPS);
-        csd0.put(new byte[] { 0x00, 0x00, 0x00, 0x01 });
-        csd0.put(PPS);
+        // The VPS only exists with H.265, it comes first
+        byte[][] parameterSets = VPS == null ? new byte[][] { SPS, PPS } : new byte[][] { VPS, SPS, PPS };
+
+        int length = 0;
+        for (byte[] parameterSet : parameterSets)
+        {
+            length += 4 + parameterSet.length;
+        }
+
+        ByteBuffer csd0 = ByteBuffer.allocate(length);
+        for (byte[] parameterSet : parameterSets)
+        {
+            csd0.put(prefix);
+            csd0.put(parameterSet);
+        }
 
         decoder = MediaCodec.createByCodecName(decoderName);
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType, width, height);
         mediaFormat.setByteBuffer("csd-0", csd0);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, decoderColorFormat);
         decoder.configure(mediaFormat, null, null, 0);
@@ -693,30 +853,20 @@ public class EncoderDebugger
 
         ByteBuffer[] decInputBuffers = decoder.getInputBuffers();
 
-        int decInputIndex = decoder.dequeueInputBuffer(1000000 / FRAMERATE);
-        if (decInputIndex >= 0)
+        for (byte[] parameterSet : parameterSets)
         {
-            decInputBuffers[decInputIndex].clear();
-            decInputBuffers[decInputIndex].put(prefix);
-            decInputBuffers[decInputIndex].put(SPS);
-            decoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
-        }
-        else
-        {
-            Log.e(TAG,"No buffer available!");
-        }
-
-        decInputIndex = decoder.dequeueInputBuffer(1000000 / FRAMERATE);
-        if (decInputIndex >= 0)
-        {
-            decInputBuffers[decInputIndex].clear();
-            decInputBuffers[decInputIndex].put(prefix);
-            decInputBuffers[decInputIndex].put(PPS);
-            decoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
-        }
-        else
-        {
-            Log.e(TAG,"No buffer available!");
+            int decInputIndex = decoder.dequeueInputBuffer(1000000 / FRAMERATE);
+            if (decInputIndex >= 0)
+            {
+                decInputBuffers[decInputIndex].clear();
+                decInputBuffers[decInputIndex].put(prefix);
+                decInputBuffers[decInputIndex].put(parameterSet);
+                decoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
+            }
+            else
+            {
+                Log.e(TAG,"No buffer available!");
+            }
         }
     }
 
@@ -747,21 +897,19 @@ public class EncoderDebugger
     }
 
     /**
-     * Tries to obtain the SPS and the PPS for the encoder.
+     * Tries to obtain the SPS and the PPS for the encoder, and the VPS for an H.265 encoder.
      */
     private long searchSPSandPPS()
     {
         ByteBuffer[] inputBuffers = encoder.getInputBuffers();
         ByteBuffer[] outputBuffers = encoder.getOutputBuffers();
         BufferInfo info = new BufferInfo();
-        byte[] csd = new byte[128];
+        byte[] csd = new byte[256];
         int len = 0;
-        int p = 4;
-        int q = 4;
         long elapsed = 0;
         long now = timestamp();
 
-        while (elapsed < 3000000 && (SPS == null || PPS == null))
+        while (elapsed < 3000000 && !hasParameterSets())
         {
             // Some encoders won't give us the SPS and PPS unless they receive something to encode first...
             int bufferIndex = encoder.dequeueInputBuffer(1000000 / FRAMERATE);
@@ -785,16 +933,21 @@ public class EncoderDebugger
 
             if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
             {
-                // The PPS and PPS should be there
+                // The parameter sets should be there: the SPS in csd-0 and the PPS in csd-1 for H.264,
+                // all of them in csd-0 for H.265
                 MediaFormat format = encoder.getOutputFormat();
-                ByteBuffer spsb = format.getByteBuffer("csd-0");
-                ByteBuffer ppsb = format.getByteBuffer("csd-1");
-                SPS = new byte[spsb.capacity() - 4];
-                spsb.position(4);
-                spsb.get(SPS,0, SPS.length);
-                PPS = new byte[ppsb.capacity() - 4];
-                ppsb.position(4);
-                ppsb.get(PPS,0, PPS.length);
+                for (String key : new String[] { "csd-0", "csd-1" })
+                {
+                    ByteBuffer buffer = format.getByteBuffer(key);
+                    if (buffer != null)
+                    {
+                        byte[] parameterSets = new byte[buffer.capacity()];
+                        buffer.position(0);
+                        buffer.get(parameterSets, 0, parameterSets.length);
+                        parseParameterSets(parameterSets, parameterSets.length);
+                    }
+                }
+
                 break;
             }
             else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED)
@@ -804,40 +957,11 @@ public class EncoderDebugger
             else if (index >= 0)
             {
                 len = info.size;
-                if (len < 128)
+                if (len < csd.length)
                 {
+                    // They could be in different packets and in a different order depending on the phone
                     outputBuffers[index].get(csd,0,len);
-                    if (len > 0 && csd[0] == 0 && csd[1] == 0 && csd[2] == 0 && csd[3] == 1)
-                    {
-                        // Parses the SPS and PPS, they could be in two different packets and in a different order
-                        //depending on the phone so we don't make any assumption about that
-                        while (p < len)
-                        {
-                            while (!(csd[p + 0] == 0 && csd[p + 1] == 0 && csd[p + 2] == 0 && csd[p + 3] == 1) && p + 3 < len)
-                            {
-                                p++;
-                            }
-
-                            if (p + 3 >= len)
-                            {
-                                p=len;
-                            }
-
-                            if ((csd[q] & 0x1F) == 7)
-                            {
-                                SPS = new byte[p - q];
-                                System.arraycopy(csd, q, SPS, 0, p - q);
-                            }
-                            else
-                            {
-                                PPS = new byte[p - q];
-                                System.arraycopy(csd, q, PPS, 0, p - q);
-                            }
-
-                            p += 4;
-                            q = p;
-                        }
-                    }
+                    parseParameterSets(csd, len);
                 }
 
                 encoder.releaseOutputBuffer(index, false);
@@ -846,13 +970,68 @@ public class EncoderDebugger
             elapsed = timestamp() - now;
         }
 
-        check(PPS != null && SPS != null, "Could not determine the SPS & PPS.");
+        check(hasParameterSets(), "Could not determine the parameter sets.");
         base64PPS = Base64.encodeToString(PPS, 0, PPS.length, Base64.NO_WRAP);
         base64SPS = Base64.encodeToString(SPS, 0, SPS.length, Base64.NO_WRAP);
+        base64VPS = VPS == null ? "" : Base64.encodeToString(VPS, 0, VPS.length, Base64.NO_WRAP);
 
         return elapsed;
     }
 
+    private boolean hasParameterSets()
+    {
+        return SPS != null && PPS != null && (VPS != null || mimeType.equals(MIME_AVC));
+    }
+
+    /** Keeps the parameter sets found in NAL units preceded by 0x000001, the other NAL units are ignored. */
+    private void parseParameterSets(byte[] data, int length)
+    {
+        int start = -1;
+        int i = 0;
+        while (i <= length)
+        {
+            if (i == length || (i + 2 < length && data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1))
+            {
+                // The NAL unit ends with the next start code, the zeros preceding it are not part of it
+                int end = i;
+                while (start >= 0 && end > start && data[end - 1] == 0)
+                {
+                    end--;
+                }
+
+                if (start >= 0 && end > start)
+                {
+                    setParameterSet(Arrays.copyOfRange(data, start, end));
+                }
+
+                i += 3;
+                start = i;
+            }
+            else
+            {
+                i++;
+            }
+        }
+    }
+
+    private void setParameterSet(byte[] nal)
+    {
+        boolean avc = mimeType.equals(MIME_AVC);
+        int type = avc ? nal[0] & 0x1F : (nal[0] >> 1) & 0x3F;
+        if (type == (avc ? 7 : 33))
+        {
+            SPS = nal;
+        }
+        else if (type == (avc ? 8 : 34))
+        {
+            PPS = nal;
+        }
+        else if (!avc && type == 32)
+        {
+            VPS = nal;
+        }
+    }
+
     private long encode()
     {
         int n = 0;
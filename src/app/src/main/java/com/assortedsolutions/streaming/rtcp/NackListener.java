@@ -0,0 +1,14 @@
+package com.assortedsolutions.streaming.rtcp;
+
+/**
+ * Receives the sequence numbers a receiver asks to be sent again with a Generic NACK (RFC 4585 section 6.2.1).
+ * See {@link SenderReport#setNackListener(NackListener)}.
+ */
+public interface NackListener
+{
+    /**
+     * Called by the thread reading the RTCP packets of the receiver.
+     * @param sequence The sequence number of the lost packet, as seen by the receiver
+     */
+    void onNack(int sequence);
+}
@@ -0,0 +1,125 @@
+package com.assortedsolutions.streaming.rtcp;
+
+/**
+ * How a receiver perceives the stream, as told by its RTCP Receiver Reports (RFC 3550 section 6.4).
+ * Instances returned by {@link SenderReport#getReceiverStatistics()} are snapshots, they are not updated afterwards.
+ */
+public class ReceiverStatistics
+{
+    public final static String TAG = "ReceiverStatistics";
+
+    int ssrc;
+    String cname = null;
+    float fractionLost = 0;
+    int cumulativeLost = 0;
+    long highestSequence = 0;
+    long jitter = 0;
+    long clock = 0;
+    long roundTripTime = -1;
+    long lastReport = 0;
+    int reportCount = 0;
+    int nackCount = 0;
+    boolean left = false;
+
+    ReceiverStatistics(int ssrc)
+    {
+        this.ssrc = ssrc;
+    }
+
+    ReceiverStatistics(ReceiverStatistics other)
+    {
+        ssrc = other.ssrc;
+        cname = other.cname;
+        fractionLost = other.fractionLost;
+        cumulativeLost = other.cumulativeLost;
+        highestSequence = other.highestSequence;
+        jitter = other.jitter;
+        clock = other.clock;
+        roundTripTime = other.roundTripTime;
+        lastReport = other.lastReport;
+        reportCount = other.reportCount;
+        nackCount = other.nackCount;
+        left = other.left;
+    }
+
+    /** Returns the SSRC of the receiver. */
+    public int getSSRC()
+    {
+        return ssrc;
+    }
+
+    /** Returns the canonical name the receiver sent in a SDES packet, or null. */
+    public String getCName()
+    {
+        return cname;
+    }
+
+    /** Returns the fraction of the packets lost since the previous report, between 0 and 1. */
+    public float getFractionLost()
+    {
+        return fractionLost;
+    }
+
+    /** Returns the number of packets lost since the beginning of the stream. */
+    public int getCumulativeLost()
+    {
+        return cumulativeLost;
+    }
+
+    /** Returns the highest sequence number received, extended with the number of cycles. */
+    public long getHighestSequence()
+    {
+        return highestSequence;
+    }
+
+    /** Returns the interarrival jitter in timestamp units. */
+    public long getJitter()
+    {
+        return jitter;
+    }
+
+    /** Returns the interarrival jitter in milliseconds, or -1 if the clock rate of the stream is unknown. */
+    public float getJitterMillis()
+    {
+        return clock == 0 ? -1 : jitter * 1000f / clock;
+    }
+
+    /** Returns the round trip time in milliseconds, or -1 if the receiver has not received a Sender Report yet. */
+    public long getRoundTripTime()
+    {
+        return roundTripTime;
+    }
+
+    /** Returns the time of the last report, in the time base of {@link android.os.SystemClock#elapsedRealtime()}. */
+    public long getLastReport()
+    {
+        return lastReport;
+    }
+
+    /** Returns the number of reports received. */
+    public int getReportCount()
+    {
+        return reportCount;
+    }
+
+    /** Returns the number of packets the receiver asked to be sent again. */
+    public int getNackCount()
+    {
+        return nackCount;
+    }
+
+    /** Returns true if the receiver sent a BYE packet. */
+    public boolean hasLeft()
+    {
+        return left;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SSRC: " + Integer.toHexString(ssrc) +
+            " Lost: " + (int) (fractionLost * 100) + "% (" + cumulativeLost + ")" +
+            " Jitter: " + jitter +
+            " RTT: " + roundTripTime + " ms";
+    }
+}
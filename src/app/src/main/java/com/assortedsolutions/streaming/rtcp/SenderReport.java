@@ -4,20 +4,41 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import com.assortedsolutions.streaming.rtp.InterleavedWriter;
+import com.assortedsolutions.streaming.rtp.MediaClock;
+import com.assortedsolutions.streaming.rtp.SrtpContext;
 import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * The reports the receivers send back to the socket (RR, SDES and BYE) are read by a thread of their own,
+ * see {@link #getReceiverStatistics()}.
  */
-public class SenderReport
+public class SenderReport implements Runnable
 {
     private final static String TAG = "SenderReport";
 
+    private static final int PT_SR = 200;
+    private static final int PT_RR = 201;
+    private static final int PT_SDES = 202;
+    private static final int PT_BYE = 203;
+    private static final int PT_RTPFB = 205;
+    private static final int FMT_NACK = 1;
+
     private static final int MTU = 1500;
     private static final int PACKET_LENGTH = 28;
 
     private MulticastSocket multicastSocket;
     private DatagramPacket datagramPacket;
+    private InterleavedWriter writer = null;
+    private int channelIdentifier;
+    private SrtpContext srtp = null;
+    private byte[] protectedBuffer = null;
 
     private byte[] buffer = new byte[MTU];
     private int SSRC;
@@ -28,6 +49,13 @@ public class SenderReport
     private long delta;
     private long now;
     private long oldNow;
+    private long clock = 0;
+    private MediaClock mediaClock = new MediaClock();
+    private long timestampOffset = 0;
+
+    private Thread receiver = null;
+    private NackListener nackListener = null;
+    private final HashMap<Integer, ReceiverStatistics> receivers = new HashMap<>();
 
     public SenderReport()
     {
@@ -73,6 +101,23 @@ public class SenderReport
         multicastSocket.close();
     }
 
+    /** Sets the clock rate of the stream, used to convert the jitter reported by the receivers. */
+    public void setClockFrequency(long clock)
+    {
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the clock the RTP timestamps of the stream come from, the reports map it to the wall clock.
+     * @param mediaClock The clock of the stream
+     * @param timestampOffset What is added to the timestamps of the clock in the packets of this destination
+     */
+    public void setMediaClock(MediaClock mediaClock, long timestampOffset)
+    {
+        this.mediaClock = mediaClock;
+        this.timestampOffset = timestampOffset;
+    }
+
     /**
      * Sets the temporal interval between two RTCP Sender Reports.
      * Default interval is set to 3 seconds.
@@ -86,11 +131,9 @@ public class SenderReport
     /**
      * Updates the number of packets sent, and the total amount of data sent.
      * @param length The length of the packet
-     * @param rtpts
-     *            The RTP timestamp.
      * @throws IOException
      **/
-    public void update(int length, long rtpts) throws IOException
+    public void update(int length) throws IOException
     {
         packetCount += 1;
         octetCount += length;
@@ -103,7 +146,7 @@ public class SenderReport
         if (interval > 0 && delta >= interval)
         {
             // We send a Sender Report
-            send(System.nanoTime(), rtpts);
+            send(System.nanoTime());
             delta = 0;
         }
     }
@@ -123,6 +166,308 @@ public class SenderReport
         port = dport;
         datagramPacket.setPort(dport);
         datagramPacket.setAddress(dest);
+
+        synchronized (receivers)
+        {
+            if (receiver == null)
+            {
+                receiver = new Thread(this, TAG);
+                receiver.setDaemon(true);
+                receiver.start();
+            }
+        }
+    }
+
+    /** Sets the listener called when a receiver asks for lost packets. */
+    public void setNackListener(NackListener listener)
+    {
+        nackListener = listener;
+    }
+
+    /**
+     * Returns what the receivers reported about the stream, one entry per receiver SSRC.
+     * @return Snapshots of the statistics, empty if no report was received yet
+     */
+    public List<ReceiverStatistics> getReceiverStatistics()
+    {
+        synchronized (receivers)
+        {
+            List<ReceiverStatistics> list = new ArrayList<>(receivers.size());
+            for (ReceiverStatistics statistics : receivers.values())
+            {
+                list.add(new ReceiverStatistics(statistics));
+            }
+
+            return list;
+        }
+    }
+
+    /** Reads the RTCP packets sent back by the receivers until the socket is closed. */
+    @Override
+    public void run()
+    {
+        byte[] packet = new byte[MTU];
+        DatagramPacket received = new DatagramPacket(packet, MTU);
+
+        while (!multicastSocket.isClosed())
+        {
+            try
+            {
+                received.setLength(MTU);
+                multicastSocket.receive(received);
+                int length = unprotect(packet, received.getLength());
+                if (length >= 0)
+                {
+                    parse(packet, length, System.nanoTime());
+                }
+            }
+            catch (SocketException e)
+            {
+                // The socket was closed
+                break;
+            }
+            catch (IOException e)
+            {
+                Log.e(TAG, "Receiving a RTCP packet threw", e);
+            }
+        }
+    }
+
+    /**
+     * Hands a RTCP packet received by other means than the socket of the report,
+     * for instance interleaved in the RTSP connection of the receiver.
+     */
+    public void receive(byte[] packet, int length)
+    {
+        length = unprotect(packet, length);
+        if (length >= 0)
+        {
+            parse(packet, length, System.nanoTime());
+        }
+    }
+
+    /** Returns the length of the packet once checked and decrypted, or -1 if it must be discarded. */
+    private int unprotect(byte[] packet, int length)
+    {
+        return srtp == null ? length : srtp.unprotectRtcp(packet, length);
+    }
+
+    /**
+     * Parses a compound RTCP packet.
+     * @param packet The packet
+     * @param length The length of the packet
+     * @param now The time the packet was received, in the time base of System.nanoTime()
+     */
+    void parse(byte[] packet, int length, long now)
+    {
+        int offset = 0;
+        while (offset + 4 <= length)
+        {
+            // Version must be 2
+            if ((packet[offset] & 0xC0) != 0x80)
+            {
+                return;
+            }
+
+            int count = packet[offset] & 0x1F;
+            int type = packet[offset + 1] & 0xFF;
+            int end = offset + 4 + 4 * (int) getLong(packet, offset + 2, offset + 4);
+            if (end > length)
+            {
+                return;
+            }
+
+            synchronized (receivers)
+            {
+                switch (type)
+                {
+                    case PT_SR:
+                        // Sender info (NTP timestamp, RTP timestamp, packet and octet counts) precedes the report blocks
+                        parseReportBlocks(packet, offset + 28, end, count, (int) getLong(packet, offset + 4, offset + 8), now);
+                        break;
+
+                    case PT_RR:
+                        parseReportBlocks(packet, offset + 8, end, count, (int) getLong(packet, offset + 4, offset + 8), now);
+                        break;
+
+                    case PT_SDES:
+                        parseSourceDescription(packet, offset + 4, end, count);
+                        break;
+
+                    case PT_RTPFB:
+                        if (count == FMT_NACK && offset + 12 <= end)
+                        {
+                            parseNack(packet, offset + 12, end, (int) getLong(packet, offset + 4, offset + 8), (int) getLong(packet, offset + 8, offset + 12));
+                        }
+                        break;
+
+                    case PT_BYE:
+                        for (int i = 0; i < count && offset + 8 + 4 * i <= end; i++)
+                        {
+                            int ssrc = (int) getLong(packet, offset + 4 + 4 * i, offset + 8 + 4 * i);
+                            getReceiver(ssrc).left = true;
+                        }
+                        break;
+                }
+            }
+
+            offset = end;
+        }
+    }
+
+    /**
+     * Each report block is 24 bytes long, only the blocks about our SSRC are taken into account.
+     * @param reporter The SSRC of the receiver that sent the report, it follows the header in both SRs and RRs
+     */
+    private void parseReportBlocks(byte[] packet, int offset, int end, int count, int reporter, long now)
+    {
+        for (int i = 0; i < count && offset + 24 <= end; i++, offset += 24)
+        {
+            if ((int) getLong(packet, offset, offset + 4) != SSRC)
+            {
+                continue;
+            }
+
+            ReceiverStatistics statistics = getReceiver(reporter);
+            statistics.fractionLost = (packet[offset + 4] & 0xFF) / 256f;
+
+            // The cumulative number of packets lost is a signed 24 bits integer
+            statistics.cumulativeLost = ((int) getLong(packet, offset + 5, offset + 8) << 8) >> 8;
+            statistics.highestSequence = getLong(packet, offset + 8, offset + 12);
+            statistics.jitter = getLong(packet, offset + 12, offset + 16);
+            statistics.clock = clock;
+            statistics.lastReport = SystemClock.elapsedRealtime();
+            statistics.reportCount++;
+
+            // Middle 32 bits of the NTP timestamps, in 1/65536 seconds
+            long lsr = getLong(packet, offset + 16, offset + 20);
+            long dlsr = getLong(packet, offset + 20, offset + 24);
+            if (lsr != 0)
+            {
+                long rtt = (toCompactNtp(mediaClock.getNtpTimestamp(now)) - lsr - dlsr) & 0xFFFFFFFFL;
+
+                // A round trip time of more than a minute means the report is bogus
+                if (rtt < 60 * 65536)
+                {
+                    statistics.roundTripTime = rtt * 1000 / 65536;
+                }
+            }
+        }
+    }
+
+    /**
+     * Each entry of a Generic NACK is a lost sequence number and a bitmask of the 16 following ones that were lost too.
+     */
+    private void parseNack(byte[] packet, int offset, int end, int reporter, int mediaSsrc)
+    {
+        if (mediaSsrc != SSRC)
+        {
+            return;
+        }
+
+        ReceiverStatistics statistics = getReceiver(reporter);
+        NackListener listener = nackListener;
+        for (; offset + 4 <= end; offset += 4)
+        {
+            int pid = (int) getLong(packet, offset, offset + 2);
+            int blp = (int) getLong(packet, offset + 2, offset + 4);
+            for (int i = -1; i < 16; i++)
+            {
+                if (i == -1 || (blp & (1 << i)) != 0)
+                {
+                    statistics.nackCount++;
+                    if (listener != null)
+                    {
+                        listener.onNack((pid + i + 1) & 0xFFFF);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Only the CNAME items are kept. */
+    private void parseSourceDescription(byte[] packet, int offset, int end, int count)
+    {
+        for (int i = 0; i < count && offset + 4 <= end; i++)
+        {
+            int ssrc = (int) getLong(packet, offset, offset + 4);
+            offset += 4;
+
+            // The list of items ends with a null octet and is padded to a 32 bits boundary
+            while (offset < end && packet[offset] != 0)
+            {
+                int item = packet[offset];
+                int itemLength = offset + 1 < end ? packet[offset + 1] & 0xFF : 0;
+                if (offset + 2 + itemLength > end)
+                {
+                    return;
+                }
+
+                if (item == 1)
+                {
+                    getReceiver(ssrc).cname = new String(packet, offset + 2, itemLength);
+                }
+
+                offset += 2 + itemLength;
+            }
+
+            offset = (offset + 4) & ~3;
+        }
+    }
+
+    private ReceiverStatistics getReceiver(int ssrc)
+    {
+        ReceiverStatistics statistics = receivers.get(ssrc);
+        if (statistics == null)
+        {
+            statistics = new ReceiverStatistics(ssrc);
+            receivers.put(ssrc, statistics);
+        }
+
+        return statistics;
+    }
+
+    /** Converts a NTP timestamp to its middle 32 bits, the format of LSR. */
+    private static long toCompactNtp(long ntpTimestamp)
+    {
+        return (ntpTimestamp >>> 16) & 0xFFFFFFFFL;
+    }
+
+    private static long getLong(byte[] buffer, int begin, int end)
+    {
+        long n = 0;
+        for (; begin < end; begin++)
+        {
+            n = (n << 8) | (buffer[begin] & 0xFF);
+        }
+
+        return n;
+    }
+
+    /**
+     * Sends the reports interleaved in an RTSP connection instead of over UDP.
+     * @param writer The writer of the RTSP connection
+     * @param channelIdentifier The interleaved channel negotiated for RTCP
+     */
+    public void setInterleavedWriter(InterleavedWriter writer, int channelIdentifier)
+    {
+        this.writer = writer;
+        this.channelIdentifier = channelIdentifier;
+    }
+
+    /**
+     * Protects the reports with SRTCP, the reports of the receiver must then be protected with the same master key.
+     * @param srtp The context of the destination, null to send the reports in the clear
+     */
+    public void setSrtpContext(SrtpContext srtp)
+    {
+        this.srtp = srtp;
+        if (srtp != null && protectedBuffer == null)
+        {
+            // The report itself keeps the counters, it is encrypted in a copy
+            protectedBuffer = new byte[PACKET_LENGTH + SrtpContext.SRTCP_TRAILER_LENGTH];
+            datagramPacket.setData(protectedBuffer);
+        }
     }
 
     public int getPort() {
@@ -147,6 +492,11 @@ public class SenderReport
         setLong(packetCount, 20, 24);
         setLong(octetCount, 24, 28);
         delta = now = oldNow = 0;
+
+        synchronized (receivers)
+        {
+            receivers.clear();
+        }
     }
 
     private void setLong(long n, int begin, int end)
@@ -160,20 +510,34 @@ public class SenderReport
 
     /**
      * Sends the RTCP packet over the network.
+     * Both timestamps describe the same instant: the wall clock, and the RTP timestamp a packet captured then would have.
      *
-     * @param ntpTimestamp the NTP timestamp.
-     * @param rtpTimestamp the RTP timestamp.
+     * @param now The time of the report, in the time base of System.nanoTime()
      */
-    private void send(long ntpTimestamp, long rtpTimestamp) throws IOException
+    private void send(long now) throws IOException
     {
-        long hb = ntpTimestamp / 1000000000;
-        long lb = ( ( ntpTimestamp - hb * 1000000000 ) * 4294967296L ) / 1000000000;
+        long ntpTimestamp = mediaClock.getNtpTimestamp(now);
 
-        setLong(hb, 8, 12);
-        setLong(lb, 12, 16);
-        setLong(rtpTimestamp, 16, 20);
+        setLong(ntpTimestamp >>> 32, 8, 12);
+        setLong(ntpTimestamp & 0xFFFFFFFFL, 12, 16);
+        setLong(mediaClock.getRtpTimestamp(now, clock) + timestampOffset, 16, 20);
 
-        datagramPacket.setLength(PACKET_LENGTH);
-        multicastSocket.send(datagramPacket);
+        byte[] packet = buffer;
+        int length = PACKET_LENGTH;
+        if (srtp != null)
+        {
+            packet = protectedBuffer;
+            length = srtp.protectRtcp(buffer, PACKET_LENGTH, protectedBuffer);
+        }
+
+        if (writer != null)
+        {
+            writer.write(packet, length, channelIdentifier);
+        }
+        else
+        {
+            datagramPacket.setLength(length);
+            multicastSocket.send(datagramPacket);
+        }
     }
 }
@@ -1,6 +1,8 @@
 package com.assortedsolutions.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.util.Log;
 
@@ -11,6 +13,9 @@ import android.util.Log;
  * This packetizer is used by the AACStream class in conjunction with the
  * MediaCodec API introduced in Android 4.1 (API Level 16).
  *
+ * Consecutive access units are aggregated in a packet in the AAC-hbr mode,
+ * see {@link #setMaxAggregationLatency(int)}.
+ *
  */
 public class AACLATMPacketizer extends AbstractPacketizer implements Runnable
 {
@@ -18,6 +23,17 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable
 
     private Thread thread;
 
+    // Access units waiting to be sent together, their data is staged until the AU-headers can be written
+    private final byte[] staging = new byte[MAXPACKETSIZE];
+    private final int[] sizes = new int[MAXPACKETSIZE / 2];
+    private int pending = 0;
+    private int staged = 0;
+    private long firstTimestamp = 0;
+
+    private long frameDuration = 1024 * 1000000000L / 16000;
+    private long maxLatency = 100 * 1000000L;
+    private long savedPackets = 0;
+
     public AACLATMPacketizer()
     {
         super();
@@ -63,71 +79,95 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable
     public void setSamplingRate(int samplingRate)
     {
         socket.setClockFrequency(samplingRate);
+
+        // An AAC LC access unit holds 1024 samples
+        frameDuration = 1024 * 1000000000L / samplingRate;
+    }
+
+    /**
+     * Sends several access units in each RTP packet, as long as the first one is not held back more than the given time.
+     * 0 sends each access unit in its own packet. 100 ms by default.
+     * @param maxLatency The maximum latency added to the stream in ms
+     */
+    public void setMaxAggregationLatency(int maxLatency)
+    {
+        this.maxLatency = maxLatency * 1000000L;
+    }
+
+    /** Returns the number of packets the aggregation of the access units saved. */
+    public long getSavedPackets()
+    {
+        return savedPackets;
     }
 
     public void run()
     {
         Log.d(TAG,"AAC LATM packetizer started!");
 
-        int length = 0;
-        long oldts;
+        MediaCodecInputStream codec = (MediaCodecInputStream) inputStream;
         BufferInfo bufferInfo;
+        ByteBuffer frame;
+        int length;
+        long ts;
+
+        pending = 0;
+        staged = 0;
 
         try
         {
             while (!Thread.interrupted())
             {
-                buffer = socket.requestBuffer();
-                length = inputStream.read(buffer, rtpHeaderLength + 4, MAXPACKETSIZE - (rtpHeaderLength + 4));
-
-                if (length > 0)
+                frame = codec.readBuffer();
+                try
                 {
-                    bufferInfo = ((MediaCodecInputStream) inputStream).getLastBufferInfo();
-
-                    oldts = timestamp;
-                    timestamp = bufferInfo.presentationTimeUs * 1000;
+                    bufferInfo = codec.getLastBufferInfo();
+                    length = frame.remaining();
+                    ts = bufferInfo.presentationTimeUs * 1000;
 
-                    // Seems to happen sometimes
-                    if (oldts > timestamp)
+                    // The AudioSpecificConfig is already in the SDP, and a timestamp going backward seems to happen sometimes
+                    if (length == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || ts < timestamp)
                     {
-                        socket.commitBuffer();
                         continue;
                     }
 
-                    socket.markNextPacket();
-                    socket.updateTimestamp(timestamp);
-
-                    // AU-headers-length field: contains the size in bits of a AU-header
-                    // 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta
-                    // 13 bits will be enough because ADTS uses 13 bits for frame length
-                    buffer[rtpHeaderLength] = 0;
-                    buffer[rtpHeaderLength + 1] = 0x10;
+                    if (length > MAXPACKETSIZE - rtpHeaderLength - 4)
+                    {
+                        Log.e(TAG, "Access unit of " + length + " bytes does not fit in a packet");
+                        continue;
+                    }
 
-                    // AU-size
-                    buffer[rtpHeaderLength + 2] = (byte) (length >> 5);
-                    buffer[rtpHeaderLength + 3] = (byte) (length << 3);
+                    // The access unit does not fit along with the ones waiting, they go first
+                    if (pending > 0 && rtpHeaderLength + 2 + 2 * (pending + 1) + staged + length > MAXPACKETSIZE)
+                    {
+                        flush();
+                    }
 
-                    // AU-Index
-                    buffer[rtpHeaderLength + 3] &= 0xF8;
-                    buffer[rtpHeaderLength + 3] |= 0x00;
+                    if (pending == 0)
+                    {
+                        firstTimestamp = ts;
+                    }
 
-                    send(rtpHeaderLength + length + 4);
+                    frame.get(staging, staged, length);
+                    sizes[pending++] = length;
+                    staged += length;
+                    timestamp = ts;
                 }
-                else
+                finally
                 {
-                    socket.commitBuffer();
+                    codec.releaseBuffer();
                 }
 
+                // Waiting for the next access unit would hold the first one back too long
+                if (ts + frameDuration - firstTimestamp > maxLatency || pending == sizes.length)
+                {
+                    flush();
+                }
             }
         }
         catch (IOException e)
         {
             Log.e(TAG, "Run threw", e);
         }
-        catch (ArrayIndexOutOfBoundsException e)
-        {
-            Log.e(TAG,"ArrayIndexOutOfBoundsException: " + (e.getMessage() !=null ? e.getMessage() : "unknown error"), e);
-        }
         catch (InterruptedException ignore)
         {
             Log.e(TAG, "Run threw", ignore);
@@ -135,4 +175,36 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable
 
         Log.d(TAG,"AAC LATM packetizer stopped!");
     }
+
+    /**
+     * Sends the access units waiting in a single packet, with the timestamp of the first one.
+     * The AU-headers come first, 13 bits for the AU-size (enough, ADTS uses 13 bits for the frame length)
+     * and 3 bits for the AU-Index of the first one or the AU-Index-delta of the next ones, always 0 as they are consecutive.
+     * The AU-headers-length field holds the size in bits of all the AU-headers.
+     */
+    private void flush() throws IOException, InterruptedException
+    {
+        buffer = socket.requestBuffer();
+        socket.markNextPacket();
+        socket.updateTimestamp(firstTimestamp);
+
+        int bits = 16 * pending;
+        buffer[rtpHeaderLength] = (byte) (bits >> 8);
+        buffer[rtpHeaderLength + 1] = (byte) bits;
+
+        int offset = rtpHeaderLength + 2;
+        for (int i = 0; i < pending; i++)
+        {
+            buffer[offset] = (byte) (sizes[i] >> 5);
+            buffer[offset + 1] = (byte) (sizes[i] << 3);
+            offset += 2;
+        }
+
+        System.arraycopy(staging, 0, buffer, offset, staged);
+        send(offset + staged);
+
+        savedPackets += pending - 1;
+        pending = 0;
+        staged = 0;
+    }
 }
@@ -0,0 +1,111 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Finds the NAL units of an access unit in the Annex B format, the one the encoders output for H.264 and H.265.
+ * Their bounds are kept in arrays owned by the parser, nothing is allocated per access unit.
+ */
+class AnnexBParser
+{
+    public final static String TAG = "AnnexBParser";
+
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+
+    /**
+     * Splits the access unit in the buffer, see {@link #getStart(int)} and {@link #getEnd(int)}.
+     * A buffer without any start code holds a single NAL unit, some encoders do not write them.
+     * @return The number of NAL units
+     */
+    int split(ByteBuffer frame, int position, int limit)
+    {
+        int count = 0;
+        int start = findStartCode(frame, position, limit);
+        start = start == limit ? position : start + 3;
+
+        while (start < limit)
+        {
+            int next = findStartCode(frame, start, limit);
+
+            // The zero byte of a four bytes start code, and any trailing zero, are not part of the NAL unit
+            int end = next;
+            while (next < limit && end > start && frame.get(end - 1) == 0)
+            {
+                end--;
+            }
+
+            if (end > start)
+            {
+                if (count == starts.length)
+                {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+
+            start = next + 3;
+        }
+
+        return count;
+    }
+
+    /** Returns the position of the header of a NAL unit found by the last {@link #split}. */
+    int getStart(int index)
+    {
+        return starts[index];
+    }
+
+    /** Returns the position following the last byte of a NAL unit found by the last {@link #split}. */
+    int getEnd(int index)
+    {
+        return ends[index];
+    }
+
+    /** Returns the length of a NAL unit found by the last {@link #split}, its header included. */
+    int getLength(int index)
+    {
+        return ends[index] - starts[index];
+    }
+
+    /**
+     * Returns the position of the next start code (0x000001) in the buffer, or limit if there is none.
+     * The buffer is scanned eight bytes at a time, only the words holding a zero byte are looked at byte by byte.
+     */
+    static int findStartCode(ByteBuffer buffer, int position, int limit)
+    {
+        int i = position;
+        while (i + 8 <= limit)
+        {
+            long word = buffer.getLong(i);
+            if (((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) == 0)
+            {
+                i += 8;
+                continue;
+            }
+
+            for (int end = i + 8; i < end; i++)
+            {
+                if (buffer.get(i) == 0 && i + 2 < limit && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1)
+                {
+                    return i;
+                }
+            }
+        }
+
+        for (; i + 2 < limit; i++)
+        {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1)
+            {
+                return i;
+            }
+        }
+
+        return limit;
+    }
+}
@@ -0,0 +1,217 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Runs a MediaCodec encoder in asynchronous mode, its callbacks are called on a thread of its own.
+ *
+ * The indices of the input buffers it frees are handed to the thread feeding it, and the indices of the output buffers
+ * it fills to the packetizer, through two lock-free {@link PacketRing}s. Nobody polls the encoder with a timeout anymore,
+ * a thread waiting for a buffer is parked until the callback publishes one.
+ *
+ * Must be created before the encoder is configured.
+ */
+public class AsyncEncoder extends MediaCodec.Callback
+{
+    public final static String TAG = "AsyncEncoder";
+
+    // More than the buffers of any encoder, a ring can't overflow
+    private static final int CAPACITY = 64;
+
+    private final MediaCodec mediaCodec;
+    private final HandlerThread thread;
+
+    private final PacketRing inputs = new PacketRing(CAPACITY);
+    private final int[] inputIndices = new int[CAPACITY];
+    private long inputsWritten = 0;
+    private long inputsRead = 0;
+
+    private final PacketRing outputs = new PacketRing(CAPACITY);
+    private final int[] outputIndices = new int[CAPACITY];
+    private final int[] offsets = new int[CAPACITY];
+    private final int[] sizes = new int[CAPACITY];
+    private final int[] flags = new int[CAPACITY];
+    private final long[] presentationTimes = new long[CAPACITY];
+    private long outputsWritten = 0;
+    private long outputsRead = 0;
+
+    private volatile MediaFormat outputFormat = null;
+    private volatile MediaCodec.CodecException error = null;
+
+    /**
+     * @param mediaCodec The encoder, not configured yet
+     * @param name The name of the thread of the callbacks
+     */
+    public AsyncEncoder(MediaCodec mediaCodec, String name)
+    {
+        this.mediaCodec = mediaCodec;
+
+        // The buffers come at the frame rate at most, parking right away is cheaper than spinning
+        inputs.setSpinCount(0);
+        outputs.setSpinCount(0);
+
+        thread = new HandlerThread(name);
+        thread.start();
+        mediaCodec.setCallback(this, new Handler(thread.getLooper()));
+    }
+
+    public MediaCodec getMediaCodec()
+    {
+        return mediaCodec;
+    }
+
+    /** Stops the thread of the callbacks, to be called once the encoder is released. */
+    public void quit()
+    {
+        thread.quitSafely();
+    }
+
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index)
+    {
+        if (!inputs.hasFree())
+        {
+            Log.e(TAG, "Input buffer " + index + " lost, the ring is full");
+            return;
+        }
+
+        inputIndices[(int) (inputsWritten++ % CAPACITY)] = index;
+        inputs.publish();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info)
+    {
+        if (!outputs.hasFree())
+        {
+            Log.e(TAG, "Output buffer " + index + " dropped, the ring is full");
+            codec.releaseOutputBuffer(index, false);
+            return;
+        }
+
+        publishOutput(index, info.offset, info.size, info.presentationTimeUs, info.flags);
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format)
+    {
+        outputFormat = format;
+        if (outputs.hasFree())
+        {
+            publishOutput(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 0, 0, 0);
+        }
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e)
+    {
+        Log.e(TAG, "Encoder failed: " + e.getDiagnosticInfo(), e);
+        error = e;
+    }
+
+    private void publishOutput(int index, int offset, int size, long presentationTime, int flag)
+    {
+        int slot = (int) (outputsWritten++ % CAPACITY);
+        outputIndices[slot] = index;
+        offsets[slot] = offset;
+        sizes[slot] = size;
+        presentationTimes[slot] = presentationTime;
+        flags[slot] = flag;
+        outputs.publish();
+    }
+
+    /**
+     * Waits for an input buffer, see {@link MediaCodec#getInputBuffer(int)} to get it.
+     * Only one thread may feed the encoder.
+     * @param timeoutUs The maximum time to wait in us, 0 returns right away
+     * @return Its index, or {@link MediaCodec#INFO_TRY_AGAIN_LATER} if none was freed in time
+     * @throws InterruptedException
+     */
+    public int dequeueInputBuffer(long timeoutUs) throws InterruptedException
+    {
+        checkError();
+
+        if (inputs.awaitAvailable(timeoutUs, TimeUnit.MICROSECONDS) == 0)
+        {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+
+        int index = inputIndices[(int) (inputsRead++ % CAPACITY)];
+        inputs.consume(1);
+        inputs.release(1);
+        return index;
+    }
+
+    /** Returns the index of an input buffer if one is free, {@link MediaCodec#INFO_TRY_AGAIN_LATER} otherwise. */
+    public int pollInputBuffer()
+    {
+        try
+        {
+            return dequeueInputBuffer(0);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    /**
+     * Waits for an output buffer, see {@link #getOutputBuffer(int)} to get it.
+     * Only one thread may read the encoder.
+     * @param info Receives the offset, the size, the presentation time and the flags of the buffer
+     * @param timeoutUs The maximum time to wait in us, 0 returns right away
+     * @return Its index, {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} when the format changed
+     * or {@link MediaCodec#INFO_TRY_AGAIN_LATER} if none was filled in time
+     * @throws InterruptedException
+     */
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) throws InterruptedException
+    {
+        checkError();
+
+        if (outputs.awaitAvailable(timeoutUs, TimeUnit.MICROSECONDS) == 0)
+        {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+
+        int slot = (int) (outputsRead++ % CAPACITY);
+        int index = outputIndices[slot];
+        info.offset = offsets[slot];
+        info.size = sizes[slot];
+        info.presentationTimeUs = presentationTimes[slot];
+        info.flags = flags[slot];
+        outputs.consume(1);
+        outputs.release(1);
+        return index;
+    }
+
+    public ByteBuffer getOutputBuffer(int index)
+    {
+        return mediaCodec.getOutputBuffer(index);
+    }
+
+    public void releaseOutputBuffer(int index)
+    {
+        mediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    public MediaFormat getOutputFormat()
+    {
+        return outputFormat;
+    }
+
+    private void checkError()
+    {
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Computes the parity packets of the forward error correction of an {@link RtpSocket}, as described in RFC 5109.
+ *
+ * The packets sent are laid out by sequence number in blocks of rows x columns packets.
+ * Each row is protected by a parity packet sent right after its last packet and, when there is more than one row,
+ * each column is protected as well at the end of the block so that a burst of lost packets can still be recovered.
+ * A receiver rebuilds a lost packet by XORing the parity packet of its row or of its column
+ * with the other packets it protects.
+ *
+ * The payloads are XORed eight bytes at a time into accumulators allocated when the layout changes,
+ * nothing is allocated per packet.
+ */
+class FecEncoder
+{
+    public final static String TAG = "FecEncoder";
+
+    /** Length of the FEC header and of the level 0 header with its 48 bits mask. */
+    static final int HEADER_LENGTH = 18;
+
+    /** Number of packets a mask covers. */
+    static final int MAX_SPAN = 48;
+
+    private static final int WORDS = (RtpSocket.MTU + 7) / 8;
+
+    private final RtpSocket socket;
+
+    private int columns = 0;
+    private int rows = 0;
+
+    // The columns and the rows of the next block, packed in a single int so that they are always read together
+    private volatile int nextLayout = 0;
+
+    private Group row;
+    private Group[] columnGroups = new Group[0];
+    private boolean started = false;
+    private int blockBase;
+    private long parityPackets = 0;
+
+    FecEncoder(RtpSocket socket)
+    {
+        this.socket = socket;
+    }
+
+    /**
+     * Changes the layout of the blocks, it takes effect with the next block.
+     * @param columns The number of packets protected by the parity packet of a row, 0 to disable the FEC
+     * @param rows The number of rows of a block, 1 to only protect the rows
+     */
+    void setLayout(int columns, int rows)
+    {
+        if (columns < 0 || rows < 1 || columns > MAX_SPAN || (rows > 1 && (rows - 1) * columns + 1 > MAX_SPAN))
+        {
+            throw new IllegalArgumentException("A block of " + columns + "x" + rows + " packets cannot be protected");
+        }
+
+        nextLayout = columns << 8 | rows;
+    }
+
+    int getColumns()
+    {
+        return nextLayout >> 8;
+    }
+
+    int getRows()
+    {
+        return nextLayout & 0xFF;
+    }
+
+    /** Returns the number of parity packets computed, each of them is sent to every destination. */
+    long getParityPackets()
+    {
+        return parityPackets;
+    }
+
+    /** Forgets the packets of the current block without protecting them. */
+    void reset()
+    {
+        started = false;
+        if (row != null)
+        {
+            row.clear();
+        }
+
+        for (Group group : columnGroups)
+        {
+            group.clear();
+        }
+    }
+
+    /**
+     * Adds a packet that has just been sent, the parity packets it completes are handed to the socket.
+     * @param packet The packet
+     * @param view A buffer wrapping the packet
+     * @param length The length of the packet
+     * @param sequence The sequence number of the packet in the stream
+     * @param timestamp The RTP timestamp of the packet in the stream
+     */
+    void add(byte[] packet, ByteBuffer view, int length, int sequence, long timestamp) throws IOException
+    {
+        int position = (sequence - blockBase) & 0xFFFF;
+        if (!started || position >= columns * rows)
+        {
+            // The dropped packets leave holes in the block, when its last packets were dropped it ends with the first packet past it
+            flush();
+            int layout = nextLayout;
+            if (columns != layout >> 8 || rows != (layout & 0xFF))
+            {
+                layout(layout >> 8, layout & 0xFF);
+            }
+
+            if (columns == 0)
+            {
+                return;
+            }
+
+            started = true;
+            blockBase = sequence;
+            position = 0;
+        }
+
+        int column = position % columns;
+        if (row.count > 0 && position / columns != ((row.base - blockBase) & 0xFFFF) / columns)
+        {
+            emit(row);
+        }
+
+        row.add(packet, view, length, sequence, timestamp);
+        if (column == columns - 1)
+        {
+            emit(row);
+        }
+
+        if (rows > 1)
+        {
+            columnGroups[column].add(packet, view, length, sequence, timestamp);
+            if (position == columns * rows - 1)
+            {
+                flushColumns();
+            }
+        }
+    }
+
+    /**
+     * Writes the parity packet of a group as a destination expects it.
+     * @return The length of the packet
+     */
+    int write(Group group, RtpDestination destination, byte[] out, ByteBuffer view)
+    {
+        long timestampRecovery = 0;
+        for (int i = 0; i < group.count; i++)
+        {
+            timestampRecovery ^= destination.getTimestamp(group.timestamps[i]);
+        }
+
+        // RTP header, the parity packets have their own SSRC and sequence numbers
+        out[0] = (byte) 0x80;
+        out[1] = (byte) RtpSocket.FEC_PAYLOAD_TYPE;
+        view.putShort(2, (short) destination.nextFecSequence());
+        view.putInt(4, (int) destination.getTimestamp(group.timestamps[group.count - 1]));
+        view.putInt(8, destination.getFecSSRC());
+
+        // FEC header, E = 0 and L = 1 for a 48 bits mask
+        int offset = RtpSocket.RTP_HEADER_LENGTH;
+        out[offset] = (byte) (0x40 | (group.header >> 8) & 0x3F);
+        out[offset + 1] = (byte) group.header;
+        view.putShort(offset + 2, (short) destination.getSequence(group.base));
+        view.putInt(offset + 4, (int) timestampRecovery);
+        view.putShort(offset + 8, (short) group.lengthRecovery);
+
+        // Level 0 header
+        view.putShort(offset + 10, (short) group.protectionLength);
+        view.putShort(offset + 12, (short) (group.mask >>> 32));
+        view.putInt(offset + 14, (int) group.mask);
+
+        offset += HEADER_LENGTH;
+        for (int i = 0, words = (group.protectionLength + 7) >> 3; i < words; i++)
+        {
+            view.putLong(offset + (i << 3), group.words[i]);
+        }
+
+        return offset + group.protectionLength;
+    }
+
+    private void layout(int columns, int rows)
+    {
+        this.columns = columns;
+        this.rows = rows;
+
+        if (columns > 0 && row == null)
+        {
+            row = new Group();
+        }
+
+        int count = rows > 1 ? columns : 0;
+        if (columnGroups.length != count)
+        {
+            Group[] groups = Arrays.copyOf(columnGroups, count);
+            for (int i = columnGroups.length; i < count; i++)
+            {
+                groups[i] = new Group();
+            }
+
+            columnGroups = groups;
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        if (row != null && row.count > 0)
+        {
+            emit(row);
+        }
+
+        flushColumns();
+    }
+
+    private void flushColumns() throws IOException
+    {
+        for (Group group : columnGroups)
+        {
+            if (group.count > 0)
+            {
+                emit(group);
+            }
+        }
+    }
+
+    private void emit(Group group) throws IOException
+    {
+        // A parity packet protecting a single packet is just a copy of it
+        if (group.count > 1)
+        {
+            parityPackets++;
+            socket.sendParity(group);
+        }
+
+        group.clear();
+    }
+
+    /** The packets protected by a parity packet. */
+    static final class Group
+    {
+        final long[] words = new long[WORDS];
+        final long[] timestamps = new long[MAX_SPAN];
+        int count = 0;
+        int base;
+        long mask;
+        int header;
+        int lengthRecovery;
+        int protectionLength;
+
+        void add(byte[] packet, ByteBuffer view, int length, int sequence, long timestamp)
+        {
+            if (count == 0)
+            {
+                base = sequence;
+            }
+
+            int payload = length - RtpSocket.RTP_HEADER_LENGTH;
+            int whole = payload >> 3;
+            int offset = RtpSocket.RTP_HEADER_LENGTH;
+            for (int i = 0; i < whole; i++, offset += 8)
+            {
+                words[i] ^= view.getLong(offset);
+            }
+
+            // The payload is padded with zeros up to the next word
+            if (offset < length)
+            {
+                long tail = 0;
+                for (int shift = 56; offset < length; offset++, shift -= 8)
+                {
+                    tail |= (packet[offset] & 0xFFL) << shift;
+                }
+
+                words[whole] ^= tail;
+            }
+
+            header ^= ((packet[0] & 0xFF) << 8) | (packet[1] & 0xFF);
+            lengthRecovery ^= payload;
+            protectionLength = Math.max(protectionLength, payload);
+            mask |= 1L << (MAX_SPAN - 1 - ((sequence - base) & 0xFFFF));
+            timestamps[count++] = timestamp;
+        }
+
+        void clear()
+        {
+            Arrays.fill(words, 0, (protectionLength + 7) >> 3, 0);
+            count = 0;
+            mask = 0;
+            header = 0;
+            lengthRecovery = 0;
+            protectionLength = 0;
+        }
+    }
+}
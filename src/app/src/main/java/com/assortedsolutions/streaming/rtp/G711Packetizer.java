@@ -0,0 +1,245 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.io.IOException;
+import android.media.AudioRecord;
+import android.util.Log;
+
+/**
+ *
+ *   RFC 3551.
+ *
+ *   G.711 audio over RTP, in mu-law (PCMU) or in A-law (PCMA).
+ *
+ *   The samples are read straight from an {@link AudioRecord} recording 16 bits mono PCM at 8 kHz,
+ *   and encoded with lookup tables into the RTP buffers, 20 ms per packet. There is no MediaCodec involved.
+ *
+ */
+public class G711Packetizer extends AbstractPacketizer implements Runnable
+{
+    public final static String TAG = "G711Packetizer";
+
+    /** Static payload type of mu-law. */
+    public static final int PAYLOAD_TYPE_PCMU = 0;
+
+    /** Static payload type of A-law. */
+    public static final int PAYLOAD_TYPE_PCMA = 8;
+
+    /** The sampling rate of both payload types. */
+    public static final int SAMPLING_RATE = 8000;
+
+    // 20 ms per packet
+    private static final int PACKET_SAMPLES = 160;
+
+    // Duration of a sample in ns
+    private static final long SAMPLE_DURATION = 1000000000L / SAMPLING_RATE;
+
+    // The timestamps follow the samples recorded, they go back to the system clock when the clock of the microphone drifted further than that
+    private static final long MAX_DRIFT = 60000000L;
+
+    // Codes of the 14 most significant bits of a sample in mu-law, and of its 13 most significant bits in A-law, the others are dropped anyway
+    static final byte[] ULAW = new byte[1 << 14];
+    static final byte[] ALAW = new byte[1 << 13];
+
+    private static final int[] ULAW_SEGMENTS = { 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF };
+    private static final int[] ALAW_SEGMENTS = { 0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF };
+
+    static
+    {
+        for (int i = 0; i < ULAW.length; i++)
+        {
+            ULAW[i] = linearToUlaw((short) (i << 2));
+        }
+
+        for (int i = 0; i < ALAW.length; i++)
+        {
+            ALAW[i] = linearToAlaw((short) (i << 3));
+        }
+    }
+
+    private Thread thread = null;
+    private AudioRecord audioRecord = null;
+    private int payloadType = PAYLOAD_TYPE_PCMU;
+    private final short[] samples = new short[PACKET_SAMPLES];
+
+    public G711Packetizer()
+    {
+        super();
+        socket.setCacheSize(0);
+        socket.setClockFrequency(SAMPLING_RATE);
+        socket.setPayloadType(payloadType);
+    }
+
+    /**
+     * Sets the law used to encode the samples.
+     * @param payloadType Either {@link #PAYLOAD_TYPE_PCMU} or {@link #PAYLOAD_TYPE_PCMA}
+     */
+    public void setPayloadType(int payloadType)
+    {
+        this.payloadType = payloadType;
+        socket.setPayloadType(payloadType);
+    }
+
+    /** Sets the recording the samples are read from, it must be 16 bits mono PCM at 8 kHz. */
+    public void setAudioRecord(AudioRecord audioRecord)
+    {
+        this.audioRecord = audioRecord;
+    }
+
+    public void start()
+    {
+        if (thread == null)
+        {
+            thread = new Thread(this);
+            thread.start();
+        }
+    }
+
+    /** Stops the packetizer, the recording must be stopped first so that the packetizer is not left waiting for samples. */
+    public void stop()
+    {
+        if (thread != null)
+        {
+            thread.interrupt();
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Log.e(TAG, "Waiting for thread to die threw", e);
+            }
+
+            thread = null;
+        }
+    }
+
+    public void run()
+    {
+        Log.d(TAG,"G711 packetizer started!");
+
+        byte[] table = payloadType == PAYLOAD_TYPE_PCMA ? ALAW : ULAW;
+        int shift = payloadType == PAYLOAD_TYPE_PCMA ? 3 : 2;
+        long start = 0;
+        long count = -1;
+
+        try
+        {
+            while (!Thread.interrupted())
+            {
+                if (!read())
+                {
+                    break;
+                }
+
+                // The timestamp of the first sample of the packet
+                long now = System.nanoTime() - PACKET_SAMPLES * SAMPLE_DURATION;
+                buffer = socket.requestBuffer();
+                if (count < 0 || Math.abs(now - (start + count * SAMPLE_DURATION)) > MAX_DRIFT)
+                {
+                    // The marker bit starts a talkspurt, the receivers can adjust their playout delay
+                    start = now;
+                    count = 0;
+                    socket.markNextPacket();
+                }
+
+                for (int i = 0; i < PACKET_SAMPLES; i++)
+                {
+                    buffer[rtpHeaderLength + i] = table[(samples[i] & 0xFFFF) >> shift];
+                }
+
+                socket.updateTimestamp(start + count * SAMPLE_DURATION);
+                send(rtpHeaderLength + PACKET_SAMPLES);
+                count += PACKET_SAMPLES;
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Run threw", e);
+        }
+        catch (InterruptedException ignore)
+        {
+            Log.e(TAG, "Run threw", ignore);
+        }
+
+        Log.d(TAG,"G711 packetizer stopped!");
+    }
+
+    /** Reads the samples of a packet, returns false when the recording stopped. */
+    private boolean read()
+    {
+        int read = 0;
+        while (read < PACKET_SAMPLES)
+        {
+            int length = audioRecord.read(samples, read, PACKET_SAMPLES - read);
+            if (length < 0)
+            {
+                Log.e(TAG,"An error occurred with the AudioRecord API: " + length);
+                return false;
+            }
+
+            if (Thread.currentThread().isInterrupted())
+            {
+                return false;
+            }
+
+            read += length;
+        }
+
+        return true;
+    }
+
+    /** Encodes a 16 bits sample in mu-law, as in the reference implementation of the ITU-T. */
+    private static byte linearToUlaw(short sample)
+    {
+        int value = sample >> 2;
+        int mask = 0xFF;
+        if (value < 0)
+        {
+            value = -value;
+            mask = 0x7F;
+        }
+
+        // Clipped and biased
+        value = Math.min(value, 8159) + 33;
+
+        int segment = segment(value, ULAW_SEGMENTS);
+        if (segment >= 8)
+        {
+            return (byte) (0x7F ^ mask);
+        }
+
+        return (byte) ((segment << 4 | (value >> (segment + 1)) & 0x0F) ^ mask);
+    }
+
+    /** Encodes a 16 bits sample in A-law, as in the reference implementation of the ITU-T. */
+    private static byte linearToAlaw(short sample)
+    {
+        int value = sample >> 3;
+        int mask = 0xD5;
+        if (value < 0)
+        {
+            value = -value - 1;
+            mask = 0x55;
+        }
+
+        int segment = segment(value, ALAW_SEGMENTS);
+        if (segment >= 8)
+        {
+            return (byte) (0x7F ^ mask);
+        }
+
+        int code = segment << 4 | (value >> (segment < 2 ? 1 : segment)) & 0x0F;
+        return (byte) (code ^ mask);
+    }
+
+    private static int segment(int value, int[] ends)
+    {
+        int i = 0;
+        while (i < ends.length && value > ends[i])
+        {
+            i++;
+        }
+
+        return i;
+    }
+}
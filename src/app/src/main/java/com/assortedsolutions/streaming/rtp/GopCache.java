@@ -0,0 +1,145 @@
+package com.assortedsolutions.streaming.rtp;
+
+/**
+ * Keeps a copy of the packets sent since the last key frame of an {@link RtpSocket}, see {@link RtpSocket#setGopCache(int)}.
+ *
+ * A viewer joining a running stream is first sent the cached packets, with its own sequence numbers and timestamps,
+ * so that it can decode a picture right away instead of waiting for the next key frame.
+ * The cache is refreshed on each key frame. When the packets of a GOP do not fit in its budget
+ * it is left empty until the next key frame, the viewers joining in the meantime wait for that one.
+ * The packets are copied in a single buffer allocated once, nothing is allocated per packet.
+ */
+class GopCache
+{
+    public final static String TAG = "GopCache";
+
+    private final byte[] buffer;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] sequences;
+    private final long[] timestamps;
+
+    private int count = 0;
+    private int size = 0;
+    private volatile boolean valid = false;
+
+    /** @param maxBytes The budget of the cache, the packets of a GOP are only cached if they fit in it */
+    GopCache(int maxBytes)
+    {
+        int maxPackets = maxBytes / 128 + 1;
+        buffer = new byte[maxBytes];
+        offsets = new int[maxPackets];
+        lengths = new int[maxPackets];
+        sequences = new int[maxPackets];
+        timestamps = new long[maxPackets];
+    }
+
+    /**
+     * Adds a packet that has just been sent.
+     * @param packet The packet
+     * @param length The length of the packet
+     * @param sequence The sequence number of the packet in the stream
+     * @param timestamp The RTP timestamp of the packet in the stream
+     * @param keyFrame Whether the packet is the first key frame packet of its access unit, the cache then starts over
+     *                 with the access unit, the packets sent before it with the same timestamp (an AUD or an SEI) included
+     */
+    void add(byte[] packet, int length, int sequence, long timestamp, boolean keyFrame)
+    {
+        if (keyFrame)
+        {
+            restart(timestamp);
+        }
+        else if (!valid)
+        {
+            return;
+        }
+
+        if (count == offsets.length || size + length > buffer.length)
+        {
+            // The GOP is too large, a partial one would not help anybody
+            invalidate();
+            return;
+        }
+
+        System.arraycopy(packet, 0, buffer, size, length);
+        offsets[count] = size;
+        lengths[count] = length;
+        sequences[count] = sequence;
+        timestamps[count] = timestamp;
+        size += length;
+        count++;
+    }
+
+    /** Starts the cache over with the packets of the access unit of the key frame already cached. */
+    private void restart(long timestamp)
+    {
+        int first = valid ? count : 0;
+        while (first > 0 && timestamps[first - 1] == timestamp)
+        {
+            first--;
+        }
+
+        if (first == count)
+        {
+            count = 0;
+            size = 0;
+        }
+        else if (first > 0)
+        {
+            int shift = offsets[first];
+            System.arraycopy(buffer, shift, buffer, 0, size - shift);
+            for (int i = first; i < count; i++)
+            {
+                offsets[i - first] = offsets[i] - shift;
+                lengths[i - first] = lengths[i];
+                sequences[i - first] = sequences[i];
+                timestamps[i - first] = timestamps[i];
+            }
+
+            count -= first;
+            size -= shift;
+        }
+
+        valid = true;
+    }
+
+    /** Empties the cache until the next key frame, when packets were lost before being sent for instance. */
+    void invalidate()
+    {
+        valid = false;
+        count = 0;
+        size = 0;
+    }
+
+    /** Whether the cache holds the packets of a GOP, from its key frame to the last packet sent. */
+    boolean isValid()
+    {
+        return valid;
+    }
+
+    /** Returns the number of packets cached. */
+    int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Copies a cached packet.
+     * @return The length of the packet
+     */
+    int copy(int index, byte[] out)
+    {
+        System.arraycopy(buffer, offsets[index], out, 0, lengths[index]);
+        return lengths[index];
+    }
+
+    int getSequence(int index)
+    {
+        return sequences[index];
+    }
+
+    long getTimestamp(int index)
+    {
+        return timestamps[index];
+    }
+}
@@ -1,6 +1,7 @@
 package com.assortedsolutions.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import android.util.Log;
 
 /**
@@ -9,7 +10,11 @@ import android.util.Log;
  *
  *   H.264 streaming over RTP.
  *
- *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
+ *   Can be fed with a {@link MediaCodecInputStream}, each output buffer holding an access unit in the Annex B format.
+ *   The payloads are then copied straight from the buffer into the packets, a NAL unit is sent in a single packet
+ *   when it fits, fragmented in FU-As otherwise, and the small NAL units of an access unit are aggregated in STAP-As.
+ *
+ *   Any other InputStream must contain H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *
  */
@@ -29,10 +34,68 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable
     private int count = 0;
     private int streamType = 1;
 
+    // Output buffer of the encoder being packetized, null when reading from another input stream
+    private ByteBuffer frame = null;
+
+    // Bounds of the NAL units of the access unit being packetized
+    private final AnnexBParser parser = new AnnexBParser();
+
+    // Small NAL units of an access unit are sent together in STAP-A packets, see setAggregationEnabled()
+    private boolean aggregation = true;
+    private long aggregatedNals = 0;
+    private long savedPackets = 0;
+
+    /**
+     * Reads the NAL unit type and nal_ref_idc of the packets, the type of a FU-A is in its FU header
+     * and a STAP-A is a key frame packet if any of its NAL units is.
+     */
+    private static final PacketClassifier CLASSIFIER = new PacketClassifier()
+    {
+        @Override
+        public int classify(byte[] packet, int length)
+        {
+            int type = packet[rtpHeaderLength] & 0x1F;
+            if (type == 28 && length > rtpHeaderLength + 1)
+            {
+                type = packet[rtpHeaderLength + 1] & 0x1F;
+            }
+            else if (type == 24)
+            {
+                for (int offset = rtpHeaderLength + 1; offset + 2 < length; offset += 2 + ((packet[offset] & 0xFF) << 8 | packet[offset + 1] & 0xFF))
+                {
+                    if (isKeyFrame(packet[offset + 2] & 0x1F))
+                    {
+                        return PACKET_KEY_FRAME;
+                    }
+                }
+            }
+
+            if (isKeyFrame(type))
+            {
+                return PACKET_KEY_FRAME;
+            }
+
+            return (packet[rtpHeaderLength] & 0x60) == 0 ? PACKET_NON_REFERENCE : PACKET_REFERENCE;
+        }
+    };
+
+    // IDR slice, SPS and PPS
+    private static boolean isKeyFrame(int type)
+    {
+        return type == 5 || type == 7 || type == 8;
+    }
+
     public H264Packetizer()
     {
         super();
         socket.setClockFrequency(90000);
+        socket.setPacketClassifier(CLASSIFIER);
+
+        // About one second of video is kept to answer the NACKs of the receivers
+        socket.setRetransmissionHistory(128, 1000, 128 * 1024);
+
+        // Viewers joining the stream are started with the last GOP, room for a few Mbit/s with a key frame every second
+        socket.setGopCache(1024 * 1024);
     }
 
     public void start()
@@ -160,10 +223,6 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable
      */
     private void send() throws IOException, InterruptedException
     {
-        int sum = 1;
-        int len = 0;
-        int type;
-
         if (streamType == 0)
         {
             // NAL units are preceeded by their length, we parse the length
@@ -174,61 +233,170 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable
             {
                 resync();
             }
+
+            if ((header[4] & 0x1F) == 5)
+            {
+                sendParameterSets();
+            }
+
+            sendNal(true);
+            return;
         }
-        else if (streamType == 1)
+
+        // The encoder outputs an access unit per buffer, its payloads are copied from the buffer straight into the packets
+        MediaCodecInputStream codec = (MediaCodecInputStream) inputStream;
+        frame = codec.readBuffer();
+        try
         {
-            // NAL units are preceeded with 0x00000001
-            fill(header,0,5);
-            timestamp = ((MediaCodecInputStream) inputStream).getLastBufferInfo().presentationTimeUs * 1000L;
+            timestamp = codec.getLastBufferInfo().presentationTimeUs * 1000L;
+            int limit = frame.limit();
+            int nals = parser.split(frame, frame.position(), limit);
+
+            // The parameter sets go first, so that the access unit of a key frame starts with a key frame packet
+            for (int i = 0; i < nals; i++)
+            {
+                if ((frame.get(parser.getStart(i)) & 0x1F) == 5)
+                {
+                    sendParameterSets();
+                    break;
+                }
+            }
 
-            //timestamp += delay;
-            nalLength = inputStream.available() + 1;
-            if (!(header[0] == 0 && header[1] == 0 && header[2] == 0))
+            for (int i = 0; i < nals;)
             {
-                Log.e(TAG, "NAL units are not preceded by 0x00000001");
+                int end = aggregation ? aggregate(i, nals) : i + 1;
+                if (end - i > 1)
+                {
+                    sendAggregate(i, end, end == nals);
+                    i = end;
+                    continue;
+                }
 
-                streamType = 2;
-                return;
+                frame.limit(parser.getEnd(i));
+                frame.position(parser.getStart(i));
+                header[4] = frame.get();
+                nalLength = parser.getLength(i);
+                sendNal(i == nals - 1);
+                frame.limit(limit);
+                i++;
             }
         }
-        else
+        finally
         {
-            // Nothing precedes the NAL units
-            fill(header,0,1);
-            header[4] = header[0];
-            timestamp = ((MediaCodecInputStream) inputStream).getLastBufferInfo().presentationTimeUs * 1000L;
+            // The last packet is in the FIFO, the buffer can go back to the encoder
+            frame = null;
+            codec.releaseBuffer();
+        }
+    }
 
-            nalLength = inputStream.available()+1;
+    /**
+     * Returns the end of the run of NAL units starting at from that fit together in a STAP-A packet.
+     * The run may be a single NAL unit, it is then sent on its own.
+     */
+    private int aggregate(int from, int nals)
+    {
+        int size = 1;
+        int end = from;
+        while (end < nals && size + 2 + parser.getLength(end) <= MAXPACKETSIZE - rtpHeaderLength)
+        {
+            size += 2 + parser.getLength(end);
+            end++;
         }
 
-        // Parses the NAL unit type
-        type = header[4] & 0x1F;
+        return Math.max(end, from + 1);
+    }
 
-        // The stream already contains NAL unit type 7 or 8, we don't need
-        // to add them to the stream ourselves
-        if (type == 7 || type == 8)
-        {
-            Log.v(TAG,"SPS or PPS present in the stream.");
+    /**
+     * Sends NAL units of the access unit in a STAP-A packet (RFC 6184, section 5.7.1), each one preceded by its size.
+     * The F bit is set if it is set in any of them and the NRI is the highest of theirs.
+     * @param last Whether they end the access unit, the packet then gets the marker bit
+     */
+    private void sendAggregate(int from, int to, boolean last) throws IOException, InterruptedException
+    {
+        buffer = socket.requestBuffer();
+        int offset = rtpHeaderLength + 1;
+        int forbidden = 0;
+        int nri = 0;
 
-            count++;
-            if (count > 4)
-            {
-                sps = null;
-                pps = null;
-            }
+        for (int i = from; i < to; i++)
+        {
+            int length = parser.getLength(i);
+            int nalHeader = frame.get(parser.getStart(i));
+            forbidden |= nalHeader & 0x80;
+            nri = Math.max(nri, nalHeader & 0x60);
+            checkParameterSets(nalHeader & 0x1F);
+
+            buffer[offset] = (byte) (length >> 8);
+            buffer[offset + 1] = (byte) length;
+            frame.position(parser.getStart(i));
+            frame.get(buffer, offset + 2, length);
+            offset += 2 + length;
         }
 
-        // We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-        // Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-        if (type == 5 && sps != null && pps != null)
+        buffer[rtpHeaderLength] = (byte) (forbidden | nri | 24);
+        socket.updateTimestamp(timestamp);
+        if (last)
         {
-            buffer = socket.requestBuffer();
             socket.markNextPacket();
-            socket.updateTimestamp(timestamp);
-            System.arraycopy(stapa, 0, buffer, rtpHeaderLength, stapa.length);
-            super.send(rtpHeaderLength +stapa.length);
         }
 
+        super.send(offset);
+        aggregatedNals += to - from;
+        savedPackets += to - from - 1;
+    }
+
+    /**
+     * Sends the small NAL units of an access unit, SEI or small slices of a static scene for instance,
+     * together in STAP-A packets rather than each one in its own packet. Enabled by default.
+     */
+    public void setAggregationEnabled(boolean enabled)
+    {
+        aggregation = enabled;
+    }
+
+    /** Returns the number of NAL units sent in STAP-A packets, the parameter sets sent before the key frames aside. */
+    public long getAggregatedNals()
+    {
+        return aggregatedNals;
+    }
+
+    /** Returns the number of packets the STAP-A packets saved. */
+    public long getSavedPackets()
+    {
+        return savedPackets;
+    }
+
+    /**
+     * We send a STAP-A packet containing NALU type 7 (SPS) and 8 (PPS) before each key frame.
+     * Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+     */
+    private void sendParameterSets() throws IOException, InterruptedException
+    {
+        if (sps == null || pps == null)
+        {
+            return;
+        }
+
+        buffer = socket.requestBuffer();
+        socket.updateTimestamp(timestamp);
+        System.arraycopy(stapa, 0, buffer, rtpHeaderLength, stapa.length);
+        super.send(rtpHeaderLength + stapa.length);
+    }
+
+    /**
+     * Sends the NAL unit whose header is in header[4], its payload is read with {@link #fill}.
+     * @param last Whether it is the last NAL unit of the access unit, its last packet then gets the marker bit
+     */
+    private void sendNal(boolean last) throws IOException, InterruptedException
+    {
+        int sum = 1;
+        int len = 0;
+        int type;
+
+        // Parses the NAL unit type
+        type = header[4] & 0x1F;
+        checkParameterSets(type);
+
         // Small NAL unit => Single NAL unit
         if (nalLength <= MAXPACKETSIZE- rtpHeaderLength - 2)
         {
@@ -236,7 +404,10 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable
             buffer[rtpHeaderLength] = header[4];
             len = fill(buffer, rtpHeaderLength + 1,  nalLength - 1);
             socket.updateTimestamp(timestamp);
-            socket.markNextPacket();
+            if (last)
+            {
+                socket.markNextPacket();
+            }
             super.send(nalLength + rtpHeaderLength);
         }
         else // Large NAL unit => Split nal unit
@@ -267,7 +438,10 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable
                 {
                     // End bit on
                     buffer[rtpHeaderLength + 1] += 0x40;
-                    socket.markNextPacket();
+                    if (last)
+                    {
+                        socket.markNextPacket();
+                    }
                 }
 
                 super.send(len + rtpHeaderLength + 2);
@@ -278,8 +452,31 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable
         }
     }
 
+    private void checkParameterSets(int type)
+    {
+        // The stream already contains NAL unit type 7 or 8, we don't need
+        // to add them to the stream ourselves
+        if (type == 7 || type == 8)
+        {
+            Log.v(TAG,"SPS or PPS present in the stream.");
+
+            count++;
+            if (count > 4)
+            {
+                sps = null;
+                pps = null;
+            }
+        }
+    }
+
     private int fill(byte[] buffer, int offset,int length) throws IOException
     {
+        if (frame != null)
+        {
+            frame.get(buffer, offset, length);
+            return length;
+        }
+
         int sum = 0;
         int len;
 
@@ -309,7 +506,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable
             header[1] = header[2];
             header[2] = header[3];
             header[3] = header[4];
-            header[4] = (byte) inputStream.read();
+            fill(header, 4, 1);
 
             type = header[4]&0x1F;
 
@@ -0,0 +1,434 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import android.util.Log;
+
+/**
+ *
+ *   RFC 7798.
+ *
+ *   H.265 streaming over RTP.
+ *
+ *   Must be fed with a {@link MediaCodecInputStream}, each output buffer holding an access unit in the Annex B format.
+ *   A NAL unit is sent in a single packet when it fits, fragmented in FUs otherwise,
+ *   and the small NAL units of an access unit are aggregated in APs.
+ *
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable
+{
+    public final static String TAG = "H265Packetizer";
+
+    /** NAL unit types of the aggregation packets and of the fragmentation units. */
+    private static final int TYPE_AP = 48;
+    private static final int TYPE_FU = 49;
+
+    private Thread thread = null;
+    private byte[] parameterSets = null;
+    private int count = 0;
+
+    // Output buffer of the encoder being packetized
+    private ByteBuffer frame = null;
+
+    // Bounds of the NAL units of the access unit being packetized
+    private final AnnexBParser parser = new AnnexBParser();
+
+    // Small NAL units of an access unit are sent together in APs, see setAggregationEnabled()
+    private boolean aggregation = true;
+    private long aggregatedNals = 0;
+    private long savedPackets = 0;
+
+    /**
+     * Reads the NAL unit type of the packets, the type of a FU is in its FU header
+     * and an AP is classified after the most important of its NAL units.
+     */
+    private static final PacketClassifier CLASSIFIER = new PacketClassifier()
+    {
+        @Override
+        public int classify(byte[] packet, int length)
+        {
+            int type = getType(packet[rtpHeaderLength]);
+            if (type == TYPE_FU && length > rtpHeaderLength + 2)
+            {
+                return classify(packet[rtpHeaderLength + 2] & 0x3F);
+            }
+
+            if (type != TYPE_AP)
+            {
+                return classify(type);
+            }
+
+            int result = PACKET_NON_REFERENCE;
+            for (int offset = rtpHeaderLength + 2; offset + 2 < length; offset += 2 + ((packet[offset] & 0xFF) << 8 | packet[offset + 1] & 0xFF))
+            {
+                int nal = classify(getType(packet[offset + 2]));
+                if (nal == PACKET_KEY_FRAME)
+                {
+                    return PACKET_KEY_FRAME;
+                }
+
+                if (nal == PACKET_REFERENCE)
+                {
+                    result = PACKET_REFERENCE;
+                }
+            }
+
+            return result;
+        }
+
+        private int classify(int type)
+        {
+            if (isKeyFrame(type))
+            {
+                return PACKET_KEY_FRAME;
+            }
+
+            // The sub-layer non-reference pictures have even types below 16, nothing refers to SEI and AUD either
+            return type < 16 && (type & 1) == 0 || type >= 35 ? PACKET_NON_REFERENCE : PACKET_REFERENCE;
+        }
+    };
+
+    private static int getType(byte nalHeader)
+    {
+        return (nalHeader >> 1) & 0x3F;
+    }
+
+    // IRAP pictures (BLA, IDR and CRA), VPS, SPS and PPS
+    private static boolean isKeyFrame(int type)
+    {
+        return type >= 16 && type <= 21 || type >= 32 && type <= 34;
+    }
+
+    public H265Packetizer()
+    {
+        super();
+        socket.setClockFrequency(90000);
+        socket.setPacketClassifier(CLASSIFIER);
+
+        // About one second of video is kept to answer the NACKs of the receivers
+        socket.setRetransmissionHistory(128, 1000, 128 * 1024);
+
+        // Viewers joining the stream are started with the last GOP, room for a few Mbit/s with a key frame every second
+        socket.setGopCache(1024 * 1024);
+    }
+
+    public void start()
+    {
+        if (thread != null)
+        {
+            return;
+        }
+
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    public void stop()
+    {
+        if (thread == null)
+        {
+            return;
+        }
+
+        try
+        {
+            inputStream.close();
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Closing input stream threw", e);
+        }
+
+        thread.interrupt();
+
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Log.e(TAG, "Waiting for thread to die threw", e);
+        }
+
+        thread = null;
+    }
+
+    /** Sets the parameter sets of the stream, they are sent in an AP before each key frame. */
+    public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps)
+    {
+        if (vps == null || sps == null || pps == null)
+        {
+            parameterSets = null;
+            return;
+        }
+
+        // PayloadHdr of the AP, with the layer 0 and the temporal id 1 of the parameter sets, and the size of each NAL unit
+        parameterSets = new byte[2 + 2 + vps.length + 2 + sps.length + 2 + pps.length];
+        parameterSets[0] = (byte) (TYPE_AP << 1);
+        parameterSets[1] = 1;
+
+        int offset = 2;
+        for (byte[] nal : new byte[][] { vps, sps, pps })
+        {
+            parameterSets[offset] = (byte) (nal.length >> 8);
+            parameterSets[offset + 1] = (byte) nal.length;
+            System.arraycopy(nal, 0, parameterSets, offset + 2, nal.length);
+            offset += 2 + nal.length;
+        }
+    }
+
+    /**
+     * Sends the small NAL units of an access unit together in APs rather than each one in its own packet.
+     * Enabled by default.
+     */
+    public void setAggregationEnabled(boolean enabled)
+    {
+        aggregation = enabled;
+    }
+
+    /** Returns the number of NAL units sent in APs, the parameter sets sent before the key frames aside. */
+    public long getAggregatedNals()
+    {
+        return aggregatedNals;
+    }
+
+    /** Returns the number of packets the APs saved. */
+    public long getSavedPackets()
+    {
+        return savedPackets;
+    }
+
+    public void run()
+    {
+        Log.d(TAG,"H265 packetizer started!");
+
+        count = 0;
+
+        if (!(inputStream instanceof MediaCodecInputStream))
+        {
+            Log.e(TAG, "The H265 packetizer needs the output of a MediaCodec");
+            return;
+        }
+
+        socket.setCacheSize(0);
+
+        try
+        {
+            while (!Thread.interrupted())
+            {
+                send();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Run threw", e);
+        }
+        catch (InterruptedException e)
+        {
+            Log.e(TAG, "Run threw", e);
+        }
+
+        Log.d(TAG,"H265 packetizer stopped !");
+    }
+
+    /** Reads an access unit from the encoder and sends its NAL units. */
+    private void send() throws IOException, InterruptedException
+    {
+        MediaCodecInputStream codec = (MediaCodecInputStream) inputStream;
+        frame = codec.readBuffer();
+        try
+        {
+            timestamp = codec.getLastBufferInfo().presentationTimeUs * 1000L;
+            int nals = parser.split(frame, frame.position(), frame.limit());
+
+            // The parameter sets go first, so that the access unit of a key frame starts with a key frame packet
+            for (int i = 0; i < nals; i++)
+            {
+                int type = getType(frame.get(parser.getStart(i)));
+                if (type >= 16 && type <= 21)
+                {
+                    sendParameterSets();
+                    break;
+                }
+            }
+
+            for (int i = 0; i < nals;)
+            {
+                int end = aggregation ? aggregate(i, nals) : i + 1;
+                if (end - i > 1)
+                {
+                    sendAggregate(i, end, end == nals);
+                }
+                else
+                {
+                    sendNal(i, i == nals - 1);
+                }
+
+                i = end;
+            }
+        }
+        finally
+        {
+            // The last packet is in the FIFO, the buffer can go back to the encoder
+            frame = null;
+            codec.releaseBuffer();
+        }
+    }
+
+    private void sendParameterSets() throws IOException, InterruptedException
+    {
+        if (parameterSets == null)
+        {
+            return;
+        }
+
+        buffer = socket.requestBuffer();
+        socket.updateTimestamp(timestamp);
+        System.arraycopy(parameterSets, 0, buffer, rtpHeaderLength, parameterSets.length);
+        super.send(rtpHeaderLength + parameterSets.length);
+    }
+
+    /**
+     * Sends a NAL unit in a single packet, or fragmented in FUs when it is too large (RFC 7798, section 4.4.3).
+     * @param last Whether it is the last NAL unit of the access unit, its last packet then gets the marker bit
+     */
+    private void sendNal(int index, boolean last) throws IOException, InterruptedException
+    {
+        int start = parser.getStart(index);
+        int end = parser.getEnd(index);
+        int length = end - start;
+        if (length < 2)
+        {
+            // Not even a NAL unit header
+            return;
+        }
+
+        int header0 = frame.get(start);
+        int header1 = frame.get(start + 1);
+        int type = getType((byte) header0);
+        checkParameterSets(type);
+
+        // Single NAL unit packet
+        if (length <= MAXPACKETSIZE - rtpHeaderLength)
+        {
+            buffer = socket.requestBuffer();
+            frame.position(start);
+            frame.get(buffer, rtpHeaderLength, length);
+            socket.updateTimestamp(timestamp);
+            if (last)
+            {
+                socket.markNextPacket();
+            }
+
+            super.send(rtpHeaderLength + length);
+            return;
+        }
+
+        // The PayloadHdr of the FUs keeps the F bit, the layer and the temporal id of the NAL unit,
+        // the FU header holds its type with the start and end bits
+        int position = start + 2;
+        int fuHeader = 0x80 | type;
+        while (position < end)
+        {
+            int size = Math.min(end - position, MAXPACKETSIZE - rtpHeaderLength - 3);
+            buffer = socket.requestBuffer();
+            buffer[rtpHeaderLength] = (byte) ((header0 & 0x81) | TYPE_FU << 1);
+            buffer[rtpHeaderLength + 1] = (byte) header1;
+
+            if (position + size >= end)
+            {
+                fuHeader |= 0x40;
+            }
+
+            buffer[rtpHeaderLength + 2] = (byte) fuHeader;
+            frame.position(position);
+            frame.get(buffer, rtpHeaderLength + 3, size);
+            socket.updateTimestamp(timestamp);
+            if (last && position + size >= end)
+            {
+                socket.markNextPacket();
+            }
+
+            super.send(rtpHeaderLength + 3 + size);
+
+            position += size;
+            fuHeader &= 0x7F;
+        }
+    }
+
+    /**
+     * Returns the end of the run of NAL units starting at from that fit together in an AP.
+     * The run may be a single NAL unit, it is then sent on its own.
+     */
+    private int aggregate(int from, int nals)
+    {
+        int size = 2;
+        int end = from;
+        while (end < nals && size + 2 + parser.getLength(end) <= MAXPACKETSIZE - rtpHeaderLength)
+        {
+            size += 2 + parser.getLength(end);
+            end++;
+        }
+
+        return Math.max(end, from + 1);
+    }
+
+    /**
+     * Sends NAL units of the access unit in an AP (RFC 7798, section 4.4.2), each one preceded by its size.
+     * The F bit is set if it is set in any of them, the layer and the temporal id are the lowest of theirs.
+     * @param last Whether they end the access unit, the packet then gets the marker bit
+     */
+    private void sendAggregate(int from, int to, boolean last) throws IOException, InterruptedException
+    {
+        buffer = socket.requestBuffer();
+        int offset = rtpHeaderLength + 2;
+        int forbidden = 0;
+        int layer = 63;
+        int temporalId = 7;
+
+        for (int i = from; i < to; i++)
+        {
+            int start = parser.getStart(i);
+            int length = parser.getLength(i);
+            int header0 = frame.get(start);
+            int header1 = length > 1 ? frame.get(start + 1) : 0;
+            forbidden |= header0 & 0x80;
+            layer = Math.min(layer, (header0 & 0x01) << 5 | (header1 & 0xFF) >> 3);
+            temporalId = Math.min(temporalId, header1 & 0x07);
+            checkParameterSets(getType((byte) header0));
+
+            buffer[offset] = (byte) (length >> 8);
+            buffer[offset + 1] = (byte) length;
+            frame.position(start);
+            frame.get(buffer, offset + 2, length);
+            offset += 2 + length;
+        }
+
+        buffer[rtpHeaderLength] = (byte) (forbidden | TYPE_AP << 1 | layer >> 5);
+        buffer[rtpHeaderLength + 1] = (byte) ((layer & 0x1F) << 3 | temporalId);
+        socket.updateTimestamp(timestamp);
+        if (last)
+        {
+            socket.markNextPacket();
+        }
+
+        super.send(offset);
+        aggregatedNals += to - from;
+        savedPackets += to - from - 1;
+    }
+
+    private void checkParameterSets(int type)
+    {
+        // The stream already contains the parameter sets, we don't need to add them to the stream ourselves
+        if (type >= 32 && type <= 34)
+        {
+            Log.v(TAG,"VPS, SPS or PPS present in the stream.");
+
+            count++;
+            if (count > 6)
+            {
+                parameterSets = null;
+            }
+        }
+    }
+}
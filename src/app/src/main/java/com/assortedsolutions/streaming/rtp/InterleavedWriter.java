@@ -0,0 +1,220 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import android.util.Log;
+
+/**
+ * Writes RTP and RTCP packets interleaved in the RTSP connection of a client, as described in section 10.12 of RFC 2326.
+ * Each packet is framed with a '$', the channel identifier and the length, and copied in a frame of a bounded pool.
+ * A thread owned by the writer sends the frames, several at once with a gathering write.
+ * When the client reads too slowly the pool runs dry and packets are dropped, so the sender thread
+ * of an {@link RtpSocket} shared with other clients never waits for this one.
+ *
+ * The RTSP responses go through the same queue so that they are never written in the middle of a frame.
+ */
+public class InterleavedWriter implements Runnable
+{
+    public final static String TAG = "InterleavedWriter";
+
+    /** Default number of frames that can wait for the client. */
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    /** Maximum number of frames handed to a single gathering write. */
+    private static final int MAX_GATHER = 16;
+
+    private static final int FRAME_HEADER_LENGTH = 4;
+
+    private final SocketChannel channel;
+    private final ArrayBlockingQueue<ByteBuffer> freeFrames;
+    private final LinkedBlockingQueue<ByteBuffer> pendingFrames = new LinkedBlockingQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private Thread thread;
+
+    private volatile boolean closed = false;
+    private volatile boolean paused = true;
+    private volatile long writtenPackets = 0;
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    public InterleavedWriter(SocketChannel channel)
+    {
+        this(channel, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param channel The channel of the RTSP connection, in blocking mode
+     * @param queueSize The number of frames that can wait for the client before packets are dropped
+     */
+    public InterleavedWriter(SocketChannel channel, int queueSize)
+    {
+        this.channel = channel;
+
+        freeFrames = new ArrayBlockingQueue<>(queueSize);
+        for (int i = 0; i < queueSize; i++)
+        {
+            freeFrames.add(ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH + RtpSocket.MTU));
+        }
+
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    /** Returns the address of the client. */
+    public InetAddress getAddress()
+    {
+        return channel.socket().getInetAddress();
+    }
+
+    /**
+     * Queues a packet, never blocks.
+     * @param packet The RTP or RTCP packet
+     * @param length The length of the packet
+     * @param channelId The interleaved channel identifier negotiated in the SETUP request
+     * @return False if the packet was dropped because the client is not keeping up
+     */
+    public boolean write(byte[] packet, int length, int channelId)
+    {
+        if (paused)
+        {
+            return false;
+        }
+
+        ByteBuffer frame = closed ? null : freeFrames.poll();
+        if (frame == null)
+        {
+            droppedPackets.incrementAndGet();
+            return false;
+        }
+
+        frame.clear();
+        frame.put((byte) '$');
+        frame.put((byte) channelId);
+        frame.put((byte) (length >> 8));
+        frame.put((byte) length);
+        frame.put(packet, 0, length);
+        frame.flip();
+
+        pendingFrames.add(frame);
+        return true;
+    }
+
+    /**
+     * Queues an RTSP response. Unlike packets, responses are never dropped.
+     * @param response The response
+     */
+    public void writeResponse(byte[] response)
+    {
+        if (!closed)
+        {
+            pendingFrames.add(ByteBuffer.wrap(response));
+        }
+    }
+
+    /**
+     * Packets are discarded while the writer is paused, which it is when created.
+     * Clients expect the response to their PLAY request before the first packet.
+     */
+    public void setPaused(boolean paused)
+    {
+        this.paused = paused;
+    }
+
+    /** Returns the number of packets written to the client. */
+    public long getWrittenPackets()
+    {
+        return writtenPackets;
+    }
+
+    /** Returns the number of packets dropped because the client was not reading fast enough. */
+    public long getDroppedPackets()
+    {
+        return droppedPackets.get();
+    }
+
+    /**
+     * Stops the thread of the writer, frames not written yet are discarded.
+     * Should be called when the connection is closed, interrupting a write in progress closes the channel.
+     */
+    public void close()
+    {
+        closed = true;
+
+        Thread t = thread;
+        if (t != null)
+        {
+            t.interrupt();
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException ignore) {}
+        }
+
+        pendingFrames.clear();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (!Thread.interrupted())
+            {
+                gather[0] = pendingFrames.take();
+                int count = 1 + drainTo(gather, 1);
+
+                // A gathering write may be partial, frames are only recycled once fully written
+                long remaining = 0;
+                for (int i = 0; i < count; i++)
+                {
+                    remaining += gather[i].remaining();
+                }
+
+                while (remaining > 0)
+                {
+                    remaining -= channel.write(gather, 0, count);
+                }
+
+                for (int i = 0; i < count; i++)
+                {
+                    // Responses are wrapped heap buffers, only the frames of the pool are direct
+                    if (gather[i].isDirect())
+                    {
+                        writtenPackets++;
+                        freeFrames.offer(gather[i]);
+                    }
+
+                    gather[i] = null;
+                }
+            }
+        }
+        catch (InterruptedException ignore)
+        {
+            // The writer was closed
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Writing to the client threw", e);
+        }
+
+        closed = true;
+        thread = null;
+    }
+
+    private int drainTo(ByteBuffer[] frames, int offset)
+    {
+        int count = 0;
+        ByteBuffer frame;
+        while (offset + count < frames.length && (frame = pendingFrames.poll()) != null)
+        {
+            frames[offset + count++] = frame;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,63 @@
+package com.assortedsolutions.streaming.rtp;
+
+/**
+ * The clock shared by the streams of the sessions, so that their RTP timestamps and the NTP timestamps
+ * of their Sender Reports refer to the same instants and the receivers can keep audio and video in sync.
+ *
+ * The capture times handed to the packetizers are in the time base of System.nanoTime(),
+ * which is also the one of the presentation times given to the encoders.
+ * They are measured from the epoch of the clock and converted exactly to the clock rate of each stream,
+ * the result is only rounded once so the RTP timestamps never drift from the capture times.
+ * The wall clock is read once, when the clock is created, so that adjusting the time of the phone
+ * does not make the NTP timestamps jump in the middle of a stream.
+ */
+public class MediaClock
+{
+    public final static String TAG = "MediaClock";
+
+    /** Seconds between the NTP epoch (1900) and the Unix epoch (1970). */
+    private static final long NTP_UNIX_OFFSET = 2208988800L;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long epoch;
+    private final long wallClockAtEpoch;
+
+    public MediaClock()
+    {
+        epoch = System.nanoTime();
+        wallClockAtEpoch = System.currentTimeMillis() * 1000000L;
+    }
+
+    /**
+     * Converts a capture time into a RTP timestamp.
+     * The timestamp keeps counting beyond 32 bits, only its low 32 bits are sent and they wrap around.
+     * @param nanoTime The capture time, in the time base of System.nanoTime()
+     * @param clockRate The clock rate of the stream in Hz
+     */
+    public long getRtpTimestamp(long nanoTime, long clockRate)
+    {
+        long time = nanoTime - epoch;
+        long seconds = time / NANOS_PER_SECOND;
+        long nanos = time % NANOS_PER_SECOND;
+        if (nanos < 0)
+        {
+            seconds--;
+            nanos += NANOS_PER_SECOND;
+        }
+
+        return seconds * clockRate + nanos * clockRate / NANOS_PER_SECOND;
+    }
+
+    /**
+     * Converts a time into a 64 bits NTP timestamp of the wall clock: seconds since 1900 and a binary fraction.
+     * @param nanoTime The time, in the time base of System.nanoTime()
+     */
+    public long getNtpTimestamp(long nanoTime)
+    {
+        long wallClock = wallClockAtEpoch + nanoTime - epoch;
+        long seconds = wallClock / NANOS_PER_SECOND + NTP_UNIX_OFFSET;
+        long fraction = ((wallClock % NANOS_PER_SECOND) << 32) / NANOS_PER_SECOND;
+        return seconds << 32 | fraction;
+    }
+}
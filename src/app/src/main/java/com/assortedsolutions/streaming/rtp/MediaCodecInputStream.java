@@ -2,6 +2,7 @@ package com.assortedsolutions.streaming.rtp;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
@@ -9,27 +10,27 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 /**
- * An InputStream that uses data from a MediaCodec.
+ * An InputStream that uses data from a MediaCodec running in asynchronous mode, see {@link AsyncEncoder}.
  * The purpose of this class is to interface existing RTP packetizers of
  * libstreaming with the new MediaCodec API. This class is not thread safe !
+ * Packetizers aware of it can also take the output buffers of the encoder as they are,
+ * see {@link #readBuffer()}, and copy their content straight into the RTP packets.
  */
 public class MediaCodecInputStream extends InputStream
 {
     public final String TAG = "MediaCodecInputStream";
 
-    private MediaCodec mediaCodec = null;
+    private AsyncEncoder encoder = null;
     private BufferInfo bufferInfo = new BufferInfo();
-    private ByteBuffer[] buffers = null;
     private ByteBuffer buffer = null;
     private int index = -1;
     private boolean closed = false;
 
     public MediaFormat mediaFormat;
 
-    public MediaCodecInputStream(MediaCodec mediaCodec)
+    public MediaCodecInputStream(AsyncEncoder encoder)
     {
-        this.mediaCodec = mediaCodec;
-        buffers = this.mediaCodec.getOutputBuffers();
+        this.encoder = encoder;
     }
 
     @Override
@@ -49,34 +50,7 @@ public class MediaCodecInputStream extends InputStream
         {
             if (this.buffer == null)
             {
-                while (!Thread.interrupted() && !closed)
-                {
-                    index = mediaCodec.dequeueOutputBuffer(bufferInfo, 500000);
-
-                    if (index >= 0)
-                    {
-                        this.buffer = buffers[index];
-                        this.buffer.position(0);
-                        break;
-                    }
-                    else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED)
-                    {
-                        buffers = mediaCodec.getOutputBuffers();
-                    }
-                    else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
-                    {
-                        mediaFormat = mediaCodec.getOutputFormat();
-                        Log.i(TAG, mediaFormat.toString());
-                    }
-                    else if (index == MediaCodec.INFO_TRY_AGAIN_LATER)
-                    {
-                        Log.v(TAG,"No buffer available...");
-                    }
-                    else
-                    {
-                        Log.e(TAG,"Message: " + index);
-                    }
-                }
+                dequeue();
             }
 
             if (closed)
@@ -84,11 +58,11 @@ public class MediaCodecInputStream extends InputStream
                 throw new IOException("This InputStream was closed");
             }
 
-            min = length < bufferInfo.size - this.buffer.position() ? length : bufferInfo.size - this.buffer.position();
+            min = Math.min(length, this.buffer.remaining());
             this.buffer.get(buffer, offset, min);
-            if (this.buffer.position() >= bufferInfo.size)
+            if (!this.buffer.hasRemaining())
             {
-                mediaCodec.releaseOutputBuffer(index, false);
+                encoder.releaseOutputBuffer(index);
                 this.buffer = null;
             }
         }
@@ -100,11 +74,100 @@ public class MediaCodecInputStream extends InputStream
         return min;
     }
 
+    /**
+     * Returns the next output buffer of the encoder without copying it, its position and its limit delimit the data.
+     * See {@link #getLastBufferInfo()} for its presentation time and its flags.
+     * The buffer belongs to the encoder until {@link #releaseBuffer()} is called.
+     */
+    public ByteBuffer readBuffer() throws IOException
+    {
+        if (buffer == null)
+        {
+            try
+            {
+                dequeue();
+            }
+            catch (RuntimeException e)
+            {
+                throw new IOException("Dequeuing an output buffer threw", e);
+            }
+        }
+
+        if (closed)
+        {
+            throw new IOException("This InputStream was closed");
+        }
+
+        if (buffer == null)
+        {
+            throw new InterruptedIOException();
+        }
+
+        return buffer;
+    }
+
+    /** Gives the buffer returned by {@link #readBuffer()} back to the encoder. */
+    public void releaseBuffer()
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+
+        buffer = null;
+        try
+        {
+            encoder.releaseOutputBuffer(index);
+        }
+        catch (RuntimeException e)
+        {
+            // The encoder was stopped in the meantime
+            Log.e(TAG, "Releasing the buffer threw", e);
+        }
+    }
+
+    private void dequeue()
+    {
+        while (!Thread.interrupted() && !closed)
+        {
+            // The thread is parked until the encoder fills a buffer, the timeout only lets it notice close()
+            try
+            {
+                index = encoder.dequeueOutputBuffer(bufferInfo, 500000);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            if (index >= 0)
+            {
+                buffer = encoder.getOutputBuffer(index);
+                buffer.limit(bufferInfo.offset + bufferInfo.size);
+                buffer.position(bufferInfo.offset);
+                break;
+            }
+            else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+            {
+                mediaFormat = encoder.getOutputFormat();
+                Log.i(TAG, mediaFormat.toString());
+            }
+            else if (index == MediaCodec.INFO_TRY_AGAIN_LATER)
+            {
+                Log.v(TAG,"No buffer available...");
+            }
+            else
+            {
+                Log.e(TAG,"Message: " + index);
+            }
+        }
+    }
+
     public int available()
     {
         if (buffer != null)
         {
-            return bufferInfo.size - buffer.position();
+            return buffer.remaining();
         }
 
         return 0;
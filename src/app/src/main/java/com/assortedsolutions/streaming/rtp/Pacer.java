@@ -0,0 +1,22 @@
+package com.assortedsolutions.streaming.rtp;
+
+/**
+ * Decides when the packets of an {@link RtpSocket} leave the socket.
+ * A pacer is called by the sender thread of the socket right before each packet is sent
+ * and blocks that thread until the packet may go. See {@link RtpSocket#setPacer(Pacer)}.
+ * The bytes it is given are those the packet puts on the wire, once for each destination it is sent to.
+ */
+public interface Pacer
+{
+    /**
+     * Blocks until the packet may be sent.
+     * @param length The length of the packet in bytes, times the number of destinations
+     * @param timestamp The timestamp in nanoseconds of the frame the packet belongs to
+     * @param frameBytes The bytes of the frame waiting in the FIFO, this packet included, times the number of destinations
+     * @throws InterruptedException
+     */
+    void pace(int length, long timestamp, int frameBytes) throws InterruptedException;
+
+    /** Forgets the state of the previous stream, called when the FIFO of the socket is reset. */
+    void reset();
+}
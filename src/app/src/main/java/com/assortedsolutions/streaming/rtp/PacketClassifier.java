@@ -0,0 +1,26 @@
+package com.assortedsolutions.streaming.rtp;
+
+/**
+ * Tells the {@link RtpSocket} how much a packet matters to the decoder,
+ * so that it can drop the right packets when its FIFO is full.
+ * See {@link RtpSocket#setCongestionPolicy(int)}.
+ */
+public interface PacketClassifier
+{
+    /** The packet belongs to a frame other frames depend on. */
+    int PACKET_REFERENCE = 0x00;
+
+    /** No other frame depends on the packet, it can be dropped without corrupting the stream. */
+    int PACKET_NON_REFERENCE = 0x01;
+
+    /** The decoder can start from this packet: a key frame, or the parameter sets preceding it. */
+    int PACKET_KEY_FRAME = 0x02;
+
+    /**
+     * Classifies a packet written by the packetizer.
+     * @param packet The RTP packet, header included
+     * @param length The length of the packet
+     * @return One of {@link #PACKET_REFERENCE}, {@link #PACKET_NON_REFERENCE} or {@link #PACKET_KEY_FRAME}
+     */
+    int classify(byte[] packet, int length);
+}
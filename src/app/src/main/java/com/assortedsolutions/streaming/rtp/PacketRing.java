@@ -0,0 +1,222 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring used as the FIFO of the {@link RtpSocket}.
+ * Only the head and tail sequences are shared between the two threads, the slots themselves
+ * are owned by the caller and indexed with the sequence modulo the capacity.
+ *
+ * A slot is published with a release store of the tail and freed with a release store of the head,
+ * the other side reads them with an acquire load. A waiting thread busy-spins a little before parking.
+ */
+class PacketRing
+{
+    public final static String TAG = "PacketRing";
+
+    /**
+     * A publish only uses a release store so a wake up can be missed, parking is bounded
+     * to keep the cost of such a race small.
+     */
+    private static final long MAX_PARK_NANOS = 1000000;
+
+    private final int capacity;
+
+    /** Sequence of the next slot the consumer will read, only written by the consumer. */
+    private final Sequence head = new Sequence();
+
+    /** Sequence of the next slot the producer will publish, only written by the producer. */
+    private final Sequence tail = new Sequence();
+
+    // Local copies of the sequence owned by the other thread, they save a shared read most of the time
+    private long cachedHead = 0;
+    private long cachedTail = 0;
+
+    /**
+     * Sequence of the next slot the consumer will read, only used by the consumer.
+     * It runs ahead of the head when the consumer keeps slots it has read, see {@link #consume(int)}.
+     */
+    private long read = 0;
+
+    private volatile Thread waitingProducer = null;
+    private volatile Thread waitingConsumer = null;
+
+    private int spinCount = 100;
+
+    PacketRing(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Sets how many times a waiting thread checks the ring before parking.
+     * Set 0 to park right away.
+     */
+    void setSpinCount(int spinCount)
+    {
+        this.spinCount = spinCount;
+    }
+
+    /** Empties the ring. Must not be called while one of the two threads is using it. */
+    void reset()
+    {
+        head.set(0);
+        tail.set(0);
+        cachedHead = 0;
+        cachedTail = 0;
+        read = 0;
+    }
+
+    /** Returns the number of published slots not released yet, the slots kept by the consumer included. */
+    int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Producer side. Blocks until a slot can be written.
+     * @throws InterruptedException
+     */
+    void awaitFree() throws InterruptedException
+    {
+        long next = tail.get();
+        if (next - cachedHead < capacity)
+        {
+            return;
+        }
+
+        int spins = spinCount;
+        while (next - (cachedHead = head.get()) >= capacity)
+        {
+            if (spins > 0)
+            {
+                spins--;
+                continue;
+            }
+
+            waitingProducer = Thread.currentThread();
+            if (next - (cachedHead = head.get()) < capacity)
+            {
+                waitingProducer = null;
+                break;
+            }
+
+            LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            waitingProducer = null;
+
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /** Producer side. Returns true if {@link #awaitFree()} would not block. */
+    boolean hasFree()
+    {
+        long next = tail.get();
+        return next - cachedHead < capacity || next - (cachedHead = head.get()) < capacity;
+    }
+
+    /** Producer side. Makes the slot written after {@link #awaitFree()} visible to the consumer. */
+    void publish()
+    {
+        tail.lazySet(tail.get() + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+        {
+            // One wake up is enough, the next publish does not need to unpark the thread again
+            waitingConsumer = null;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer side. Blocks until at least one slot has been published.
+     * @return The number of slots that can be read, 0 if the timeout elapsed
+     * @throws InterruptedException
+     */
+    int awaitAvailable(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long next = read;
+        if (cachedTail - next > 0)
+        {
+            return (int) (cachedTail - next);
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int spins = spinCount;
+        while ((cachedTail = tail.get()) - next <= 0)
+        {
+            if (spins > 0)
+            {
+                spins--;
+                continue;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return 0;
+            }
+
+            waitingConsumer = Thread.currentThread();
+            if ((cachedTail = tail.get()) - next > 0)
+            {
+                waitingConsumer = null;
+                break;
+            }
+
+            LockSupport.parkNanos(this, remaining < MAX_PARK_NANOS ? remaining : MAX_PARK_NANOS);
+            waitingConsumer = null;
+
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+
+        return (int) (cachedTail - next);
+    }
+
+    /**
+     * Consumer side. Marks count slots as read without handing them back to the producer,
+     * they must be released later with {@link #release(int)}.
+     */
+    void consume(int count)
+    {
+        read += count;
+    }
+
+    /** Consumer side. Hands the count oldest slots read back to the producer. */
+    void release(int count)
+    {
+        head.lazySet(head.get() + count);
+
+        Thread producer = waitingProducer;
+        if (producer != null)
+        {
+            // One wake up is enough, the next publish does not need to unpark the thread again
+            waitingProducer = null;
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * A sequence padded so that the head and the tail never share a cache line,
+     * otherwise each write of the producer would invalidate the line read by the consumer.
+     */
+    @SuppressWarnings("unused")
+    private static class Sequence extends AtomicLong
+    {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
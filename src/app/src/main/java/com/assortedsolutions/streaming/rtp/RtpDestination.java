@@ -0,0 +1,315 @@
+package com.assortedsolutions.streaming.rtp;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import com.assortedsolutions.streaming.rtcp.NackListener;
+import com.assortedsolutions.streaming.rtcp.ReceiverStatistics;
+import com.assortedsolutions.streaming.rtcp.SenderReport;
+
+/**
+ * A receiver of the packets of an {@link RtpSocket}.
+ * All the destinations of a socket share the packets written by the packetizer,
+ * only the SSRC, the sequence number and the timestamp are rewritten for each of them
+ * right before the packet is sent. That way adding a viewer does not add an encoder.
+ */
+public class RtpDestination implements NackListener
+{
+    public final static String TAG = "RtpDestination";
+
+    private static final Random random = new Random();
+
+    private final RtpSocket socket;
+    private final InetSocketAddress address;
+    private final SenderReport senderReport;
+    private final int rtcpPort;
+    private final int ssrc;
+    private final int sequenceOffset;
+    private final long timestampOffset;
+    private final InterleavedWriter writer;
+    private final int rtpChannel;
+    private final SrtpContext srtp;
+
+    // The retransmissions are sent with their own SSRC and sequence numbers, see RFC 4588
+    private final int rtxSsrc = random.nextInt();
+    private int rtxSequence = random.nextInt() & 0xFFFF;
+
+    // And so are the parity packets of the forward error correction
+    private final int fecSsrc = random.nextInt();
+    private int fecSequence = random.nextInt() & 0xFFFF;
+
+    // Nothing is sent until a key frame starts, the time it took is measured from when the wait began
+    private volatile boolean waitingKeyFrame = true;
+    private volatile long waitStart = System.nanoTime();
+    private volatile long timeToFirstFrame = -1;
+
+    // The next packet of the GOP cache to send while the destination catches up with the stream
+    private volatile int gopPosition = 0;
+
+    RtpDestination(RtpSocket socket, InetAddress address, int rtpPort, int rtcpPort, int ssrc, int sequenceOffset, long timestampOffset, SenderReport senderReport, SrtpContext srtp)
+    {
+        this.socket = socket;
+        this.address = new InetSocketAddress(address, rtpPort);
+        this.rtcpPort = rtcpPort;
+        this.ssrc = ssrc;
+        this.sequenceOffset = sequenceOffset;
+        this.timestampOffset = timestampOffset;
+        this.senderReport = senderReport;
+        this.writer = null;
+        this.rtpChannel = -1;
+        this.srtp = srtp;
+
+        senderReport.setSSRC(ssrc);
+        senderReport.setSrtpContext(srtp);
+        senderReport.setMediaClock(socket.getMediaClock(), timestampOffset);
+        senderReport.setNackListener(this);
+        senderReport.setDestination(address, rtcpPort);
+    }
+
+    /** A destination receiving the packets interleaved in its RTSP connection. */
+    RtpDestination(RtpSocket socket, InterleavedWriter writer, int rtpChannel, int rtcpChannel, int ssrc, int sequenceOffset, long timestampOffset, SenderReport senderReport, SrtpContext srtp)
+    {
+        this.socket = socket;
+        this.address = new InetSocketAddress(writer.getAddress(), 0);
+        this.rtcpPort = rtcpChannel;
+        this.ssrc = ssrc;
+        this.sequenceOffset = sequenceOffset;
+        this.timestampOffset = timestampOffset;
+        this.senderReport = senderReport;
+        this.writer = writer;
+        this.rtpChannel = rtpChannel;
+        this.srtp = srtp;
+
+        senderReport.setSSRC(ssrc);
+        senderReport.setSrtpContext(srtp);
+        senderReport.setMediaClock(socket.getMediaClock(), timestampOffset);
+        senderReport.setNackListener(this);
+        senderReport.setInterleavedWriter(writer, rtcpChannel);
+    }
+
+    /** Returns either {@link RtpSocket#TRANSPORT_UDP} or {@link RtpSocket#TRANSPORT_TCP}. */
+    public int getTransport()
+    {
+        return writer == null ? RtpSocket.TRANSPORT_UDP : RtpSocket.TRANSPORT_TCP;
+    }
+
+    /**
+     * Returns the interleaved channel identifiers used for RTP and RTCP,
+     * or null if the packets are not sent over TCP.
+     */
+    public int[] getInterleavedChannels()
+    {
+        return writer == null ? null : new int[] {rtpChannel, rtcpPort};
+    }
+
+    public InetAddress getAddress()
+    {
+        return address.getAddress();
+    }
+
+    public int getRtpPort()
+    {
+        return address.getPort();
+    }
+
+    public int getRtcpPort()
+    {
+        return rtcpPort;
+    }
+
+    /** Returns the SSRC of the stream as seen by this destination. */
+    public int getSSRC()
+    {
+        return ssrc;
+    }
+
+    /**
+     * Returns a pair of source ports, the first one is the
+     * one used for RTP and the second one is used for RTCP.
+     **/
+    public int[] getLocalPorts()
+    {
+        return new int[]
+        {
+            socket.getLocalPorts()[0],
+            senderReport.getLocalPort()
+        };
+    }
+
+    /**
+     * Returns what the receiver reported about the stream in its RTCP Receiver Reports.
+     * @return Snapshots of the statistics, empty until the first report arrives
+     */
+    public List<ReceiverStatistics> getReceiverStatistics()
+    {
+        return senderReport.getReceiverStatistics();
+    }
+
+    /**
+     * Stops sending to the destination until the next key frame starts, called when the client starts playing
+     * so that the first packet it receives can be decoded. It also restarts the measure of the time to first frame.
+     */
+    public void awaitKeyFrame()
+    {
+        waitStart = System.nanoTime();
+        timeToFirstFrame = -1;
+        gopPosition = 0;
+        waitingKeyFrame = true;
+    }
+
+    /**
+     * Returns the time in milliseconds between the start of the wait for a key frame and the first packet sent,
+     * or -1 if the destination is still waiting.
+     */
+    public long getTimeToFirstFrame()
+    {
+        return timeToFirstFrame;
+    }
+
+    /** Returns the sequence number of the first packet this destination receives once it plays, for the RTP-Info header. */
+    public int getFirstSequence()
+    {
+        return getSequence(socket.getFirstSequence());
+    }
+
+    /** Returns the RTP timestamp of the first packet this destination receives once it plays, for the RTP-Info header. */
+    public long getFirstTimestamp()
+    {
+        return getTimestamp(socket.getFirstTimestamp());
+    }
+
+    /** Hands a RTCP packet the receiver interleaved in its RTSP connection. */
+    public void receiveRtcp(byte[] packet, int length)
+    {
+        senderReport.receive(packet, length);
+    }
+
+    /** Returns the SSRC of the retransmissions sent to this destination. */
+    public int getRtxSSRC()
+    {
+        return rtxSsrc;
+    }
+
+    /** Returns the SSRC of the parity packets sent to this destination. */
+    public int getFecSSRC()
+    {
+        return fecSsrc;
+    }
+
+    /** The receiver lost a packet, the socket sends it again if it is still in its history. */
+    @Override
+    public void onNack(int sequence)
+    {
+        socket.requestRetransmission(this, (sequence - sequenceOffset) & 0xFFFF);
+    }
+
+    boolean isWaitingKeyFrame()
+    {
+        return waitingKeyFrame;
+    }
+
+    /**
+     * Called by the socket when it sends the first packet of the key frame the destination was waiting for,
+     * or once it has caught up with the stream from the GOP cache.
+     */
+    void onKeyFrame()
+    {
+        waitingKeyFrame = false;
+        gopPosition = 0;
+        timeToFirstFrame = (System.nanoTime() - waitStart) / 1000000;
+        Log.d(TAG, "First frame sent to " + address + " after " + timeToFirstFrame + " ms");
+    }
+
+    int getGopPosition()
+    {
+        return gopPosition;
+    }
+
+    void setGopPosition(int position)
+    {
+        gopPosition = position;
+    }
+
+    /** Returns the sequence number of the next retransmission. */
+    int nextRtxSequence()
+    {
+        rtxSequence = (rtxSequence + 1) & 0xFFFF;
+        return rtxSequence;
+    }
+
+    /** Returns the sequence number of the next parity packet. */
+    int nextFecSequence()
+    {
+        fecSequence = (fecSequence + 1) & 0xFFFF;
+        return fecSequence;
+    }
+
+    /** Converts a sequence number of the stream into the sequence number seen by this destination. */
+    int getSequence(int sequence)
+    {
+        return (sequence + sequenceOffset) & 0xFFFF;
+    }
+
+    /** Returns the context protecting the packets sent to this destination, null if they are sent in the clear. */
+    SrtpContext getSrtpContext()
+    {
+        return srtp;
+    }
+
+    InetSocketAddress getSocketAddress()
+    {
+        return address;
+    }
+
+    InterleavedWriter getWriter()
+    {
+        return writer;
+    }
+
+    int getRtpChannel()
+    {
+        return rtpChannel;
+    }
+
+    SenderReport getSenderReport()
+    {
+        return senderReport;
+    }
+
+    long getTimestampOffset()
+    {
+        return timestampOffset;
+    }
+
+    /** Converts a timestamp of the stream into the timestamp seen by this destination. */
+    long getTimestamp(long timestamp)
+    {
+        return (timestamp + timestampOffset) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Writes the sequence number, the timestamp and the SSRC of the packet as this destination expects them.
+     * @param buffer The packet
+     * @param sequence The sequence number of the packet in the stream
+     * @param timestamp The RTP timestamp of the packet in the stream
+     */
+    void rewriteHeader(byte[] buffer, int sequence, long timestamp)
+    {
+        int s = sequence + sequenceOffset;
+        long t = timestamp + timestampOffset;
+
+        buffer[2] = (byte) (s >> 8);
+        buffer[3] = (byte) s;
+        buffer[4] = (byte) (t >> 24);
+        buffer[5] = (byte) (t >> 16);
+        buffer[6] = (byte) (t >> 8);
+        buffer[7] = (byte) t;
+        buffer[8] = (byte) (ssrc >> 24);
+        buffer[9] = (byte) (ssrc >> 16);
+        buffer[10] = (byte) (ssrc >> 8);
+        buffer[11] = (byte) ssrc;
+    }
+}
@@ -1,13 +1,22 @@
 package com.assortedsolutions.streaming.rtp;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import com.assortedsolutions.streaming.rtcp.ReceiverStatistics;
 import com.assortedsolutions.streaming.rtcp.SenderReport;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -15,47 +24,142 @@ import android.util.Log;
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The FIFO is a lock-free {@link PacketRing}, the packetizer is its only producer
+ * and the Thread of the socket its only consumer.
  */
 public class RtpSocket implements Runnable
 {
     public static final String TAG = "RtpSocket";
 
-    /** Use this to use UDP for the transport protocol. */
+    /** The packets of the destination are sent over UDP. */
     public final static int TRANSPORT_UDP = 0x00;
 
-    /** Use this to use TCP for the transport protocol. */
+    /** The packets of the destination are interleaved in its RTSP connection, see {@link InterleavedWriter}. */
     public final static int TRANSPORT_TCP = 0x01;
 
+    /** The packetizer waits for room in the FIFO, nothing is dropped. */
+    public final static int CONGESTION_BLOCK = 0x00;
+
+    /** Whole non-reference frames are dropped when the FIFO is full, the packetizer waits for the other frames. */
+    public final static int CONGESTION_DROP_NON_REFERENCE = 0x01;
+
+    /**
+     * Whole non-reference frames are dropped when the FIFO is full, and if a reference frame does not fit
+     * everything is dropped up to the next key frame. Only key frames make the packetizer wait.
+     */
+    public final static int CONGESTION_DROP_UNTIL_KEY_FRAME = 0x02;
+
+    /** Use this to send the packets one by one with a {@link MulticastSocket}. */
+    public final static int EGRESS_SOCKET = 0x00;
+
+    /**
+     * Use this to send all the packets waiting in the FIFO in one go with
+     * a non-blocking {@link DatagramChannel} and direct buffers.
+     */
+    public final static int EGRESS_CHANNEL = 0x01;
+
     public static final int RTP_HEADER_LENGTH = 12;
+
+    /** Payload type of the retransmissions, see RFC 4588. */
+    public static final int RTX_PAYLOAD_TYPE = 97;
+
+    /** Payload type of the parity packets of the forward error correction, see RFC 5109. */
+    public static final int FEC_PAYLOAD_TYPE = 98;
     public static final int MTU = 1300;
 
+    /** Number of cached packets sent to a viewer joining the stream for each packet of the stream, see setGopCache(). */
+    private static final int GOP_BURST = 4;
+
+    /** Default size of the send buffer of the channel, room for a few large frames. */
+    private static final int SEND_BUFFER_SIZE = 256 * 1024;
+
+    /** How long the sender thread waits for room in the send buffer of the channel, in ms. */
+    private static final long SEND_TIMEOUT = 100;
+
     private MulticastSocket multicastSocket;
     private DatagramPacket[] datagramPackets;
     private byte[][] buffers;
     private long[] timestamps;
+    private long[] rtpTimestamps;
+    private int[] sequences;
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private ByteBuffer[] directBuffers;
+    private boolean directBacked = false;
+    private Pacer pacer = null;
+    private long pacedTimestamp = 0;
+    private int frameBytes = 0;
+
+    private volatile RtpDestination[] destinations = new RtpDestination[0];
+    private RtpDestination defaultDestination;
+    private final Random random = new Random();
+    private int egressMode = EGRESS_SOCKET;
+    private int timeToLive = 64;
+
+    private long batchCount = 0;
+    private long batchedPackets = 0;
+    private int largestBatch = 0;
+    private long blockedSends = 0;
+    private long droppedSends = 0;
 
     private SenderReport senderReport;
 
-    private Semaphore bufferRequested;
-    private Semaphore bufferCommitted;
+    private PacketRing ring;
     private Thread thread;
 
-    private int transport;
     private long cacheSize;
     private long clock = 0;
+    private MediaClock mediaClock = new MediaClock();
     private long oldTimestamp = 0;
+    private boolean keyFrameSent = false;
     private int ssrc;
     private int seq = 0;
     private int bufferCount;
     private int bufferIn;
     private int bufferOut;
-    private int count = 0;
-    private byte tcpHeader[];
-
-    protected OutputStream outputStream = null;
 
     private AverageBitrate averageBitrate;
 
+    private PacketClassifier classifier = null;
+    private int congestionPolicy = CONGESTION_DROP_UNTIL_KEY_FRAME;
+
+    // Slot in which a packet is written when the FIFO is full, it is only moved to the FIFO if it is worth waiting for
+    private int overflowIndex;
+    private int reservedIndex;
+    private boolean overflow = false;
+
+    // Packets kept after being sent so that they can be sent again, see setRetransmissionHistory()
+    private int historySize = 0;
+    private long historyAge = 0;
+    private int historyBytes = 0;
+    private volatile int retained = 0;
+    private long retainedBytes = 0;
+    private long[] sendTimes;
+    private final ArrayBlockingQueue<Retransmission> retransmissions = new ArrayBlockingQueue<>(256);
+
+    // Retransmissions and parity packets are built in this buffer, one destination at a time
+    private final byte[] repairBuffer = new byte[MTU + FecEncoder.HEADER_LENGTH];
+    private final ByteBuffer repairView = ByteBuffer.wrap(repairBuffer);
+    private final DatagramPacket repairPacket = new DatagramPacket(repairBuffer, 1);
+
+    // Forward error correction, see setForwardErrorCorrection()
+    private final FecEncoder fec = new FecEncoder(this);
+    private ByteBuffer[] views;
+    private long retransmittedPackets = 0;
+    private long missedRetransmissions = 0;
+
+    // Packets of the current GOP, sent to the viewers joining the stream, see setGopCache()
+    private volatile GopCache gopCache = null;
+    private long cachedPacketsSent = 0;
+
+    private boolean waitingKeyFrame = false;
+    private long droppedTimestamp = -1;
+    private long committedTimestamp = -1;
+    private long droppedPackets = 0;
+    private long droppedFrames = 0;
+    private long keyFrameWaits = 0;
+
     /**
      * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
      * @throws IOException
@@ -63,19 +167,22 @@ public class RtpSocket implements Runnable
     public RtpSocket()
     {
         cacheSize = 0;
-        bufferCount = 300; // TODO: readjust that when the FIFO is full
-        buffers = new byte[bufferCount][];
-        datagramPackets = new DatagramPacket[bufferCount];
+        bufferCount = 300;
+        overflowIndex = bufferCount;
+        buffers = new byte[bufferCount + 1][];
+        views = new ByteBuffer[bufferCount + 1];
+        datagramPackets = new DatagramPacket[bufferCount + 1];
         senderReport = new SenderReport();
+        senderReport.setMediaClock(mediaClock, 0);
         averageBitrate = new AverageBitrate();
-        transport = TRANSPORT_UDP;
-        tcpHeader = new byte[] { '$', 0, 0, 0 };
+        ring = new PacketRing(bufferCount);
 
         resetFifo();
 
-        for (int i = 0; i < bufferCount; i++)
+        for (int i = 0; i < buffers.length; i++)
         {
             buffers[i] = new byte[MTU];
+            views[i] = ByteBuffer.wrap(buffers[i]);
             datagramPackets[i] = new DatagramPacket(buffers[i], 1);
 
             /*							     Version(2)  Padding(0)					 					*/
@@ -107,31 +214,170 @@ public class RtpSocket implements Runnable
 
     private void resetFifo()
     {
-        count = 0;
         bufferIn = 0;
         bufferOut = 0;
-        timestamps = new long[bufferCount];
-        bufferRequested = new Semaphore(bufferCount);
-        bufferCommitted = new Semaphore(0);
+        timestamps = new long[bufferCount + 1];
+        rtpTimestamps = new long[bufferCount + 1];
+        sequences = new int[bufferCount + 1];
+        sendTimes = new long[bufferCount + 1];
+        retained = 0;
+        retainedBytes = 0;
+        retransmissions.clear();
+        fec.reset();
+        if (gopCache != null)
+        {
+            gopCache.invalidate();
+        }
+
+        overflow = false;
+        waitingKeyFrame = false;
+        droppedTimestamp = -1;
+        committedTimestamp = -1;
+        ring.reset();
         senderReport.reset();
         averageBitrate.reset();
+        pacedTimestamp = 0;
+        frameBytes = 0;
+        keyFrameSent = false;
+
+        if (pacer != null)
+        {
+            pacer.reset();
+        }
+
+        for (RtpDestination destination : destinations)
+        {
+            destination.getSenderReport().reset();
+        }
     }
 
     /** Closes the underlying socket. */
-    public void close() {
+    public void close()
+    {
         multicastSocket.close();
+
+        for (RtpDestination destination : destinations)
+        {
+            if (destination != defaultDestination)
+            {
+                destination.getSenderReport().close();
+            }
+        }
+
+        if (channel != null)
+        {
+            try
+            {
+                selector.close();
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                Log.e(TAG, "Closing the channel threw", e);
+            }
+        }
+    }
+
+    /**
+     * Selects how packets are written to the network, either {@link #EGRESS_SOCKET} or {@link #EGRESS_CHANNEL}.
+     * Must be called before the first buffer is requested.
+     * @throws IOException The channel could not be opened
+     */
+    public void setEgressMode(int mode) throws IOException
+    {
+        if (mode == EGRESS_CHANNEL && channel == null)
+        {
+            openChannel();
+        }
+
+        egressMode = mode;
+    }
+
+    /** Returns the egress mode set with {@link #setEgressMode(int)}. */
+    public int getEgressMode()
+    {
+        return egressMode;
+    }
+
+    /**
+     * Sets the size of the send buffer of the channel used by {@link #EGRESS_CHANNEL}.
+     * @param size The size in bytes
+     */
+    public void setSendBufferSize(int size) throws IOException
+    {
+        if (channel == null)
+        {
+            throw new IllegalStateException("The channel egress mode is not enabled");
+        }
+
+        channel.socket().setSendBufferSize(size);
+    }
+
+    private void openChannel() throws IOException
+    {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(null);
+        channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_WRITE);
+        applyTimeToLive();
+
+        directBuffers = new ByteBuffer[bufferCount];
+        directBacked = true;
+        for (int i = 0; i < bufferCount; i++)
+        {
+            directBuffers[i] = ByteBuffer.allocateDirect(MTU);
+            directBacked &= directBuffers[i].hasArray() && directBuffers[i].arrayOffset() == 0;
+        }
+
+        // On ART a direct buffer is backed by a non-movable array, the packetizers can then write straight into it.
+        // Otherwise packets are copied into the direct buffers right before being sent.
+        if (directBacked)
+        {
+            for (int i = 0; i < bufferCount; i++)
+            {
+                System.arraycopy(buffers[i], 0, directBuffers[i].array(), 0, MTU);
+                buffers[i] = directBuffers[i].array();
+                views[i] = ByteBuffer.wrap(buffers[i]);
+                datagramPackets[i].setData(buffers[i]);
+            }
+        }
+    }
+
+    private void applyTimeToLive() throws IOException
+    {
+        // The option can only be set on a DatagramChannel since Android N
+        if (channel != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+        {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+        }
     }
 
     /** Sets the SSRC of the stream. */
     public void setSSRC(int ssrc)
     {
         this.ssrc = ssrc;
-        for (int i = 0; i < bufferCount; i++)
+        for (int i = 0; i < buffers.length; i++)
         {
             setLong(buffers[i], ssrc,8,12);
         }
 
         senderReport.setSSRC(this.ssrc);
+
+        if (defaultDestination != null)
+        {
+            setDestination(defaultDestination.getAddress(), defaultDestination.getRtpPort(), defaultDestination.getRtcpPort());
+        }
+    }
+
+    /** Sets the payload type of the packets, 96 by default. */
+    public void setPayloadType(int payloadType)
+    {
+        for (int i = 0; i < buffers.length; i++)
+        {
+            buffers[i][1] = (byte) (payloadType & 0x7F);
+        }
     }
 
     /** Returns the SSRC of the stream. */
@@ -139,9 +385,48 @@ public class RtpSocket implements Runnable
         return ssrc;
     }
 
+    /**
+     * Sets the clock the capture times are measured with, the receivers can synchronize streams sharing a clock.
+     * Must be called before the stream starts.
+     */
+    public synchronized void setMediaClock(MediaClock mediaClock)
+    {
+        this.mediaClock = mediaClock;
+        senderReport.setMediaClock(mediaClock, 0);
+        for (RtpDestination destination : destinations)
+        {
+            destination.getSenderReport().setMediaClock(mediaClock, destination.getTimestampOffset());
+        }
+    }
+
+    public MediaClock getMediaClock()
+    {
+        return mediaClock;
+    }
+
     /** Sets the clock frequency of the stream in Hz. */
-    public void setClockFrequency(long clock) {
+    public synchronized void setClockFrequency(long clock) {
         this.clock = clock;
+        senderReport.setClockFrequency(clock);
+        for (RtpDestination destination : destinations)
+        {
+            destination.getSenderReport().setClockFrequency(clock);
+        }
+    }
+
+    /**
+     * Returns what the receivers of all the destinations reported about the stream.
+     * @return Snapshots of the statistics, one per receiver
+     */
+    public List<ReceiverStatistics> getReceiverStatistics()
+    {
+        List<ReceiverStatistics> statistics = new ArrayList<>();
+        for (RtpDestination destination : destinations)
+        {
+            statistics.addAll(destination.getReceiverStatistics());
+        }
+
+        return statistics;
     }
 
     /** Sets the size of the FIFO in ms. */
@@ -149,33 +434,169 @@ public class RtpSocket implements Runnable
         this.cacheSize = cacheSize;
     }
 
+    /**
+     * Sets the {@link Pacer} that decides when each packet leaves the socket, null to send the packets
+     * as soon as they are committed. Must be called before the packetizer is started.
+     * The pacer is charged for the bytes sent to all the destinations, its rate is the rate of the whole socket.
+     */
+    public void setPacer(Pacer pacer)
+    {
+        this.pacer = pacer;
+    }
+
+    public Pacer getPacer()
+    {
+        return pacer;
+    }
+
+    /**
+     * Sets how many times the packetizer and the sender thread check the FIFO before parking.
+     * Set 0 to park right away.
+     */
+    public void setSpinCount(int spinCount)
+    {
+        ring.setSpinCount(spinCount);
+    }
+
     /** Sets the Time To Live of the UDP packets. */
     public void setTimeToLive(int ttl) throws IOException
     {
+        timeToLive = ttl;
         multicastSocket.setTimeToLive(ttl);
+        applyTimeToLive();
     }
 
-    /** Sets the destination address and to which the packets will be sent. */
-    public void setDestination(InetAddress dest, int dport, int rtcpPort)
+    /**
+     * Sets the destination address and to which the packets will be sent.
+     * This is the default destination of the socket, it uses the SSRC of the socket.
+     * More destinations can be added with {@link #addDestination(InetAddress, int, int, SrtpContext)}.
+     */
+    public synchronized void setDestination(InetAddress dest, int dport, int rtcpPort)
     {
-        if (dport != 0 && rtcpPort != 0)
+        if (dest != null && dport != 0 && rtcpPort != 0)
         {
-            transport = TRANSPORT_UDP;
-            for (int i = 0; i < bufferCount; i++)
+            RtpDestination destination = new RtpDestination(this, dest, dport, rtcpPort, ssrc, 0, 0, senderReport, null);
+            if (defaultDestination != null)
+            {
+                removeDestination(defaultDestination);
+            }
+
+            defaultDestination = destination;
+            appendDestination(destination);
+        }
+    }
+
+    /**
+     * Adds a destination to the socket. It receives the same packets as the other destinations,
+     * with its own SSRC, sequence numbers and timestamps, and its own RTCP Sender Reports.
+     * @param dest The destination address
+     * @param rtpPort Destination port that will be used for RTP
+     * @param rtcpPort Destination port that will be used for RTCP
+     * @param srtp Protects the packets sent to this destination, null to send them in the clear
+     * @return The destination, to pass to {@link #removeDestination(RtpDestination)} when it leaves
+     */
+    public synchronized RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort, SrtpContext srtp)
+    {
+        RtpDestination destination = new RtpDestination(
+            this,
+            dest,
+            rtpPort,
+            rtcpPort,
+            random.nextInt(),
+            random.nextInt() & 0xFFFF,
+            random.nextInt() & 0xFFFFFFFFL,
+            new SenderReport(),
+            srtp);
+
+        destination.getSenderReport().setClockFrequency(clock);
+        appendDestination(destination);
+        return destination;
+    }
+
+    /**
+     * Adds a destination receiving the packets interleaved in its RTSP connection.
+     * A client that does not read fast enough loses packets, it never slows down the other destinations.
+     * @param writer The writer of the RTSP connection of the client
+     * @param rtpChannel Interleaved channel identifier that will be used for RTP
+     * @param rtcpChannel Interleaved channel identifier that will be used for RTCP
+     * @param srtp Protects the packets sent to this destination, null to send them in the clear
+     * @return The destination, to pass to {@link #removeDestination(RtpDestination)} when it leaves
+     */
+    public synchronized RtpDestination addDestination(InterleavedWriter writer, int rtpChannel, int rtcpChannel, SrtpContext srtp)
+    {
+        RtpDestination destination = new RtpDestination(
+            this,
+            writer,
+            rtpChannel,
+            rtcpChannel,
+            random.nextInt(),
+            random.nextInt() & 0xFFFF,
+            random.nextInt() & 0xFFFFFFFFL,
+            new SenderReport(),
+            srtp);
+
+        destination.getSenderReport().setClockFrequency(clock);
+        appendDestination(destination);
+        return destination;
+    }
+
+    /** Stops sending packets to the destination. */
+    public synchronized void removeDestination(RtpDestination destination)
+    {
+        RtpDestination[] current = destinations;
+        if (current.length == 0)
+        {
+            return;
+        }
+
+        RtpDestination[] updated = new RtpDestination[current.length - 1];
+        for (int i = 0, j = 0; i < current.length; i++)
+        {
+            if (current[i] != destination)
             {
-                datagramPackets[i].setPort(dport);
-                datagramPackets[i].setAddress(dest);
+                if (j == updated.length)
+                {
+                    // The destination does not belong to this socket
+                    return;
+                }
+
+                updated[j++] = current[i];
             }
+        }
+
+        destinations = updated;
 
-            senderReport.setDestination(dest, rtcpPort);
+        if (destination == defaultDestination)
+        {
+            defaultDestination = null;
         }
+        else
+        {
+            destination.getSenderReport().close();
+        }
+    }
+
+    /** Returns the number of destinations the packets are sent to. */
+    public int getDestinationCount()
+    {
+        return destinations.length;
+    }
+
+    // The array is replaced rather than modified so that the sender thread can iterate over it without locking
+    private void appendDestination(RtpDestination destination)
+    {
+        RtpDestination[] current = destinations;
+        RtpDestination[] updated = new RtpDestination[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = destination;
+        destinations = updated;
     }
 
     public int[] getLocalPorts()
     {
         return new int[]
         {
-            multicastSocket.getLocalPort(),
+            egressMode == EGRESS_CHANNEL ? channel.socket().getLocalPort() : multicastSocket.getLocalPort(),
             senderReport.getLocalPort()
         };
     }
@@ -187,7 +608,18 @@ public class RtpSocket implements Runnable
      **/
     public byte[] requestBuffer() throws InterruptedException
     {
-        bufferRequested.acquire();
+        if (classifier != null && congestionPolicy != CONGESTION_BLOCK && !ring.hasFree())
+        {
+            // The FIFO is full, commitBuffer() decides once the packet is written whether it is worth waiting for a slot
+            reservedIndex = bufferIn;
+            bufferIn = overflowIndex;
+            overflow = true;
+        }
+        else
+        {
+            ring.awaitFree();
+        }
+
         buffers[bufferIn][1] &= 0x7F;
         return buffers[bufferIn];
     }
@@ -201,17 +633,41 @@ public class RtpSocket implements Runnable
             thread.start();
         }
 
+        if (overflow)
+        {
+            bufferIn = reservedIndex;
+            overflow = false;
+            return;
+        }
+
+        // An empty packet is skipped by the sender thread
+        datagramPackets[bufferIn].setLength(0);
+
         if (++bufferIn >= bufferCount)
         {
             bufferIn = 0;
         }
 
-        bufferCommitted.release();
+        ring.publish();
     }
 
     /** Sends the RTP packet over the network. */
     public void commitBuffer(int length)
     {
+        if (classifier != null && congestionPolicy != CONGESTION_BLOCK && (dropPacket(length) || overflow && !moveOverflow(length)))
+        {
+            // The dropped packet still takes a sequence number, the receivers see the gap and report the loss
+            seq = (seq + 1) & 0xFFFF;
+            droppedPackets++;
+            if (overflow)
+            {
+                bufferIn = reservedIndex;
+                overflow = false;
+            }
+
+            return;
+        }
+
         updateSequence();
         datagramPackets[bufferIn].setLength(length);
 
@@ -222,7 +678,7 @@ public class RtpSocket implements Runnable
             bufferIn = 0;
         }
 
-        bufferCommitted.release();
+        ring.publish();
 
         if (thread == null)
         {
@@ -231,16 +687,312 @@ public class RtpSocket implements Runnable
         }
     }
 
+    /**
+     * Decides whether the packet is dropped, see {@link #setCongestionPolicy(int)}.
+     * Packets are dropped a frame at a time: once a packet of a frame is dropped, the rest of the frame follows.
+     * The packets of the frame already in the FIFO are sent anyway, a frame can only be held back whole when it is dropped
+     * at its first packet, which is what happens to non-reference frames while the FIFO is nearly full.
+     */
+    private boolean dropPacket(int length)
+    {
+        int type = classifier.classify(buffers[bufferIn], length);
+        long timestamp = timestamps[bufferIn];
+
+        if (waitingKeyFrame)
+        {
+            if (type != PacketClassifier.PACKET_KEY_FRAME)
+            {
+                return dropFrame(timestamp);
+            }
+
+            // The parameter sets or an SEI sharing the timestamp of the key frame may have been dropped before it
+            waitingKeyFrame = false;
+            droppedTimestamp = -1;
+        }
+
+        if (timestamp == droppedTimestamp)
+        {
+            return true;
+        }
+
+        // Non-reference frames are dropped as soon as the FIFO is nearly full, while they can still be dropped whole
+        boolean frameStart = timestamp != committedTimestamp;
+        if (type == PacketClassifier.PACKET_NON_REFERENCE && (overflow || frameStart && ring.size() - retained >= bufferCount * 3 / 4))
+        {
+            return dropFrame(timestamp);
+        }
+
+        if (overflow && type == PacketClassifier.PACKET_REFERENCE && congestionPolicy == CONGESTION_DROP_UNTIL_KEY_FRAME)
+        {
+            // The frames following this one could not be decoded anyway
+            waitingKeyFrame = true;
+            keyFrameWaits++;
+            return dropFrame(timestamp);
+        }
+
+        committedTimestamp = timestamp;
+        return false;
+    }
+
+    private boolean dropFrame(long timestamp)
+    {
+        if (timestamp != droppedTimestamp)
+        {
+            droppedTimestamp = timestamp;
+            droppedFrames++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits for a slot in the FIFO and moves the packet written while the FIFO was full into it.
+     * @return False if the packetizer was interrupted while waiting
+     */
+    private boolean moveOverflow(int length)
+    {
+        try
+        {
+            ring.awaitFree();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        System.arraycopy(buffers[overflowIndex], 0, buffers[reservedIndex], 0, length);
+        timestamps[reservedIndex] = timestamps[overflowIndex];
+        rtpTimestamps[reservedIndex] = rtpTimestamps[overflowIndex];
+        bufferIn = reservedIndex;
+        overflow = false;
+        return true;
+    }
+
+    /**
+     * Sets what happens when the network does not keep up and the FIFO is full.
+     * Packets can only be dropped if the packetizer set a {@link PacketClassifier}, otherwise the packetizer waits.
+     * @param policy One of {@link #CONGESTION_BLOCK}, {@link #CONGESTION_DROP_NON_REFERENCE}
+     *               or {@link #CONGESTION_DROP_UNTIL_KEY_FRAME} (the default)
+     */
+    public void setCongestionPolicy(int policy)
+    {
+        congestionPolicy = policy;
+    }
+
+    public int getCongestionPolicy()
+    {
+        return congestionPolicy;
+    }
+
+    /** Sets the classifier used to pick the packets to drop when the FIFO is full. Called by the packetizer. */
+    public void setPacketClassifier(PacketClassifier classifier)
+    {
+        this.classifier = classifier;
+    }
+
+    /**
+     * Keeps the packets for a while after they are sent, to answer the Generic NACKs of the receivers with
+     * retransmissions (RFC 4588). The packets stay in the buffers of the FIFO, they are not copied,
+     * and the history gives its slots back first when the FIFO fills up.
+     * @param packets The maximum number of packets kept, 0 to disable retransmissions
+     * @param maxAge The time in ms after which a packet is not kept anymore
+     * @param maxBytes The maximum number of bytes kept
+     */
+    public void setRetransmissionHistory(int packets, long maxAge, int maxBytes)
+    {
+        historySize = Math.min(packets, bufferCount / 2);
+        historyAge = maxAge * 1000000L;
+        historyBytes = maxBytes;
+    }
+
+    /**
+     * Protects the packets sent with parity packets, for the receivers that are too far away for retransmissions.
+     * The packets are laid out in blocks of rows x columns, and each row and each column of a block gets a parity packet.
+     * Can be changed while streaming, for instance as the loss reported by the receivers evolves,
+     * the new layout is used from the next block on.
+     * @param columns The number of packets in a row, 0 to disable the forward error correction (the default)
+     * @param rows The number of rows in a block, 1 to only protect the rows
+     */
+    public void setForwardErrorCorrection(int columns, int rows)
+    {
+        fec.setLayout(columns, rows);
+    }
+
+    /** Returns true if the packets are protected by parity packets. */
+    public boolean isForwardErrorCorrectionEnabled()
+    {
+        return fec.getColumns() > 0;
+    }
+
+    /** Returns the ratio of parity packets to media packets of the current layout. */
+    public float getFecOverhead()
+    {
+        int columns = fec.getColumns();
+        int rows = fec.getRows();
+        if (columns == 0)
+        {
+            return 0;
+        }
+
+        return rows > 1 ? 1f / columns + 1f / rows : 1f / columns;
+    }
+
+    /** Returns the number of parity packets sent, each of them is sent to every destination. */
+    public long getParityPackets()
+    {
+        return fec.getParityPackets();
+    }
+
+    /**
+     * Keeps a copy of the packets since the last key frame, so that a viewer joining the running stream
+     * gets a picture right away: instead of waiting for the next key frame it is first sent the cached packets,
+     * a few of them along with each packet of the stream until it has caught up.
+     * Needs a {@link PacketClassifier} to find the key frames. Call it before the stream starts.
+     * @param maxBytes The budget of the cache, a GOP larger than that is not cached. 0 disables the cache (the default)
+     */
+    public void setGopCache(int maxBytes)
+    {
+        gopCache = maxBytes > 0 ? new GopCache(maxBytes) : null;
+    }
+
+    /** Whether a viewer joining now would be started with the packets of the GOP cache. */
+    public boolean hasCachedGop()
+    {
+        GopCache cache = gopCache;
+        return cache != null && cache.isValid();
+    }
+
+    /**
+     * Returns the sequence number in the stream of the first packet sent to a destination starting to play:
+     * the first packet of the GOP cache, or the next packet of the stream. The key frame a destination waits for
+     * when there is no cache starts with that packet or a later one.
+     */
+    int getFirstSequence()
+    {
+        GopCache cache = gopCache;
+        if (cache != null && cache.isValid() && cache.getCount() > 0)
+        {
+            return cache.getSequence(0);
+        }
+
+        return (seq + 1) & 0xFFFF;
+    }
+
+    /**
+     * Returns the RTP timestamp in the stream of the first packet sent to a destination starting to play,
+     * see {@link #getFirstSequence()}. Without a cache it is the time of the media clock now.
+     */
+    long getFirstTimestamp()
+    {
+        GopCache cache = gopCache;
+        if (cache != null && cache.isValid() && cache.getCount() > 0)
+        {
+            return cache.getTimestamp(0);
+        }
+
+        return mediaClock.getRtpTimestamp(System.nanoTime(), clock);
+    }
+
+    /** Returns the number of cached packets sent to the viewers joining the stream. */
+    public long getCachedPacketsSent()
+    {
+        return cachedPacketsSent;
+    }
+
+    /** Returns the number of packets sent again after a NACK. */
+    public long getRetransmittedPackets()
+    {
+        return retransmittedPackets;
+    }
+
+    /** Returns the number of packets a receiver asked for that had already left the history. */
+    public long getMissedRetransmissions()
+    {
+        return missedRetransmissions;
+    }
+
+    /** Called by the thread reading the RTCP packets of a destination, the packet is sent again by the sender thread. */
+    void requestRetransmission(RtpDestination destination, int sequence)
+    {
+        if (historySize > 0 && !retransmissions.offer(new Retransmission(destination, sequence)))
+        {
+            missedRetransmissions++;
+        }
+    }
+
+    /** Returns the number of packets dropped because the FIFO was full. */
+    public long getDroppedPackets()
+    {
+        return droppedPackets;
+    }
+
+    /** Returns the number of frames partly or entirely dropped because the FIFO was full. */
+    public long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    /** Returns how many times everything was dropped up to the next key frame. */
+    public long getKeyFrameWaits()
+    {
+        return keyFrameWaits;
+    }
+
     /** Returns an approximation of the bitrate of the RTP stream in bits per second. */
     public long getBitrate()
     {
         return averageBitrate.average();
     }
 
-    /** Increments the sequence number. */
+    /** Returns the number of packets waiting in the FIFO. */
+    public int getQueueSize()
+    {
+        return ring.size() - retained;
+    }
+
+    /** Returns the number of packets the FIFO can hold. */
+    public int getQueueCapacity()
+    {
+        return bufferCount;
+    }
+
+    /** Returns how many times the sender thread woke up to drain the FIFO. */
+    public long getBatchCount()
+    {
+        return batchCount;
+    }
+
+    /** Returns the average number of packets sent per wake up of the sender thread. */
+    public float getAverageBatchSize()
+    {
+        return batchCount > 0 ? (float) batchedPackets / batchCount : 0;
+    }
+
+    /** Returns the largest number of packets sent in a single wake up of the sender thread. */
+    public int getLargestBatch()
+    {
+        return largestBatch;
+    }
+
+    /** Returns how many times the send buffer of the channel was full when a packet had to be sent. */
+    public long getBlockedSends()
+    {
+        return blockedSends;
+    }
+
+    /** Returns the number of packets dropped because the send buffer of the channel stayed full. */
+    public long getDroppedSends()
+    {
+        return droppedSends;
+    }
+
+    /** Increments the sequence number, it wraps at 16 bits like the one in the header so that a NACK can match it. */
     private void updateSequence()
     {
-        setLong(buffers[bufferIn], ++seq, 2, 4);
+        seq = (seq + 1) & 0xFFFF;
+        sequences[bufferIn] = seq;
+        setLong(buffers[bufferIn], seq, 2, 4);
     }
 
     /**
@@ -250,7 +1002,8 @@ public class RtpSocket implements Runnable
     public void updateTimestamp(long timestamp)
     {
         timestamps[bufferIn] = timestamp;
-        setLong(buffers[bufferIn], (timestamp / 100L) * (clock / 1000L) / 10000L, 4, 8);
+        rtpTimestamps[bufferIn] = mediaClock.getRtpTimestamp(timestamp, clock);
+        setLong(buffers[bufferIn], rtpTimestamps[bufferIn], 4, 8);
     }
 
     /** Sets the marker in the RTP packet. */
@@ -259,7 +1012,10 @@ public class RtpSocket implements Runnable
         buffers[bufferIn][1] |= 0x80;
     }
 
-    /** The Thread sends the packets in the FIFO one by one at a constant rate. */
+    /**
+     * The Thread sends the packets in the FIFO one by one at a constant rate.
+     * Each time it wakes up, it drains all the packets committed so far before handing the buffers back.
+     */
     @Override
     public void run()
     {
@@ -269,55 +1025,90 @@ public class RtpSocket implements Runnable
             // Caches cacheSize milliseconds of the stream in the FIFO.
             Thread.sleep(cacheSize);
             long delta = 0;
-            while (bufferCommitted.tryAcquire(4, TimeUnit.SECONDS))
+            int available;
+            while ((available = ring.awaitAvailable(4, TimeUnit.SECONDS)) > 0)
             {
-                if (oldTimestamp != 0)
+                long now = System.nanoTime();
+                boolean batchStart = true;
+                for (int i = 0; i < available; i++)
                 {
-                    // We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-                    // compute the time lapse that the packet represents.
-                    if ((timestamps[bufferOut] - oldTimestamp) > 0)
+                    // An empty buffer was committed without a packet
+                    if (datagramPackets[bufferOut].getLength() > 0)
                     {
-                        stats.push(timestamps[bufferOut] - oldTimestamp);
-                        long d = stats.average() / 1000000;
+                        // The packets of a frame share its timestamp, a new one starts a frame. The key frame starts with its first
+                        // key frame packet, an AUD or an SEI may come before it in the access unit
+                        int length = datagramPackets[bufferOut].getLength();
+                        boolean frameStart = timestamps[bufferOut] != oldTimestamp;
+                        if (frameStart)
+                        {
+                            keyFrameSent = false;
+                        }
 
-                        // We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-                        if (cacheSize > 0)
+                        boolean keyFrame = !keyFrameSent &&
+                            (classifier == null ? frameStart : classifier.classify(buffers[bufferOut], length) == PacketClassifier.PACKET_KEY_FRAME);
+                        keyFrameSent |= keyFrame;
+                        if (oldTimestamp != 0)
                         {
-                            Thread.sleep(d);
+                            // We use our knowledge of the clock rate of the stream and the difference between two timestamps to
+                            // compute the time lapse that the packet represents.
+                            if ((timestamps[bufferOut] - oldTimestamp) > 0)
+                            {
+                                stats.push(timestamps[bufferOut] - oldTimestamp);
+                                long d = stats.average() / 1000000;
+
+                                // We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
+                                if (cacheSize > 0 && pacer == null)
+                                {
+                                    Thread.sleep(d);
+                                }
+                            }
+                            else if ((timestamps[bufferOut] - oldTimestamp) < 0)
+                            {
+                                Log.e(TAG, "TS: " + timestamps[bufferOut] + " OLD: " + oldTimestamp);
+                            }
+
+                            delta += timestamps[bufferOut] - oldTimestamp;
+                            if (delta > 500000000 || delta < 0)
+                            {
+                                delta = 0;
+                            }
                         }
-                    }
-                    else if ((timestamps[bufferOut] - oldTimestamp) < 0)
-                    {
-                        Log.e(TAG, "TS: " + timestamps[bufferOut] + " OLD: " + oldTimestamp);
-                    }
 
-                    delta += timestamps[bufferOut] - oldTimestamp;
-                    if (delta > 500000000 || delta < 0)
-                    {
-                        delta = 0;
-                    }
-                }
+                        oldTimestamp = timestamps[bufferOut];
 
-                senderReport.update(datagramPackets[bufferOut].getLength(), (timestamps[bufferOut] / 100L) * (clock / 1000L) / 10000L);
-                oldTimestamp = timestamps[bufferOut];
-                if (count++ > 30)
-                {
-                    if (transport == TRANSPORT_UDP)
-                    {
-                        multicastSocket.send(datagramPackets[bufferOut]);
+                        if (pacer != null)
+                        {
+                            pace(batchStart, available - i);
+                            batchStart = false;
+                        }
+
+                        send(keyFrame);
+                        fec.add(buffers[bufferOut], views[bufferOut], length, sequences[bufferOut], rtpTimestamps[bufferOut]);
+                        if (gopCache != null)
+                        {
+                            gopCache.add(buffers[bufferOut], length, sequences[bufferOut], rtpTimestamps[bufferOut], keyFrame);
+                        }
+
+                        sendTimes[bufferOut] = now;
+                        retainedBytes += length;
                     }
-                    else
+
+                    if (++bufferOut >= bufferCount)
                     {
-                        sendTCP();
+                        bufferOut = 0;
                     }
                 }
 
-                if (++bufferOut >= bufferCount)
+                ring.consume(available);
+                releaseHistory(available, now);
+                retransmit();
+
+                batchCount++;
+                batchedPackets += available;
+                if (available > largestBatch)
                 {
-                    bufferOut = 0;
+                    largestBatch = available;
                 }
-
-                bufferRequested.release();
             }
         }
         catch (Exception e)
@@ -329,24 +1120,281 @@ public class RtpSocket implements Runnable
         resetFifo();
     }
 
-    private void sendTCP()
+    /**
+     * Hands the packet at the head of the FIFO to the pacer along with the bytes of its frame
+     * that are already in the FIFO. Those are summed up once per frame, and again at the beginning
+     * of each batch since the packetizer may have committed more packets of the frame in the meantime.
+     * @param rescan True if the packets of the frame must be summed up again
+     * @param count The number of packets of the batch left, including this one
+     */
+    private void pace(boolean rescan, int count) throws InterruptedException
     {
-        synchronized (outputStream)
+        int length = datagramPackets[bufferOut].getLength();
+        long timestamp = timestamps[bufferOut];
+
+        if (rescan || timestamp != pacedTimestamp)
         {
-            int len = datagramPackets[bufferOut].getLength();
+            pacedTimestamp = timestamp;
+            frameBytes = 0;
+            for (int i = 0, index = bufferOut; i < count && timestamps[index] == timestamp; i++)
+            {
+                frameBytes += datagramPackets[index].getLength();
+                if (++index >= bufferCount)
+                {
+                    index = 0;
+                }
+            }
+        }
 
-            Log.d(TAG, "sent " + len);
+        // Each packet leaves the socket once per destination, that is what loads the uplink
+        int fanOut = Math.max(1, destinations.length);
+        pacer.pace(length * fanOut, timestamp, frameBytes * fanOut);
+        frameBytes -= length;
+    }
 
-            tcpHeader[2] = (byte) (len >> 8);
-            tcpHeader[3] = (byte) (len & 0xFF);
-            try
+    /**
+     * Hands the oldest packets sent back to the packetizer, only the last ones are kept for retransmissions.
+     * @param count The number of packets just sent
+     * @param now The time they were sent
+     */
+    private void releaseHistory(int count, long now)
+    {
+        retained += count;
+
+        int release = 0;
+        int index = (bufferOut - retained + bufferCount) % bufferCount;
+        while (release < retained && (
+            retained - release > historySize ||
+            retainedBytes > historyBytes ||
+            now - sendTimes[index] > historyAge ||
+            ring.size() - release > bufferCount * 3 / 4))
+        {
+            retainedBytes -= datagramPackets[index].getLength();
+            release++;
+            if (++index >= bufferCount)
             {
-                outputStream.write(tcpHeader);
-                outputStream.write(buffers[bufferOut], 0, len);
+                index = 0;
             }
-            catch (Exception e)
+        }
+
+        if (release > 0)
+        {
+            retained -= release;
+            ring.release(release);
+        }
+    }
+
+    /** Sends again the packets the receivers asked for, if they are still in the history. */
+    private void retransmit() throws IOException
+    {
+        Retransmission retransmission;
+        while ((retransmission = retransmissions.poll()) != null)
+        {
+            int index = bufferOut;
+            boolean found = false;
+            for (int i = 0; i < retained && !found; i++)
+            {
+                if (--index < 0)
+                {
+                    index = bufferCount - 1;
+                }
+
+                found = datagramPackets[index].getLength() > 0 && sequences[index] == retransmission.sequence;
+            }
+
+            if (!found)
+            {
+                missedRetransmissions++;
+                continue;
+            }
+
+            sendRetransmission(retransmission.destination, index);
+        }
+    }
+
+    /**
+     * Sends a packet of the history again, encapsulated as described in RFC 4588:
+     * the original sequence number precedes the payload, and the header carries the RTX SSRC and sequence number.
+     */
+    private void sendRetransmission(RtpDestination destination, int index) throws IOException
+    {
+        byte[] packet = buffers[index];
+        int length = datagramPackets[index].getLength() + 2;
+
+        repairBuffer[0] = packet[0];
+        repairBuffer[1] = (byte) ((packet[1] & 0x80) | RTX_PAYLOAD_TYPE);
+        setLong(repairBuffer, destination.nextRtxSequence(), 2, 4);
+        setLong(repairBuffer, destination.getTimestamp(rtpTimestamps[index]), 4, 8);
+        setLong(repairBuffer, destination.getRtxSSRC() & 0xFFFFFFFFL, 8, 12);
+        setLong(repairBuffer, destination.getSequence(sequences[index]), 12, 14);
+        System.arraycopy(packet, RTP_HEADER_LENGTH, repairBuffer, RTP_HEADER_LENGTH + 2, length - 2 - RTP_HEADER_LENGTH);
+
+        sendRepair(destination, protectRepair(destination, length));
+        retransmittedPackets++;
+    }
+
+    /**
+     * Sends the next cached packets to a destination joining the stream, GOP_BURST of them for each packet of the stream.
+     * @return True once the destination has caught up, the packet of the stream can then be sent to it
+     */
+    private boolean catchUp(RtpDestination destination) throws IOException
+    {
+        GopCache cache = gopCache;
+        if (cache == null || !cache.isValid())
+        {
+            // The cache was emptied, the destination now waits for the next key frame
+            destination.setGopPosition(0);
+            return false;
+        }
+
+        int position = destination.getGopPosition();
+        int end = Math.min(cache.getCount(), position + GOP_BURST);
+        for (; position < end; position++)
+        {
+            int length = cache.copy(position, repairBuffer);
+            destination.rewriteHeader(repairBuffer, cache.getSequence(position), cache.getTimestamp(position));
+            destination.getSenderReport().update(length);
+            sendRepair(destination, protectRepair(destination, length));
+            cachedPacketsSent++;
+        }
+
+        if (position < cache.getCount())
+        {
+            destination.setGopPosition(position);
+            return false;
+        }
+
+        destination.onKeyFrame();
+        return true;
+    }
+
+    /** Called by the {@link FecEncoder} when a parity packet is complete, sends it to every destination. */
+    void sendParity(FecEncoder.Group group) throws IOException
+    {
+        for (RtpDestination destination : destinations)
+        {
+            if (destination.isWaitingKeyFrame())
             {
-                Log.e(TAG, "Writing to output stream threw", e);
+                continue;
+            }
+
+            sendRepair(destination, protectRepair(destination, fec.write(group, destination, repairBuffer, repairView)));
+        }
+    }
+
+    /** Encrypts in place the packet built in the repair buffer if the destination uses SRTP, returns its new length. */
+    private int protectRepair(RtpDestination destination, int length)
+    {
+        SrtpContext srtp = destination.getSrtpContext();
+        return srtp == null ? length : srtp.protectRtp(repairBuffer, length, repairBuffer);
+    }
+
+    /** Sends the packet built in the repair buffer to a destination. */
+    private void sendRepair(RtpDestination destination, int length) throws IOException
+    {
+        if (destination.getWriter() != null)
+        {
+            destination.getWriter().write(repairBuffer, length, destination.getRtpChannel());
+        }
+        else if (egressMode == EGRESS_CHANNEL)
+        {
+            repairView.limit(length);
+            repairView.position(0);
+            channel.send(repairView, destination.getSocketAddress());
+            repairView.clear();
+        }
+        else
+        {
+            repairPacket.setLength(length);
+            repairPacket.setSocketAddress(destination.getSocketAddress());
+            multicastSocket.send(repairPacket);
+        }
+    }
+
+    /**
+     * Sends the packet at the head of the FIFO to every destination.
+     * The buffer is shared by all of them, its header is rewritten in place for each destination
+     * which is safe because only this thread touches the buffer once it has been committed.
+     * A destination waiting for a key frame gets nothing until one starts, its decoder could not use the packets before,
+     * unless it can catch up with the stream from the GOP cache.
+     * @param keyFrame Whether the packet is the first key frame packet of its access unit
+     */
+    private void send(boolean keyFrame) throws IOException
+    {
+        int length = datagramPackets[bufferOut].getLength();
+        long timestamp = rtpTimestamps[bufferOut];
+
+        boolean copyPayload = true;
+        for (RtpDestination destination : destinations)
+        {
+            if (destination.isWaitingKeyFrame())
+            {
+                if (keyFrame)
+                {
+                    destination.onKeyFrame();
+                }
+                else if (!catchUp(destination))
+                {
+                    continue;
+                }
+            }
+
+            destination.rewriteHeader(buffers[bufferOut], sequences[bufferOut], timestamp);
+            destination.getSenderReport().update(length);
+
+            SrtpContext srtp = destination.getSrtpContext();
+            if (srtp != null)
+            {
+                // The shared buffer stays in the clear, the packet is encrypted into the repair buffer
+                sendRepair(destination, srtp.protectRtp(buffers[bufferOut], length, repairBuffer));
+            }
+            else if (destination.getWriter() != null)
+            {
+                // Copied in the queue of the client, the buffer can be rewritten for the next destination right away
+                destination.getWriter().write(buffers[bufferOut], length, destination.getRtpChannel());
+            }
+            else if (egressMode == EGRESS_CHANNEL)
+            {
+                sendChannel(destination, length, copyPayload);
+                copyPayload = false;
+            }
+            else
+            {
+                datagramPackets[bufferOut].setSocketAddress(destination.getSocketAddress());
+                multicastSocket.send(datagramPackets[bufferOut]);
+            }
+        }
+    }
+
+    /**
+     * Writes the packet with the non-blocking channel.
+     * If the send buffer is full, waits a little for some room and drops the packet if there still is none.
+     */
+    private void sendChannel(RtpDestination destination, int length, boolean copyPayload) throws IOException
+    {
+        ByteBuffer packet = directBuffers[bufferOut];
+
+        if (!directBacked)
+        {
+            // Only the header differs from a destination to another
+            packet.clear();
+            packet.put(buffers[bufferOut], 0, copyPayload ? length : RTP_HEADER_LENGTH);
+        }
+
+        packet.limit(length);
+        packet.position(0);
+
+        if (channel.send(packet, destination.getSocketAddress()) == 0)
+        {
+            blockedSends++;
+            if (selector.select(SEND_TIMEOUT) > 0)
+            {
+                selector.selectedKeys().clear();
+            }
+
+            if (channel.send(packet, destination.getSocketAddress()) == 0)
+            {
+                droppedSends++;
             }
         }
     }
@@ -359,4 +1407,16 @@ public class RtpSocket implements Runnable
             n >>= 8;
         }
     }
+
+    private static class Retransmission
+    {
+        final RtpDestination destination;
+        final int sequence;
+
+        Retransmission(RtpDestination destination, int sequence)
+        {
+            this.destination = destination;
+            this.sequence = sequence;
+        }
+    }
 }
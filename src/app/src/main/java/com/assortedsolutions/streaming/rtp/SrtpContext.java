@@ -0,0 +1,374 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import android.util.Base64;
+
+/**
+ * Protects the RTP and RTCP packets of a destination with SRTP (RFC 3711) and the AES_CM_128_HMAC_SHA1_80 crypto suite.
+ * The master key is given to the receiver in an a=crypto attribute of the SDP (RFC 4568).
+ *
+ * The Cipher and Mac instances are created once with the session keys. The keystream is computed by encrypting
+ * the counter blocks of a packet with a single call, in buffers allocated with the context,
+ * so protecting a packet does not allocate anything.
+ * RTP packets are protected by the sender thread of the {@link RtpSocket}, RTCP packets by the SenderReport
+ * and the RTCP packets of the receiver are checked by its receiving thread, each of them has its own instances.
+ */
+public class SrtpContext
+{
+    public final static String TAG = "SrtpContext";
+
+    public static final String CRYPTO_SUITE = "AES_CM_128_HMAC_SHA1_80";
+
+    /** Length of the master key followed by the master salt. */
+    public static final int KEY_MATERIAL_LENGTH = 30;
+
+    /** Length of the authentication tag appended to each packet. */
+    public static final int AUTH_TAG_LENGTH = 10;
+
+    /** Length of the E flag and SRTCP index appended to each RTCP packet, followed by the authentication tag. */
+    public static final int SRTCP_TRAILER_LENGTH = 4 + AUTH_TAG_LENGTH;
+
+    private static final int MASTER_KEY_LENGTH = 16;
+    private static final int MASTER_SALT_LENGTH = 14;
+    private static final int AUTH_KEY_LENGTH = 20;
+    private static final int BLOCK_LENGTH = 16;
+    private static final int MAX_PACKET_LENGTH = 2048;
+
+    // Key derivation labels, see section 4.3.2 of RFC 3711
+    private static final int LABEL_RTP = 0x00;
+    private static final int LABEL_RTCP = 0x03;
+
+    // The streams of a destination each have their own SSRC and rollover counter: media, retransmissions, FEC
+    private static final int MAX_SSRC = 4;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Transform rtp;
+    private final Transform rtcp;
+    private final Transform rtcpIn;
+
+    private final int[] ssrcs = new int[MAX_SSRC];
+    private final int[] lastSequences = new int[MAX_SSRC];
+    private final int[] rollovers = new int[MAX_SSRC];
+    private int ssrcCount = 0;
+    private int srtcpIndex = 0;
+
+    /**
+     * @param keyMaterial The master key followed by the master salt, see {@link #generateKeyMaterial()}
+     */
+    public SrtpContext(byte[] keyMaterial)
+    {
+        if (keyMaterial.length != KEY_MATERIAL_LENGTH)
+        {
+            throw new IllegalArgumentException("The key material must be " + KEY_MATERIAL_LENGTH + " bytes long");
+        }
+
+        try
+        {
+            byte[] masterSalt = Arrays.copyOfRange(keyMaterial, MASTER_KEY_LENGTH, KEY_MATERIAL_LENGTH);
+            Cipher master = Cipher.getInstance("AES/ECB/NoPadding");
+            master.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyMaterial, 0, MASTER_KEY_LENGTH, "AES"));
+
+            rtp = new Transform(master, masterSalt, LABEL_RTP);
+            rtcp = new Transform(master, masterSalt, LABEL_RTCP);
+            rtcpIn = new Transform(master, masterSalt, LABEL_RTCP);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // AES and HMAC-SHA1 are always available
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /** Returns a new random master key followed by a master salt. */
+    public static byte[] generateKeyMaterial()
+    {
+        byte[] keyMaterial = new byte[KEY_MATERIAL_LENGTH];
+        random.nextBytes(keyMaterial);
+        return keyMaterial;
+    }
+
+    /**
+     * Returns the a=crypto attribute of the SDP giving the key material to the receiver, see RFC 4568.
+     * @param keyMaterial The master key followed by the master salt
+     */
+    public static String getCryptoAttribute(byte[] keyMaterial)
+    {
+        return "a=crypto:1 " + CRYPTO_SUITE + " inline:" + Base64.encodeToString(keyMaterial, Base64.NO_WRAP) + "\r\n";
+    }
+
+    /**
+     * Encrypts and authenticates a RTP packet.
+     * @param packet The packet
+     * @param length The length of the packet
+     * @param out Where the protected packet is written, may be the packet itself.
+     *            It must have room for {@link #AUTH_TAG_LENGTH} more bytes.
+     * @return The length of the protected packet
+     */
+    public int protectRtp(byte[] packet, int length, byte[] out)
+    {
+        int sequence = (packet[2] & 0xFF) << 8 | packet[3] & 0xFF;
+        int ssrc = getInt(packet, 8);
+        int rollover = updateRollover(ssrc, sequence);
+
+        // The CSRCs and the header extension are not encrypted
+        int header = RtpSocket.RTP_HEADER_LENGTH + 4 * (packet[0] & 0x0F);
+        if ((packet[0] & 0x10) != 0)
+        {
+            header += 4 + 4 * ((packet[header + 2] & 0xFF) << 8 | packet[header + 3] & 0xFF);
+        }
+
+        if (out != packet)
+        {
+            System.arraycopy(packet, 0, out, 0, header);
+        }
+
+        rtp.crypt(packet, out, header, length, ssrc, (long) rollover << 16 | sequence);
+
+        // The rollover counter is authenticated but not sent
+        rtp.mac.update(out, 0, length);
+        rtp.mac.update((byte) (rollover >> 24));
+        rtp.mac.update((byte) (rollover >> 16));
+        rtp.mac.update((byte) (rollover >> 8));
+        rtp.mac.update((byte) rollover);
+        rtp.sign(out, length);
+
+        return length + AUTH_TAG_LENGTH;
+    }
+
+    /**
+     * Encrypts and authenticates a RTCP packet.
+     * @param packet The packet
+     * @param length The length of the packet
+     * @param out Where the protected packet is written, may be the packet itself.
+     *            It must have room for {@link #SRTCP_TRAILER_LENGTH} more bytes.
+     * @return The length of the protected packet
+     */
+    public int protectRtcp(byte[] packet, int length, byte[] out)
+    {
+        int index = srtcpIndex;
+        srtcpIndex = (srtcpIndex + 1) & 0x7FFFFFFF;
+
+        // The first header and the SSRC of the sender are not encrypted
+        if (out != packet)
+        {
+            System.arraycopy(packet, 0, out, 0, 8);
+        }
+
+        rtcp.crypt(packet, out, 8, length, getInt(packet, 4), index);
+        putInt(out, length, 0x80000000 | index);
+
+        rtcp.mac.update(out, 0, length + 4);
+        rtcp.sign(out, length + 4);
+
+        return length + SRTCP_TRAILER_LENGTH;
+    }
+
+    /**
+     * Checks and decrypts in place a RTCP packet sent by the receiver with the same master key.
+     * @param packet The packet
+     * @param length The length of the packet
+     * @return The length of the decrypted packet, or -1 if the packet is not authentic
+     */
+    public int unprotectRtcp(byte[] packet, int length)
+    {
+        int end = length - SRTCP_TRAILER_LENGTH;
+        if (end < 8)
+        {
+            return -1;
+        }
+
+        rtcpIn.mac.update(packet, 0, end + 4);
+        if (!rtcpIn.verify(packet, end + 4))
+        {
+            return -1;
+        }
+
+        int index = getInt(packet, end);
+        if (index < 0)
+        {
+            rtcpIn.crypt(packet, packet, 8, end, getInt(packet, 4), index & 0x7FFFFFFF);
+        }
+
+        return end;
+    }
+
+    /**
+     * Returns the rollover counter of a SSRC, incremented each time its sequence number wraps around.
+     * The sequence numbers of the packets sent with a SSRC only ever increase.
+     */
+    private int updateRollover(int ssrc, int sequence)
+    {
+        int i = 0;
+        while (i < ssrcCount && ssrcs[i] != ssrc)
+        {
+            i++;
+        }
+
+        if (i == ssrcCount)
+        {
+            if (ssrcCount < MAX_SSRC)
+            {
+                ssrcCount++;
+            }
+            else
+            {
+                i = MAX_SSRC - 1;
+            }
+
+            ssrcs[i] = ssrc;
+            rollovers[i] = 0;
+        }
+        else if (sequence < lastSequences[i] && lastSequences[i] - sequence > 0x8000)
+        {
+            rollovers[i]++;
+        }
+
+        lastSequences[i] = sequence;
+        return rollovers[i];
+    }
+
+    private static int getInt(byte[] buffer, int offset)
+    {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16 | (buffer[offset + 2] & 0xFF) << 8 | buffer[offset + 3] & 0xFF;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int n)
+    {
+        buffer[offset] = (byte) (n >> 24);
+        buffer[offset + 1] = (byte) (n >> 16);
+        buffer[offset + 2] = (byte) (n >> 8);
+        buffer[offset + 3] = (byte) n;
+    }
+
+    /** The session keys of either RTP or RTCP, and the buffers used to protect a packet. */
+    static final class Transform
+    {
+        final Cipher cipher;
+        final Mac mac;
+        final byte[] salt;
+        final byte[] counters = new byte[MAX_PACKET_LENGTH];
+        final byte[] keystream = new byte[MAX_PACKET_LENGTH];
+        final byte[] digest;
+
+        Transform(Cipher master, byte[] masterSalt, int label) throws GeneralSecurityException
+        {
+            this(derive(master, masterSalt, label, MASTER_KEY_LENGTH),
+                    derive(master, masterSalt, label + 1, AUTH_KEY_LENGTH),
+                    derive(master, masterSalt, label + 2, MASTER_SALT_LENGTH));
+        }
+
+        /** Uses the session keys given, the test vectors of RFC 3711 start from them. */
+        Transform(byte[] key, byte[] authKey, byte[] salt) throws GeneralSecurityException
+        {
+            this.salt = salt;
+
+            cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(authKey, "HmacSHA1"));
+            digest = new byte[mac.getMacLength()];
+        }
+
+        /**
+         * XORs bytes from offset to end of a packet with the AES counter mode keystream of the packet,
+         * the IV being the session salt XORed with the SSRC and the index of the packet.
+         */
+        void crypt(byte[] in, byte[] out, int offset, int end, int ssrc, long index)
+        {
+            int length = end - offset;
+            int blocks = (length + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+
+            System.arraycopy(salt, 0, counters, 0, MASTER_SALT_LENGTH);
+            counters[4] ^= (byte) (ssrc >> 24);
+            counters[5] ^= (byte) (ssrc >> 16);
+            counters[6] ^= (byte) (ssrc >> 8);
+            counters[7] ^= (byte) ssrc;
+            for (int i = 0; i < 6; i++)
+            {
+                counters[13 - i] ^= (byte) (index >> (8 * i));
+            }
+
+            for (int block = 0; block < blocks; block++)
+            {
+                int start = block * BLOCK_LENGTH;
+                if (block > 0)
+                {
+                    System.arraycopy(counters, 0, counters, start, MASTER_SALT_LENGTH);
+                }
+
+                counters[start + 14] = (byte) (block >> 8);
+                counters[start + 15] = (byte) block;
+            }
+
+            try
+            {
+                cipher.update(counters, 0, blocks * BLOCK_LENGTH, keystream, 0);
+            }
+            catch (GeneralSecurityException e)
+            {
+                // The keystream buffer is always large enough
+                throw new RuntimeException(e.getMessage(), e);
+            }
+
+            for (int i = 0; i < length; i++)
+            {
+                out[offset + i] = (byte) (in[offset + i] ^ keystream[i]);
+            }
+        }
+
+        /** Appends the truncated tag of what was handed to the Mac. */
+        void sign(byte[] out, int offset)
+        {
+            finish();
+            System.arraycopy(digest, 0, out, offset, AUTH_TAG_LENGTH);
+        }
+
+        /** Compares the tag of what was handed to the Mac with the one of the packet, in constant time. */
+        boolean verify(byte[] packet, int offset)
+        {
+            finish();
+            int difference = 0;
+            for (int i = 0; i < AUTH_TAG_LENGTH; i++)
+            {
+                difference |= digest[i] ^ packet[offset + i];
+            }
+
+            return difference == 0;
+        }
+
+        private void finish()
+        {
+            try
+            {
+                mac.doFinal(digest, 0);
+            }
+            catch (GeneralSecurityException e)
+            {
+                // The digest buffer is always large enough
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        /** Derives a session key from the master key, see section 4.3.1 of RFC 3711. */
+        static byte[] derive(Cipher master, byte[] masterSalt, int label, int length) throws GeneralSecurityException
+        {
+            int blocks = (length + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+            byte[] input = new byte[blocks * BLOCK_LENGTH];
+            for (int block = 0; block < blocks; block++)
+            {
+                int start = block * BLOCK_LENGTH;
+                System.arraycopy(masterSalt, 0, input, start, MASTER_SALT_LENGTH);
+                input[start + 7] ^= (byte) label;
+                input[start + 15] = (byte) block;
+            }
+
+            return Arrays.copyOf(master.doFinal(input), length);
+        }
+    }
+}
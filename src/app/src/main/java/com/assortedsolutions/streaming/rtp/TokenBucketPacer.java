@@ -0,0 +1,198 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket {@link Pacer}.
+ * The bucket fills at the target bit rate multiplied by the pacing factor and holds a few packets,
+ * so a frame larger than the bucket (typically an IDR frame) is not sent as a burst of back-to-back datagrams.
+ * On top of that, the packets of each frame are spread over most of the interval between two frames:
+ * when a frame would otherwise be late on the next one, the rate is raised to send it in time.
+ * A frame that is late anyway is still paced, the rest of it is spread over the next frame interval.
+ */
+public class TokenBucketPacer implements Pacer
+{
+    public final static String TAG = "TokenBucketPacer";
+
+    /** Fraction of the frame interval over which the packets of a frame are spread. */
+    private static final float FRAME_SPREAD = 0.8f;
+
+    /** Frame intervals outside this range are not taken into account (stream paused, timestamp jump...). */
+    private static final long MIN_FRAME_INTERVAL = 1000000L;
+    private static final long MAX_FRAME_INTERVAL = 500000000L;
+
+    private long targetBitrate;
+    private float pacingFactor = 2.5f;
+    private int bucketSize = 4 * RtpSocket.MTU;
+
+    // Bytes per nanosecond
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+
+    private long frameTimestamp = 0;
+    private long frameInterval = 0;
+    private long frameDeadline = 0;
+
+    private long pacedPackets = 0;
+    private long delayedPackets = 0;
+    private long pacingDelay = 0;
+    private long maxPacingDelay = 0;
+    private int largestBurst = 0;
+
+    /**
+     * @param targetBitrate The bit rate of the stream in bit per second, 0 if unknown.
+     *                      When it is unknown, the packets are only spread over the frame interval.
+     */
+    public TokenBucketPacer(long targetBitrate)
+    {
+        setTargetBitrate(targetBitrate);
+        reset();
+    }
+
+    /** Sets the bit rate of the stream in bit per second. Can be called while streaming. */
+    public synchronized void setTargetBitrate(long targetBitrate)
+    {
+        this.targetBitrate = targetBitrate;
+        rate = targetBitrate * pacingFactor / 8e9;
+    }
+
+    public synchronized long getTargetBitrate()
+    {
+        return targetBitrate;
+    }
+
+    /**
+     * Sets how much faster than the target bit rate the packets may leave. Default is 2.5.
+     * @param pacingFactor Must be greater than 1 or the encoder would outrun the pacer
+     */
+    public synchronized void setPacingFactor(float pacingFactor)
+    {
+        this.pacingFactor = pacingFactor;
+        rate = targetBitrate * pacingFactor / 8e9;
+    }
+
+    /**
+     * Sets the number of bytes that can be sent back to back after the link has been idle.
+     * Default is 4 MTU.
+     */
+    public synchronized void setBucketSize(int bucketSize)
+    {
+        this.bucketSize = bucketSize;
+    }
+
+    public synchronized void reset()
+    {
+        tokens = bucketSize;
+        lastRefill = System.nanoTime();
+        frameTimestamp = 0;
+        frameInterval = 0;
+        frameDeadline = 0;
+    }
+
+    public void pace(int length, long timestamp, int frameBytes) throws InterruptedException
+    {
+        long now = System.nanoTime();
+        long wait;
+
+        synchronized (this)
+        {
+            if (timestamp != frameTimestamp)
+            {
+                long interval = timestamp - frameTimestamp;
+                if (frameTimestamp != 0 && interval >= MIN_FRAME_INTERVAL && interval <= MAX_FRAME_INTERVAL)
+                {
+                    frameInterval = frameInterval == 0 ? interval : (frameInterval * 7 + interval) / 8;
+                }
+
+                frameTimestamp = timestamp;
+                frameDeadline = now + (long) (frameInterval * FRAME_SPREAD);
+            }
+
+            // The rate needed to send the rest of the frame before the deadline, if that is faster than the bucket.
+            // A frame already late is caught up over a frame interval rather than sent as a burst
+            double frameRate = 0;
+            long remaining = frameDeadline - now;
+            if (frameInterval > 0)
+            {
+                frameRate = (double) frameBytes / (remaining > 0 ? remaining : frameInterval);
+            }
+
+            double currentRate = Math.max(rate, frameRate);
+            if (currentRate <= 0)
+            {
+                // Nothing to pace on yet
+                lastRefill = now;
+                tokens = bucketSize;
+                pacedPackets++;
+                return;
+            }
+
+            tokens = Math.min(bucketSize, tokens + (now - lastRefill) * currentRate);
+            lastRefill = now;
+            tokens -= length;
+
+            wait = tokens < 0 ? (long) (-tokens / currentRate) : 0;
+            pacedPackets++;
+
+            if (wait > 0)
+            {
+                delayedPackets++;
+                pacingDelay += wait;
+                if (wait > maxPacingDelay)
+                {
+                    maxPacingDelay = wait;
+                }
+
+                if (frameBytes > largestBurst)
+                {
+                    largestBurst = frameBytes;
+                }
+            }
+        }
+
+        if (wait > 0)
+        {
+            // parkNanos may return early, the deadline is checked again
+            long deadline = now + wait;
+            while ((wait = deadline - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(this, wait);
+                if (Thread.interrupted())
+                {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    /** Returns the number of packets that went through the pacer. */
+    public synchronized long getPacedPackets()
+    {
+        return pacedPackets;
+    }
+
+    /** Returns the number of packets that had to wait, those would have been part of a burst without the pacer. */
+    public synchronized long getDelayedPackets()
+    {
+        return delayedPackets;
+    }
+
+    /** Returns the average time in nanoseconds a delayed packet waited. */
+    public synchronized long getAveragePacingDelay()
+    {
+        return delayedPackets == 0 ? 0 : pacingDelay / delayedPackets;
+    }
+
+    /** Returns the longest time in nanoseconds a packet waited. */
+    public synchronized long getMaxPacingDelay()
+    {
+        return maxPacingDelay;
+    }
+
+    /** Returns the size in bytes of the largest burst the pacer spread out. */
+    public synchronized int getLargestBurst()
+    {
+        return largestBurst;
+    }
+}
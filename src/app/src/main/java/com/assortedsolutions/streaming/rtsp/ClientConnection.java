@@ -3,22 +3,25 @@ package com.assortedsolutions.streaming.rtsp;
 import android.util.Base64;
 import android.util.Log;
 
+import com.assortedsolutions.streaming.rtp.InterleavedWriter;
+import com.assortedsolutions.streaming.rtp.RtpDestination;
 import com.assortedsolutions.streaming.session.Session;
 import com.assortedsolutions.streaming.session.SessionBuilder;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-class ClientConnection extends Thread implements Runnable
+class ClientConnection extends Thread implements Runnable, Request.InterleavedFrameListener
 {
     public static final String TAG = "ClientConnection";
     private static final String SERVER_NAME = "Casnic Surveillance RTSP Server";
@@ -30,23 +33,25 @@ class ClientConnection extends Thread implements Runnable
     private final String password;
 
     private final Socket socket;
-    private final OutputStream outputStream;
-    private final BufferedReader inputStreamReader;
+    private final InputStream inputStream;
+
+    // Writes the responses, and the media of the tracks set up over TCP
+    private final InterleavedWriter writer;
 
     // Each client has an associated session
     private Session session;
 
-    ClientConnection(final Socket socket, final String username, final String password) throws IOException
+    ClientConnection(final SocketChannel channel, final String username, final String password) throws IOException
     {
         this.username = username;
         this.password = password;
-        this.socket = socket;
+        this.socket = channel.socket();
 
         remoteHostAddress = socket.getInetAddress().getHostAddress();
         localHostAddress = socket.getLocalAddress().getHostAddress();
         localHostPort = socket.getLocalPort();
-        outputStream = socket.getOutputStream();
-        inputStreamReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        inputStream = new BufferedInputStream(socket.getInputStream());
+        writer = new InterleavedWriter(channel);
     }
 
     public void run()
@@ -61,7 +66,7 @@ class ClientConnection extends Thread implements Runnable
             // Parse the request
             try
             {
-                request = Request.parse(inputStreamReader);
+                request = Request.parse(inputStream, this);
             }
             catch (SocketException e)
             {
@@ -91,20 +96,34 @@ class ClientConnection extends Thread implements Runnable
                 }
             }
 
-            // Send the response
-            try
-            {
-                outputStream.write(response.getBytes());
-            }
-            catch (IOException e)
+            // Send the response, queued behind the packets already waiting for the client
+            writer.writeResponse(response.getBytes());
+
+            // Interleaved packets must not reach the client before the response to its PLAY request,
+            // and the first one it gets must start a key frame
+            if (request != null && request.method.equalsIgnoreCase("PLAY"))
             {
-                Log.e(TAG,"Response was not sent properly", e);
-                break;
+                if (session != null)
+                {
+                    session.play();
+                }
+
+                writer.setPaused(false);
+
+                if (session != null)
+                {
+                    session.requestSyncFrame();
+                }
             }
         }
 
-        session.stop();
-        session.release();
+        if (session != null)
+        {
+            session.stop();
+            session.release();
+        }
+
+        writer.close();
 
         try
         {
@@ -118,6 +137,21 @@ class ClientConnection extends Thread implements Runnable
         Log.i(TAG, "Client at " + remoteHostAddress + " disconnected");
     }
 
+    /** The receiver reports of the tracks set up over TCP come back interleaved in the connection. */
+    @Override
+    public void onInterleavedFrame(int channel, byte[] packet, int length)
+    {
+        for (int id = 0; session != null && id < 2; id++)
+        {
+            RtpDestination destination = session.getRtpDestination(id);
+            int[] channels = destination == null ? null : destination.getInterleavedChannels();
+            if (channels != null && channels[1] == channel)
+            {
+                destination.receiveRtcp(packet, length);
+            }
+        }
+    }
+
     private Response processRequest(Request request) throws IllegalStateException, IOException
     {
         if(!isAuthorized(request) && !request.method.equalsIgnoreCase("OPTIONS"))
@@ -212,6 +246,7 @@ class ClientConnection extends Thread implements Runnable
         int trackId;
         int[] src;
         String destination;
+        RtpDestination rtpDestination;
 
         pattern = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
         matcher = pattern.matcher(request.uri);
@@ -228,46 +263,106 @@ class ClientConnection extends Thread implements Runnable
             return new Response(Response.STATUS_NOT_FOUND);
         }
 
-        pattern = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
-        matcher = pattern.matcher(request.headers.get("transport"));
+        String transportHeader = request.headers.get("transport");
+        if (transportHeader == null)
+        {
+            transportHeader = "";
+        }
 
-        if (!matcher.find())
+        Map<String, String> attributes = new HashMap<>();
+        String profile = session.isSrtpEnabled() ? "RTP/SAVP" : "RTP/AVP";
+
+        // The client joins the multicast group of the track, the packets are sent once for all the clients
+        if (transportHeader.toLowerCase(Locale.US).contains("multicast"))
         {
+            if (session.getMulticastGroup() == null)
+            {
+                return new Response(request, Response.STATUS_UNSUPPORTED_TRANSPORT);
+            }
+
+            rtpDestination = session.startMulticast(trackId);
+            ssrc = rtpDestination.getSSRC();
             int[] ports = session.getStream(trackId).getDestinationPorts();
-            destinationPortOne = ports[0];
-            destinationPortTwo = ports[1];
+
+            String transport =
+                profile + "/UDP;multicast" +
+                ";destination=" + session.getMulticastGroup() +
+                ";port=" + ports[0] + "-" + ports[1] +
+                ";ttl=" + session.getTimeToLive() +
+                ";ssrc=" + Integer.toHexString(ssrc) +
+                ";mode=play";
+
+            attributes.put("Transport", transport);
         }
-        else
+        else if (transportHeader.toUpperCase(Locale.US).contains("AVP/TCP"))
         {
-            destinationPortOne = Integer.parseInt(matcher.group(1));
-            if (matcher.group(2) == null)
+            // The client asks for the packets to be interleaved in the RTSP connection, see section 10.12 of RFC 2326
+            pattern = Pattern.compile("interleaved=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
+            matcher = pattern.matcher(transportHeader);
+
+            if (!matcher.find())
             {
+                destinationPortOne = 2 * trackId;
                 destinationPortTwo = destinationPortOne + 1;
             }
             else
             {
-                destinationPortTwo = Integer.parseInt(matcher.group(2));
+                destinationPortOne = Integer.parseInt(matcher.group(1));
+                destinationPortTwo = matcher.group(2) == null ? destinationPortOne + 1 : Integer.parseInt(matcher.group(2));
             }
-        }
 
-        ssrc = session.getStream(trackId).getSSRC();
-        src = session.getStream(trackId).getLocalPorts();
-        destination = session.getDestination();
+            rtpDestination = session.start(trackId, writer, destinationPortOne, destinationPortTwo);
+            ssrc = rtpDestination.getSSRC();
 
-        session.getStream(trackId).setDestinationPorts(destinationPortOne, destinationPortTwo);
-        session.start(trackId);
+            String transport =
+                profile + "/TCP;unicast" +
+                ";interleaved=" + destinationPortOne + "-" + destinationPortTwo +
+                ";ssrc=" + Integer.toHexString(ssrc) +
+                ";mode=play";
 
-        Map<String, String> attributes = new HashMap<>();
+            attributes.put("Transport", transport);
+        }
+        else
+        {
+            pattern = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
+            matcher = pattern.matcher(transportHeader);
+
+            if (!matcher.find())
+            {
+                int[] ports = session.getStream(trackId).getDestinationPorts();
+                destinationPortOne = ports[0];
+                destinationPortTwo = ports[1];
+            }
+            else
+            {
+                destinationPortOne = Integer.parseInt(matcher.group(1));
+                if (matcher.group(2) == null)
+                {
+                    destinationPortTwo = destinationPortOne + 1;
+                }
+                else
+                {
+                    destinationPortTwo = Integer.parseInt(matcher.group(2));
+                }
+            }
 
-        String transport =
-            "RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
-            ";destination=" + session.getDestination() +
-            ";client_port=" + destinationPortOne + "-" + destinationPortTwo +
-            ";server_port=" + src[0] + "-" + src[1] +
-            ";ssrc=" + Integer.toHexString(ssrc) +
-            ";mode=play";
+            // The stream may already be running for another client, it only gets a new destination then
+            rtpDestination = session.start(trackId, destinationPortOne, destinationPortTwo);
+            ssrc = rtpDestination.getSSRC();
+            src = rtpDestination.getLocalPorts();
+            destination = session.getDestination();
+
+            String transport =
+                profile + "/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
+                ";destination=" + session.getDestination() +
+                ";client_port=" + destinationPortOne + "-" + destinationPortTwo +
+                ";server_port=" + src[0] + "-" + src[1] +
+                ";ssrc=" + Integer.toHexString(ssrc) +
+                ";mode=play";
+
+            attributes.put("Transport", transport);
+        }
 
-        attributes.put("Transport", transport);
         attributes.put("Session", "1185d20035702ca"); // TODO: Session is hard-coded?
         attributes.put("Cache-Control", "no-cache");
 
@@ -277,14 +372,21 @@ class ClientConnection extends Thread implements Runnable
     private Response play(Request request)
     {
         String rtpInfo = "";
-        if (session.streamExists(0))
+        for (int trackId = 0; trackId < 2; trackId++)
         {
-            rtpInfo += "url=rtsp://" + localHostAddress + ":" + localHostPort + "/trackID=0;seq=0,";
-        }
+            if (session.streamExists(trackId))
+            {
+                rtpInfo += "url=rtsp://" + localHostAddress + ":" + localHostPort + "/trackID=" + trackId;
 
-        if (session.streamExists(1))
-        {
-            rtpInfo += "url=rtsp://" + localHostAddress + ":" + localHostPort + "/trackID=1;seq=0,";
+                // The sequence number and timestamp of the first packet the client gets, with the offsets of its destination
+                RtpDestination destination = session.getRtpDestination(trackId);
+                if (destination != null)
+                {
+                    rtpInfo += ";seq=" + destination.getFirstSequence() + ";rtptime=" + destination.getFirstTimestamp();
+                }
+
+                rtpInfo += ",";
+            }
         }
 
         // remove trailing comma
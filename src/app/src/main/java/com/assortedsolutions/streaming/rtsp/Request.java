@@ -1,7 +1,8 @@
 package com.assortedsolutions.streaming.rtsp;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketException;
 import java.util.HashMap;
 import java.util.Locale;
@@ -22,17 +23,26 @@ class Request
     String uri;
     HashMap<String,String> headers = new HashMap<>();
 
+    /** Receives the packets a client interleaves in its RTSP connection. */
+    interface InterleavedFrameListener
+    {
+        void onInterleavedFrame(int channel, byte[] packet, int length);
+    }
+
     /**
      * Parse the method, uri and headers of a RTSP request.
+     * The RTCP packets a client interleaves in the connection before the request are handed to the listener.
+     * @param input The input stream of the connection, it should be buffered since it is read byte by byte
+     * @param listener Receives the interleaved packets, may be null
      */
-    static Request parse(BufferedReader input) throws IOException
+    static Request parse(InputStream input, InterleavedFrameListener listener) throws IOException
     {
         Request request = new Request();
         String line;
         Matcher matcher;
 
         // Parsing request method & uri
-        if ((line = input.readLine()) == null)
+        if ((line = readLine(input, readInterleavedFrames(input, listener))) == null)
         {
             throw new SocketException("Client disconnected");
         }
@@ -43,7 +53,7 @@ class Request
         request.uri = matcher.group(2);
 
         // Parsing headers of the request
-        while ((line = input.readLine()) != null && line.length() > 3)
+        while ((line = readLine(input, input.read())) != null && line.length() > 3)
         {
             matcher = regexHeader.matcher(line);
             matcher.find();
@@ -57,4 +67,71 @@ class Request
 
         return request;
     }
+
+    /**
+     * Reads the frames starting with a '$', see section 10.12 of RFC 2326.
+     * @return The first byte following them, -1 if the end of the stream was reached
+     */
+    private static int readInterleavedFrames(InputStream input, InterleavedFrameListener listener) throws IOException
+    {
+        int c;
+        byte[] packet = null;
+        while ((c = input.read()) == '$')
+        {
+            // Channel identifier then length of the packet on 16 bits
+            int channel = input.read();
+            int length = input.read() << 8 | input.read();
+            if (length < 0)
+            {
+                throw new EOFException();
+            }
+
+            if (packet == null || packet.length < length)
+            {
+                packet = new byte[length];
+            }
+
+            for (int read = 0, n; read < length; read += n)
+            {
+                if ((n = input.read(packet, read, length - read)) < 0)
+                {
+                    throw new EOFException();
+                }
+            }
+
+            if (listener != null)
+            {
+                listener.onInterleavedFrame(channel, packet, length);
+            }
+        }
+
+        return c;
+    }
+
+    /**
+     * Reads a line terminated by a line feed, the carriage return is dropped.
+     * RTSP messages are ISO-8859-1 text, the line is read byte by byte so that the stream is not read further.
+     * @param c The first byte of the line
+     * @return The line, or null if the end of the stream was reached
+     */
+    private static String readLine(InputStream input, int c) throws IOException
+    {
+        if (c == -1)
+        {
+            return null;
+        }
+
+        StringBuilder line = new StringBuilder();
+        while (c != -1 && c != '\n')
+        {
+            if (c != '\r')
+            {
+                line.append((char) c);
+            }
+
+            c = input.read();
+        }
+
+        return line.toString();
+    }
 }
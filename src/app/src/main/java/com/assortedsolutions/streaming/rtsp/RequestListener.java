@@ -4,14 +4,15 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.net.BindException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 class RequestListener extends Thread implements Runnable
 {
     private static final String TAG = "RequestListener";
-    private final ServerSocket serverSocket;
+    private final ServerSocketChannel serverSocketChannel;
     private final String username;
     private final String password;
 
@@ -22,7 +23,9 @@ class RequestListener extends Thread implements Runnable
 
         try
         {
-            serverSocket = new ServerSocket(port);
+            // Clients are accepted with a channel so that media can be interleaved in their connection with gathering writes
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.socket().bind(new InetSocketAddress(port));
             start();
         }
         catch (BindException e)
@@ -34,18 +37,19 @@ class RequestListener extends Thread implements Runnable
 
     public void run()
     {
-        Log.i(TAG,"RTSP server listening on port " + serverSocket.getLocalPort());
+        Log.i(TAG,"RTSP server listening on port " + serverSocketChannel.socket().getLocalPort());
 
         while (!Thread.interrupted())
         {
             try
             {
                 // accept() waits until connection is made and then returns a socket
-                Socket socket = serverSocket.accept();
-                new ClientConnection(socket, username, password).start();
+                SocketChannel channel = serverSocketChannel.accept();
+                new ClientConnection(channel, username, password).start();
             }
-            catch (SocketException e)
+            catch (ClosedChannelException e)
             {
+                // kill() closed the server
                 break;
             }
             catch (IOException e)
@@ -61,7 +65,7 @@ class RequestListener extends Thread implements Runnable
     {
         try
         {
-            serverSocket.close();
+            serverSocketChannel.close();
         }
         catch (IOException e)
         {
@@ -14,6 +14,7 @@ class Response
     static final String STATUS_BAD_REQUEST = "400 Bad Request";
     static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
     static final String STATUS_NOT_FOUND = "404 Not Found";
+    static final String STATUS_UNSUPPORTED_TRANSPORT = "461 Unsupported Transport";
     static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
     private static final String SERVER_NAME = "Casnic Surveillance RTSP Server";
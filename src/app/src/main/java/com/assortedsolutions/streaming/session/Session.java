@@ -3,13 +3,21 @@ package com.assortedsolutions.streaming.session;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
 
+import com.assortedsolutions.streaming.MediaStream;
 import com.assortedsolutions.streaming.Stream;
 import com.assortedsolutions.streaming.audio.AudioStream;
 import com.assortedsolutions.streaming.exceptions.CameraInUseException;
 import com.assortedsolutions.streaming.exceptions.ConfNotSupportedException;
 import com.assortedsolutions.streaming.exceptions.InvalidSurfaceException;
 import com.assortedsolutions.streaming.exceptions.StorageUnavailableException;
+import com.assortedsolutions.streaming.rtcp.ReceiverStatistics;
+import com.assortedsolutions.streaming.rtp.InterleavedWriter;
+import com.assortedsolutions.streaming.rtp.MediaClock;
+import com.assortedsolutions.streaming.rtp.RtpDestination;
+import com.assortedsolutions.streaming.rtp.SrtpContext;
 import com.assortedsolutions.streaming.video.VideoStream;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -76,6 +84,24 @@ public class Session
     private AudioStream audioStream = null;
     private VideoStream videoStream = null;
 
+    /** Destinations this session added to its streams, they may be shared with other sessions. */
+    private final RtpDestination[] destinations = new RtpDestination[2];
+    private final boolean[] multicastDestinations = new boolean[2];
+
+    /** Whether the video encoder is asked for a key frame when the client starts playing. */
+    private boolean fastStart = true;
+
+    /** SRTP master keys of the tracks, given to the client in the session description. */
+    private boolean srtp = false;
+    private final byte[][] keyMaterials = new byte[2][];
+
+    /** Multicast group shared by all the sessions, and the master keys of its tracks. */
+    private String multicastGroup = null;
+    private byte[][] multicastKeyMaterials = null;
+
+    /** Clock of the streams, the capture times of audio and video are converted with it. */
+    private MediaClock mediaClock = null;
+
     private Callback callback;
     private Handler mainHandler;
     private Handler handler;
@@ -100,6 +126,7 @@ public class Session
     {
         removeAudioStream();
         audioStream = stream;
+        applyMediaClock(stream);
     }
 
     public AudioStream getAudioStream()
@@ -114,7 +141,12 @@ public class Session
             return;
         }
 
-        audioStream.stop();
+        // Another session may still be using the stream
+        if (audioStream.getDestinationCount() == 0)
+        {
+            audioStream.stop();
+        }
+
         audioStream = null;
     }
 
@@ -122,6 +154,7 @@ public class Session
     {
         removeVideoStream();
         videoStream = stream;
+        applyMediaClock(stream);
     }
 
     public VideoStream getVideoStream()
@@ -136,7 +169,11 @@ public class Session
             return;
         }
 
-        videoStream.stopPreview();
+        if (videoStream.getDestinationCount() == 0)
+        {
+            videoStream.stopPreview();
+        }
+
         videoStream = null;
     }
 
@@ -196,6 +233,52 @@ public class Session
         return destination;
     }
 
+    /**
+     * Lets the client receive the tracks from a multicast group, see {@link #startMulticast(int)}.
+     * @param group The group, shared by all the sessions
+     * @param keyMaterials The SRTP master keys of the tracks of the group, shared by all the sessions as well
+     */
+    void setMulticastGroup(String group, byte[][] keyMaterials)
+    {
+        multicastGroup = group;
+        multicastKeyMaterials = keyMaterials;
+    }
+
+    /**
+     * Sets the clock of the streams of the session, see {@link MediaClock}.
+     * Streams added afterwards use it the next time they start.
+     */
+    public void setMediaClock(MediaClock mediaClock)
+    {
+        this.mediaClock = mediaClock;
+    }
+
+    public MediaClock getMediaClock()
+    {
+        return mediaClock;
+    }
+
+    /** A running stream keeps its clock, its timestamps would jump otherwise. */
+    private void applyMediaClock(MediaStream stream)
+    {
+        if (mediaClock != null && stream != null && !stream.isStreaming())
+        {
+            stream.setMediaClock(mediaClock);
+        }
+    }
+
+    /** Returns the multicast group of the session, null if multicast is not enabled. */
+    public String getMulticastGroup()
+    {
+        return multicastGroup;
+    }
+
+    /** Returns the TTL set with {@link #setTimeToLive(int)}. */
+    public int getTimeToLive()
+    {
+        return timeToLive;
+    }
+
     /**
      * Set the TTL of all packets sent during the session. <br />
      * Changes will be taken into account the next time you start the session.
@@ -233,19 +316,63 @@ public class Session
         // Prevents two different sessions from using the same peripheral at the same time
         if (audioStream != null)
         {
-            sessionDescription.append(audioStream.getSessionDescription());
+            appendMediaDescription(sessionDescription, audioStream.getSessionDescription(), 0);
             sessionDescription.append("a=control:trackID=0\r\n");
         }
 
         if (videoStream != null)
         {
-            sessionDescription.append(videoStream.getSessionDescription());
+            appendMediaDescription(sessionDescription, videoStream.getSessionDescription(), 1);
             sessionDescription.append("a=control:trackID=1\r\n");
         }
 
         return sessionDescription.toString();
     }
 
+    /** With SRTP the profile of the track becomes RTP/SAVP and its master key is added. */
+    private void appendMediaDescription(StringBuilder sessionDescription, String mediaDescription, int id)
+    {
+        if (!srtp)
+        {
+            sessionDescription.append(mediaDescription);
+            return;
+        }
+
+        sessionDescription.append(mediaDescription.replaceFirst(" RTP/AVP ", " RTP/SAVP "));
+        sessionDescription.append(SrtpContext.getCryptoAttribute(getKeyMaterial(id)));
+    }
+
+    private synchronized byte[] getKeyMaterial(int id)
+    {
+        // The key of the multicast stream must be the same for all the clients
+        if (multicastKeyMaterials != null)
+        {
+            return multicastKeyMaterials[id];
+        }
+
+        if (keyMaterials[id] == null)
+        {
+            keyMaterials[id] = SrtpContext.generateKeyMaterial();
+        }
+
+        return keyMaterials[id];
+    }
+
+    /**
+     * Protects the packets sent to the client of this session with SRTP and SRTCP.
+     * Each track gets a random master key, given to the client in the session description.
+     * Must be called before {@link #getSessionDescription()}.
+     */
+    public void setSrtpEnabled(boolean enabled)
+    {
+        srtp = enabled;
+    }
+
+    public boolean isSrtpEnabled()
+    {
+        return srtp;
+    }
+
     /** Returns an approximation of the bandwidth consumed by the session in bit per second. */
     public long getBitrate()
     {
@@ -375,30 +502,281 @@ public class Session
         }
     }
 
+    /**
+     * Sends a stream to the destination of the session in a synchronous manner. <br />
+     * The stream may be shared with other sessions: it is only started if it is not running yet,
+     * otherwise the packets it already sends are also sent to this destination.
+     * Throws exceptions in addition to calling a callback.
+     * @param id The id of the stream to start
+     * @param rtpPort Destination port that will be used for RTP
+     * @param rtcpPort Destination port that will be used for RTCP
+     * @return The destination, with the SSRC and the source ports the receiver will see
+     **/
+    public RtpDestination start(int id, int rtpPort, int rtcpPort) throws CameraInUseException, ConfNotSupportedException, InvalidSurfaceException, IOException
+    {
+        return startDestination(id, null, false, rtpPort, rtcpPort);
+    }
+
+    /**
+     * Same as {@link #start(int, int, int)} but the packets are sent to the multicast group of the session,
+     * to the destination ports of the stream. The clients of all the sessions receive the same packets
+     * so the bandwidth used does not depend on how many of them are watching.
+     * @param id The id of the stream to start
+     * @return The destination shared by the clients of the group
+     **/
+    public RtpDestination startMulticast(int id) throws CameraInUseException, ConfNotSupportedException, InvalidSurfaceException, IOException
+    {
+        if (multicastGroup == null)
+        {
+            throw new IllegalStateException("Multicast is not enabled");
+        }
+
+        return startDestination(id, null, true, 0, 0);
+    }
+
+    /**
+     * Same as {@link #start(int, int, int)} but the packets are interleaved in the RTSP connection of the client.
+     * @param id The id of the stream to start
+     * @param writer The writer of the RTSP connection
+     * @param rtpChannel Interleaved channel identifier that will be used for RTP
+     * @param rtcpChannel Interleaved channel identifier that will be used for RTCP
+     * @return The destination, with the SSRC the receiver will see
+     **/
+    public RtpDestination start(int id, InterleavedWriter writer, int rtpChannel, int rtcpChannel) throws CameraInUseException, ConfNotSupportedException, InvalidSurfaceException, IOException
+    {
+        if (writer == null)
+        {
+            throw new IllegalArgumentException("The writer of the RTSP connection is needed");
+        }
+
+        return startDestination(id, writer, false, rtpChannel, rtcpChannel);
+    }
+
+    /** Adds a destination over UDP if writer is null, interleaved in the RTSP connection otherwise. */
+    private RtpDestination startDestination(int id, InterleavedWriter writer, boolean multicast, int rtpPort, int rtcpPort) throws CameraInUseException, ConfNotSupportedException, InvalidSurfaceException, IOException
+    {
+        Stream stream = id == 0 ? audioStream : videoStream;
+        if (stream == null)
+        {
+            return null;
+        }
+
+        if (destinations[id] != null)
+        {
+            return destinations[id];
+        }
+
+        try
+        {
+            InetAddress destination = writer == null ? InetAddress.getByName(multicast ? multicastGroup : this.destination) : null;
+            SrtpContext context = srtp ? new SrtpContext(getKeyMaterial(id)) : null;
+
+            // Sessions sharing the stream must not start it twice
+            synchronized (stream)
+            {
+                if (multicast)
+                {
+                    destinations[id] = stream.addMulticastDestination(destination, context);
+                    multicastDestinations[id] = true;
+                }
+                else if (writer == null)
+                {
+                    destinations[id] = stream.addDestination(destination, rtpPort, rtcpPort, context);
+                }
+                else
+                {
+                    destinations[id] = stream.addDestination(writer, rtpPort, rtcpPort, context);
+                }
+
+                if (!stream.isStreaming())
+                {
+                    try
+                    {
+                        stream.setTimeToLive(timeToLive);
+                        stream.start();
+                    }
+                    catch (IOException | RuntimeException e)
+                    {
+                        stream.removeDestination(destinations[id]);
+                        destinations[id] = null;
+                        multicastDestinations[id] = false;
+                        throw e;
+                    }
+                }
+            }
+
+            if (getStream(1 - id) == null || getStream(1 - id).isStreaming())
+            {
+                postSessionStarted();
+            }
+
+            if (getStream(1 - id) == null || !getStream(1 - id).isStreaming())
+            {
+                handler.post(updateBitrate);
+            }
+
+            return destinations[id];
+        }
+        catch (UnknownHostException e)
+        {
+            postError(ERROR_UNKNOWN_HOST, id, e);
+            throw e;
+        }
+        catch (CameraInUseException e)
+        {
+            postError(ERROR_CAMERA_ALREADY_IN_USE , id, e);
+            throw e;
+        }
+        catch (StorageUnavailableException e)
+        {
+            postError(ERROR_STORAGE_NOT_READY , id, e);
+            throw e;
+        }
+        catch (ConfNotSupportedException e)
+        {
+            postError(ERROR_CONFIGURATION_NOT_SUPPORTED , id, e);
+            throw e;
+        }
+        catch (InvalidSurfaceException e)
+        {
+            postError(ERROR_INVALID_SURFACE , id, e);
+            throw e;
+        }
+        catch (IOException e)
+        {
+            postError(ERROR_OTHER, id, e);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            postError(ERROR_OTHER, id, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the destination added to a stream by {@link #start(int, int, int)}.
+     * @param id The id of the stream
+     * @return The destination or null if the stream is not sent to this session
+     */
+    public RtpDestination getRtpDestination(int id)
+    {
+        return destinations[id];
+    }
+
+    /**
+     * Returns what the receiver of this session reported about a stream in its RTCP Receiver Reports.
+     * Streams shared with other sessions only report about the receiver of this session.
+     * @param id The id of the stream
+     * @return Snapshots of the statistics, empty if the stream is not sent to this session
+     */
+    public List<ReceiverStatistics> getReceiverStatistics(int id)
+    {
+        RtpDestination destination = destinations[id];
+        if (destination == null)
+        {
+            return Collections.emptyList();
+        }
+
+        return destination.getReceiverStatistics();
+    }
+
+    /**
+     * Called when the client starts playing, the destinations of the session then wait for the beginning of a key frame
+     * so that the first packet the client gets can be decoded. The multicast group is shared with other clients
+     * and keeps flowing, its receivers wait for a key frame on their own.
+     * Interleaved packets are held by the writer until the PLAY response is sent, call this before releasing them.
+     */
+    public void play()
+    {
+        for (int id = 0; id < 2; id++)
+        {
+            if (destinations[id] != null && !multicastDestinations[id])
+            {
+                destinations[id].awaitKeyFrame();
+            }
+        }
+    }
+
+    /**
+     * Asks the video encoder for a key frame right away if fast start is enabled, see {@link #setFastStart(boolean)}.
+     * The client is started from the GOP cache of the stream instead when it holds one, sparing a key frame to the other viewers.
+     * Call it once the packets can reach the client, after {@link #play()}.
+     */
+    public void requestSyncFrame()
+    {
+        if (fastStart && videoStream != null && destinations[1] != null && !videoStream.getPacketizer().getRtpSocket().hasCachedGop())
+        {
+            videoStream.requestSyncFrame();
+        }
+    }
+
+    /**
+     * Enables or disables fast start. With fast start, a client starting to play gets a key frame
+     * requested for it instead of waiting for the next one of the encoder. Enabled by default.
+     */
+    public void setFastStart(boolean enabled)
+    {
+        fastStart = enabled;
+    }
+
+    /**
+     * Returns the time in milliseconds between the moment the client started playing a stream
+     * and the moment its first packet was sent, or -1 if it has not been sent yet.
+     * @param id The id of the stream
+     */
+    public long getTimeToFirstFrame(int id)
+    {
+        RtpDestination destination = destinations[id];
+        return destination == null ? -1 : destination.getTimeToFirstFrame();
+    }
+
     /** Stops all existing streams in a synchronous manner. */
     public void stop()
     {
         stop(0);
         stop(1);
-        postSessionStopped();
+
+        if (!isStreaming())
+        {
+            postSessionStopped();
+        }
     }
 
     /**
      * Stops one stream in a synchronous manner.
+     * A stream shared with other sessions keeps running until its last destination is removed.
      * @param id The id of the stream to stop
      **/
     private void stop(final int id)
     {
         Stream stream = id == 0 ? audioStream : videoStream;
-        if (stream != null)
+        if (stream == null)
         {
-            stream.stop();
+            return;
+        }
+
+        synchronized (stream)
+        {
+            if (destinations[id] != null)
+            {
+                stream.removeDestination(destinations[id]);
+                destinations[id] = null;
+                multicastDestinations[id] = false;
+            }
+
+            if (stream.getDestinationCount() == 0)
+            {
+                stream.stop();
+            }
         }
     }
 
     /** Deletes all existing streams & release associated resources. */
     public void release()
     {
+        stop(0);
+        stop(1);
         removeAudioStream();
         removeVideoStream();
         handler.getLooper().quit();
@@ -1,13 +1,25 @@
 package com.assortedsolutions.streaming.session;
 
 import java.io.IOException;
+import java.util.Random;
 import com.assortedsolutions.streaming.audio.AACStream;
 import com.assortedsolutions.streaming.audio.AudioQuality;
+import com.assortedsolutions.streaming.audio.AudioStream;
+import com.assortedsolutions.streaming.audio.G711Stream;
+import com.assortedsolutions.streaming.rtp.G711Packetizer;
+import com.assortedsolutions.streaming.rtp.MediaClock;
+import com.assortedsolutions.streaming.rtp.RtpSocket;
+import com.assortedsolutions.streaming.rtp.SrtpContext;
+import com.assortedsolutions.streaming.hw.CodecManager;
+import com.assortedsolutions.streaming.hw.EncoderDebugger;
 import com.assortedsolutions.streaming.video.H264Stream;
+import com.assortedsolutions.streaming.video.H265Stream;
+import com.assortedsolutions.streaming.video.VideoStream;
 import com.assortedsolutions.streaming.video.VideoQuality;
 import android.content.Context;
 import android.hardware.Camera.CameraInfo;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.SurfaceView;
 
 /**
@@ -17,18 +29,49 @@ public final class SessionBuilder
 {
     public final static String TAG = "SessionBuilder";
 
+    /** Can be used with {@link #setVideoEncoder}. */
+    public final static int VIDEO_H264 = 1;
+
+    /** Can be used with {@link #setVideoEncoder}, falls back to H.264 on phones without an H.265 encoder. */
+    public final static int VIDEO_H265 = 2;
+
+    /** Can be used with {@link #setAudioEncoder}. */
+    public final static int AUDIO_AAC = 1;
+
+    /** Can be used with {@link #setAudioEncoder}, G.711 mu-law. */
+    public final static int AUDIO_PCMU = 2;
+
+    /** Can be used with {@link #setAudioEncoder}, G.711 A-law. */
+    public final static int AUDIO_PCMA = 3;
+
     // Default configuration
     private VideoQuality videoQuality = VideoQuality.DEFAULT_VIDEO_QUALITY;
     private AudioQuality audioQuality = AudioQuality.DEFAULT_AUDIO_QUALITY;
     private int camera = CameraInfo.CAMERA_FACING_BACK;
     private int timeToLive = 64;
     private int orientation = 0;
+    private int egressMode = RtpSocket.EGRESS_SOCKET;
+    private int videoEncoder = VIDEO_H264;
+    private int audioEncoder = AUDIO_AAC;
+    private boolean srtp = false;
+    private boolean fastStart = true;
+    private String multicastGroup = null;
+    private byte[][] multicastKeyMaterials = null;
     private SurfaceView surfaceView = null;
     private String origin = null;
     private String destination = null;
     private Callback callback = null;
     private Context context;
 
+    // The streams are shared by all the sessions, so that each client does not need its own camera and encoder
+    private AudioStream audioStream = null;
+    private int audioStreamEncoder;
+    private VideoStream videoStream = null;
+    private int videoStreamEncoder;
+
+    // A single clock for all the streams, the receivers use it to keep audio and video in sync
+    private final MediaClock mediaClock = new MediaClock();
+
     // Removes the default public constructor
     private SessionBuilder() {}
 
@@ -65,7 +108,27 @@ public final class SessionBuilder
         return this;
     }
 
-    /** Sets the audio quality. */
+    /**
+     * Sets the video encoder, a running video stream keeps its encoder until it stops.
+     * @param encoder Either {@link #VIDEO_H264} or {@link #VIDEO_H265}
+     */
+    public SessionBuilder setVideoEncoder(int encoder)
+    {
+        videoEncoder = encoder;
+        return this;
+    }
+
+    /**
+     * Sets the audio encoder, a running audio stream keeps its encoder until it stops.
+     * @param encoder Either {@link #AUDIO_AAC}, {@link #AUDIO_PCMU} or {@link #AUDIO_PCMA}
+     */
+    public SessionBuilder setAudioEncoder(int encoder)
+    {
+        audioEncoder = encoder;
+        return this;
+    }
+
+    /** Sets the audio quality, G.711 is always sent at 8 kHz. */
     public SessionBuilder setAudioQuality(AudioQuality quality)
     {
         audioQuality = quality.clone();
@@ -79,6 +142,57 @@ public final class SessionBuilder
         return this;
     }
 
+    /**
+     * Sets how the RTP packets of the streams are written to the network.
+     * @param mode Either {@link RtpSocket#EGRESS_SOCKET} or {@link RtpSocket#EGRESS_CHANNEL}
+     */
+    public SessionBuilder setEgressMode(int mode)
+    {
+        egressMode = mode;
+        return this;
+    }
+
+    /** Protects the streams of the sessions built with SRTP, see {@link Session#setSrtpEnabled(boolean)}. */
+    public SessionBuilder setSrtpEnabled(boolean enabled)
+    {
+        srtp = enabled;
+        return this;
+    }
+
+    /** Requests a key frame for each client starting to play, see {@link Session#setFastStart(boolean)}. */
+    public SessionBuilder setFastStart(boolean enabled)
+    {
+        fastStart = enabled;
+        return this;
+    }
+
+    /**
+     * Lets the clients receive the streams from a multicast group instead of getting their own copy of the packets.
+     * A group is picked at random in the organization local scope (239.255.0.0/16) the first time,
+     * the tracks are sent to their usual destination ports in that group.
+     */
+    public synchronized SessionBuilder setMulticastEnabled(boolean enabled)
+    {
+        if (!enabled)
+        {
+            multicastGroup = null;
+        }
+        else if (multicastGroup == null)
+        {
+            Random random = new Random();
+            multicastGroup = "239.255." + random.nextInt(256) + "." + (1 + random.nextInt(254));
+            multicastKeyMaterials = new byte[][] {SrtpContext.generateKeyMaterial(), SrtpContext.generateKeyMaterial()};
+        }
+
+        return this;
+    }
+
+    /** Returns the multicast group the streams are sent to, null if multicast is not enabled. */
+    public synchronized String getMulticastGroup()
+    {
+        return multicastGroup;
+    }
+
     public SessionBuilder setCallback(Callback callback)
     {
         this.callback = callback;
@@ -91,10 +205,12 @@ public final class SessionBuilder
 
     /**
      * Creates a new {@link Session}.
+     * The streams are shared by the sessions: a stream already running for a session
+     * is sent to the new one as well and keeps its current configuration.
      * @return The new Session
      * @throws IOException
      */
-    public Session build()
+    public synchronized Session build()
     {
         Session session;
         session = new Session();
@@ -102,25 +218,83 @@ public final class SessionBuilder
         session.setDestination(destination);
         session.setTimeToLive(timeToLive);
         session.setCallback(callback);
+        session.setSrtpEnabled(srtp);
+        session.setFastStart(fastStart);
+        session.setMediaClock(mediaClock);
+        if (multicastGroup != null)
+        {
+            session.setMulticastGroup(multicastGroup, multicastKeyMaterials);
+        }
 
-        AACStream aacStream = new AACStream();
-        aacStream.setAudioQuality(audioQuality);
-        aacStream.setDestinationPorts(5004); // TODO: Hard-coded port?
-        session.addAudioStream(aacStream);
+        if (audioStream == null || !audioStream.isStreaming() && audioStreamEncoder != audioEncoder)
+        {
+            audioStream = createAudioStream();
+            audioStreamEncoder = audioEncoder;
+        }
 
-        H264Stream h264Stream = new H264Stream(camera);
-        h264Stream.setVideoQuality(videoQuality);
-        h264Stream.setSurfaceView(surfaceView);
-        h264Stream.setPreviewOrientation(orientation);
-        h264Stream.setDestinationPorts(5006); // TODO: Hard-coded port?
+        if (!audioStream.isStreaming())
+        {
+            audioStream.setAudioQuality(audioQuality);
+            audioStream.setEgressMode(egressMode);
+            audioStream.setDestinationPorts(5004); // TODO: Hard-coded port?
+        }
 
-        if (context != null)
+        session.addAudioStream(audioStream);
+
+        if (videoStream == null || !videoStream.isStreaming() && videoStreamEncoder != videoEncoder)
         {
-            h264Stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(context));
+            videoStream = createVideoStream();
+            videoStreamEncoder = videoEncoder;
         }
 
-        session.addVideoStream(h264Stream);
+        if (!videoStream.isStreaming())
+        {
+            videoStream.setCamera(camera);
+            videoStream.setVideoQuality(videoQuality);
+            videoStream.setEgressMode(egressMode);
+            videoStream.setSurfaceView(surfaceView);
+            videoStream.setPreviewOrientation(orientation);
+            videoStream.setDestinationPorts(5006); // TODO: Hard-coded port?
+
+            if (context != null)
+            {
+                videoStream.setPreferences(PreferenceManager.getDefaultSharedPreferences(context));
+            }
+        }
+
+        session.addVideoStream(videoStream);
 
         return session;
     }
+
+    private AudioStream createAudioStream()
+    {
+        if (audioEncoder == AUDIO_PCMU)
+        {
+            return new G711Stream(G711Packetizer.PAYLOAD_TYPE_PCMU);
+        }
+
+        if (audioEncoder == AUDIO_PCMA)
+        {
+            return new G711Stream(G711Packetizer.PAYLOAD_TYPE_PCMA);
+        }
+
+        return new AACStream();
+    }
+
+    private VideoStream createVideoStream()
+    {
+        if (videoEncoder == VIDEO_H265)
+        {
+            if (CodecManager.hasEncoder(EncoderDebugger.MIME_HEVC))
+            {
+                return new H265Stream(camera);
+            }
+
+            Log.w(TAG, "No H.265 encoder on this phone, falling back to H.264");
+        }
+
+        return new H264Stream(camera);
+    }
+
 }
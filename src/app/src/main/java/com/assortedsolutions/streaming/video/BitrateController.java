@@ -0,0 +1,285 @@
+package com.assortedsolutions.streaming.video;
+
+import java.util.HashMap;
+import java.util.List;
+import com.assortedsolutions.streaming.rtcp.ReceiverStatistics;
+import com.assortedsolutions.streaming.rtp.Pacer;
+import com.assortedsolutions.streaming.rtp.RtpSocket;
+import com.assortedsolutions.streaming.rtp.TokenBucketPacer;
+import android.media.MediaCodec;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Adapts the bit rate of a running H.264 encoder to the network, in the spirit of Google Congestion Control.
+ *
+ * Two estimates are computed and the lowest one is used:
+ * the loss based estimate follows the fraction of packets lost reported by the receivers in their RTCP Receiver Reports,
+ * the delay based estimate backs off when the round trip time rises above the lowest one seen
+ * or when packets pile up in the FIFO of the {@link RtpSocket}, and grows slowly otherwise.
+ *
+ * The encoder is only reconfigured when the estimate moved far enough from its current bit rate,
+ * and the bit rate is not raised again right after a decrease.
+ * When the stream is sent to several receivers, the one with the worst link drives the encoder.
+ *
+ * When the packets are protected by forward error correction, the ratio of parity packets follows the loss as well.
+ */
+public class BitrateController implements Runnable
+{
+    public final static String TAG = "BitrateController";
+
+    /** Interval between two updates of the estimates in ms. */
+    private static final long INTERVAL = 500;
+
+    /** Minimum relative change of the bit rate before the encoder is reconfigured. */
+    private static final float HYSTERESIS = 0.1f;
+
+    /** Time in ms during which the bit rate is not raised after a decrease. */
+    private static final long HOLD_TIME = 2000;
+
+    /** A round trip time this much above the lowest one seen (in ms) means queues are building up along the path. */
+    private static final long RTT_MARGIN = 100;
+
+    private final MediaCodec mediaCodec;
+    private final RtpSocket socket;
+    private final int floor;
+    private final int ceiling;
+
+    private Thread thread;
+
+    private int bitrate;
+    private float lossEstimate;
+    private float delayEstimate;
+    private long minRoundTripTime = Long.MAX_VALUE;
+    private long lastDecrease = 0;
+    private long lastDroppedPackets = 0;
+    private final HashMap<Integer, Integer> reportCounts = new HashMap<>();
+
+    private int increases = 0;
+    private int decreases = 0;
+
+    /**
+     * @param mediaCodec The running encoder
+     * @param socket The socket the packets of the encoder are sent with
+     * @param bitrate The bit rate the encoder was configured with
+     * @param floor The lowest bit rate the controller may choose
+     * @param ceiling The highest bit rate the controller may choose
+     */
+    public BitrateController(MediaCodec mediaCodec, RtpSocket socket, int bitrate, int floor, int ceiling)
+    {
+        this.mediaCodec = mediaCodec;
+        this.socket = socket;
+        this.floor = floor;
+        this.ceiling = Math.max(floor, ceiling);
+        this.bitrate = bitrate;
+        lossEstimate = bitrate;
+        delayEstimate = bitrate;
+    }
+
+    public synchronized void start()
+    {
+        if (thread == null)
+        {
+            lastDroppedPackets = socket.getDroppedPackets();
+            thread = new Thread(this, TAG);
+            thread.start();
+        }
+    }
+
+    public void stop()
+    {
+        Thread t;
+        synchronized (this)
+        {
+            t = thread;
+            thread = null;
+        }
+
+        if (t != null)
+        {
+            t.interrupt();
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException ignore) {}
+        }
+    }
+
+    /** Returns the bit rate the encoder currently runs at. */
+    public synchronized int getBitrate()
+    {
+        return bitrate;
+    }
+
+    /** Returns how many times the bit rate of the encoder was raised. */
+    public synchronized int getIncreaseCount()
+    {
+        return increases;
+    }
+
+    /** Returns how many times the bit rate of the encoder was lowered. */
+    public synchronized int getDecreaseCount()
+    {
+        return decreases;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (!Thread.interrupted())
+            {
+                Thread.sleep(INTERVAL);
+                update();
+            }
+        }
+        catch (InterruptedException ignore)
+        {
+            // The controller was stopped
+        }
+    }
+
+    private synchronized void update()
+    {
+        long now = System.currentTimeMillis();
+        float loss = -1;
+        long roundTripTime = -1;
+
+        // Only the reports received since the last update are taken into account
+        List<ReceiverStatistics> reports = socket.getReceiverStatistics();
+        for (ReceiverStatistics report : reports)
+        {
+            Integer seen = reportCounts.get(report.getSSRC());
+            if (seen != null && seen == report.getReportCount())
+            {
+                continue;
+            }
+
+            reportCounts.put(report.getSSRC(), report.getReportCount());
+            loss = Math.max(loss, report.getFractionLost());
+            roundTripTime = Math.max(roundTripTime, report.getRoundTripTime());
+        }
+
+        if (loss >= 0)
+        {
+            updateFec(loss);
+        }
+
+        // Loss based estimate, updated on each new report
+        if (loss > 0.1f)
+        {
+            lossEstimate = bitrate * (1 - 0.5f * loss);
+        }
+        else if (loss >= 0 && loss < 0.02f)
+        {
+            lossEstimate = Math.max(lossEstimate, bitrate) * 1.05f;
+        }
+
+        // Delay based estimate
+        if (roundTripTime >= 0 && roundTripTime < minRoundTripTime)
+        {
+            minRoundTripTime = roundTripTime;
+        }
+
+        long droppedPackets = socket.getDroppedPackets();
+        boolean overuse =
+            droppedPackets > lastDroppedPackets ||
+            socket.getQueueSize() > socket.getQueueCapacity() / 4 ||
+            (roundTripTime >= 0 && roundTripTime > minRoundTripTime + RTT_MARGIN);
+        lastDroppedPackets = droppedPackets;
+
+        if (overuse)
+        {
+            delayEstimate = bitrate * 0.85f;
+        }
+        else
+        {
+            // About +8% per second
+            delayEstimate = Math.max(delayEstimate, bitrate) * (1 + 0.08f * INTERVAL / 1000);
+        }
+
+        lossEstimate = clamp(lossEstimate);
+        delayEstimate = clamp(delayEstimate);
+
+        int target = (int) Math.min(lossEstimate, delayEstimate);
+        if (Math.abs(target - bitrate) < bitrate * HYSTERESIS)
+        {
+            return;
+        }
+
+        if (target > bitrate && now - lastDecrease < HOLD_TIME)
+        {
+            return;
+        }
+
+        if (target < bitrate)
+        {
+            lastDecrease = now;
+            decreases++;
+        }
+        else
+        {
+            increases++;
+        }
+
+        setBitrate(target);
+    }
+
+    /** The more packets are lost, the smaller the groups protected by a parity packet. */
+    private void updateFec(float loss)
+    {
+        if (!socket.isForwardErrorCorrectionEnabled())
+        {
+            return;
+        }
+
+        if (loss < 0.02f)
+        {
+            socket.setForwardErrorCorrection(10, 1);
+        }
+        else if (loss < 0.05f)
+        {
+            socket.setForwardErrorCorrection(5, 1);
+        }
+        else if (loss < 0.1f)
+        {
+            socket.setForwardErrorCorrection(6, 6);
+        }
+        else
+        {
+            socket.setForwardErrorCorrection(4, 4);
+        }
+    }
+
+    private float clamp(float estimate)
+    {
+        return Math.max(floor, Math.min(ceiling, estimate));
+    }
+
+    private void setBitrate(int target)
+    {
+        try
+        {
+            Bundle parameters = new Bundle();
+            parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, target);
+            mediaCodec.setParameters(parameters);
+        }
+        catch (IllegalStateException e)
+        {
+            // The encoder was released in the meantime
+            Log.e(TAG, "Setting the bit rate threw", e);
+            return;
+        }
+
+        Log.d(TAG, "Bit rate: " + bitrate + " -> " + target);
+        bitrate = target;
+
+        Pacer pacer = socket.getPacer();
+        if (pacer instanceof TokenBucketPacer)
+        {
+            ((TokenBucketPacer) pacer).setTargetBitrate(target);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.assortedsolutions.streaming.session.SessionBuilder;
 import com.assortedsolutions.streaming.hw.EncoderDebugger;
 import com.assortedsolutions.streaming.mp4.MP4Config;
 import com.assortedsolutions.streaming.rtp.H264Packetizer;
+import com.assortedsolutions.streaming.rtp.RtpSocket;
 import android.graphics.ImageFormat;
 import android.media.MediaRecorder;
 import android.service.textservice.SpellCheckerService.Session;
@@ -32,12 +33,21 @@ public class H264Stream extends VideoStream
     public H264Stream(int cameraId)
     {
         super(cameraId);
-        mimeType = "video/avc";
+        mimeType = EncoderDebugger.MIME_AVC;
         cameraImageFormat = ImageFormat.NV21;
         videoEncoder = MediaRecorder.VideoEncoder.H264;
         packetizer = new H264Packetizer();
     }
 
+    /**
+     * Sends the small NAL units of each frame together in STAP-A packets, see {@link H264Packetizer#setAggregationEnabled(boolean)}.
+     * Enabled by default.
+     */
+    public void setAggregationEnabled(boolean enabled)
+    {
+        ((H264Packetizer) packetizer).setAggregationEnabled(enabled);
+    }
+
     /**
      * Returns a description of the stream using SDP. It can then be included in an SDP file.
      */
@@ -48,11 +58,16 @@ public class H264Stream extends VideoStream
             throw new IllegalStateException("You need to call configure() first");
         }
 
-        return "m=video " + getDestinationPorts()[0] + " RTP/AVP 96\r\n" +
+        String fec = forwardErrorCorrection ? " " + RtpSocket.FEC_PAYLOAD_TYPE : "";
+        return "m=video " + getDestinationPorts()[0] + " RTP/AVP 96 " + RtpSocket.RTX_PAYLOAD_TYPE + fec + "\r\n" +
                 "a=rtpmap:96 H264/90000\r\n" +
                 "a=fmtp:96 packetization-mode=1;profile-level-id=" + mp4Config.getProfileLevel() +
                 ";sprop-parameter-sets=" + mp4Config.getB64SPS() + "," + mp4Config.getB64PPS() +
-                ";\r\n";
+                ";\r\n" +
+                "a=rtcp-fb:96 nack\r\n" +
+                "a=rtpmap:" + RtpSocket.RTX_PAYLOAD_TYPE + " rtx/90000\r\n" +
+                "a=fmtp:" + RtpSocket.RTX_PAYLOAD_TYPE + " apt=96;rtx-time=1000\r\n" +
+                (forwardErrorCorrection ? "a=rtpmap:" + RtpSocket.FEC_PAYLOAD_TYPE + " ulpfec/90000\r\n" : "");
     }
 
     /**
@@ -92,7 +107,7 @@ public class H264Stream extends VideoStream
         updateCamera();
         try
         {
-            EncoderDebugger debugger = EncoderDebugger.debug(settings, quality.resX, quality.resY);
+            EncoderDebugger debugger = EncoderDebugger.debug(settings, mimeType, quality.resX, quality.resY);
             return new MP4Config(debugger.getBase64SPS(), debugger.getBase64PPS());
         }
         catch (Exception e)
@@ -0,0 +1,124 @@
+package com.assortedsolutions.streaming.video;
+
+import java.io.IOException;
+import com.assortedsolutions.streaming.hw.EncoderDebugger;
+import com.assortedsolutions.streaming.rtp.H265Packetizer;
+import com.assortedsolutions.streaming.rtp.RtpSocket;
+import com.assortedsolutions.streaming.session.SessionBuilder;
+import android.graphics.ImageFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A class for streaming H.265 from the camera of an android device using RTP (RFC 7798).
+ * It needs a hardware HEVC encoder, for the same quality the stream takes noticeably less bandwidth than with H.264.
+ * You should use a {@link com.assortedsolutions.streaming.session.Session} instantiated with {@link SessionBuilder}
+ * instead of using this class directly.
+ */
+public class H265Stream extends VideoStream
+{
+    public final static String TAG = "H265Stream";
+
+    private String vps;
+    private String sps;
+    private String pps;
+
+    /**
+     * Constructs the H.265 stream.
+     * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+     */
+    public H265Stream(int cameraId)
+    {
+        super(cameraId);
+        mimeType = EncoderDebugger.MIME_HEVC;
+        cameraImageFormat = ImageFormat.NV21;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+        {
+            // The constant came with Android 7, the stream is encoded with MediaCodec either way
+            videoEncoder = MediaRecorder.VideoEncoder.HEVC;
+        }
+
+        packetizer = new H265Packetizer();
+    }
+
+    /**
+     * Sends the small NAL units of each frame together in APs, see {@link H265Packetizer#setAggregationEnabled(boolean)}.
+     * Enabled by default.
+     */
+    public void setAggregationEnabled(boolean enabled)
+    {
+        ((H265Packetizer) packetizer).setAggregationEnabled(enabled);
+    }
+
+    /**
+     * Returns a description of the stream using SDP. It can then be included in an SDP file.
+     */
+    public synchronized String getSessionDescription() throws IllegalStateException
+    {
+        if (sps == null)
+        {
+            throw new IllegalStateException("You need to call configure() first");
+        }
+
+        String fec = forwardErrorCorrection ? " " + RtpSocket.FEC_PAYLOAD_TYPE : "";
+        return "m=video " + getDestinationPorts()[0] + " RTP/AVP 96 " + RtpSocket.RTX_PAYLOAD_TYPE + fec + "\r\n" +
+                "a=rtpmap:96 H265/90000\r\n" +
+                "a=fmtp:96 sprop-vps=" + vps + ";sprop-sps=" + sps + ";sprop-pps=" + pps + "\r\n" +
+                "a=rtcp-fb:96 nack\r\n" +
+                "a=rtpmap:" + RtpSocket.RTX_PAYLOAD_TYPE + " rtx/90000\r\n" +
+                "a=fmtp:" + RtpSocket.RTX_PAYLOAD_TYPE + " apt=96;rtx-time=1000\r\n" +
+                (forwardErrorCorrection ? "a=rtpmap:" + RtpSocket.FEC_PAYLOAD_TYPE + " ulpfec/90000\r\n" : "");
+    }
+
+    /**
+     * Starts the stream.
+     * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+     */
+    public synchronized void start() throws IllegalStateException, IOException
+    {
+        if (!streaming)
+        {
+            configure();
+            ((H265Packetizer) packetizer).setStreamParameters(
+                Base64.decode(vps, Base64.NO_WRAP),
+                Base64.decode(sps, Base64.NO_WRAP),
+                Base64.decode(pps, Base64.NO_WRAP));
+            super.start();
+        }
+    }
+
+    /**
+     * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+     * your configuration of the stream.
+     */
+    public synchronized void configure() throws IllegalStateException, IOException
+    {
+        super.configure();
+        quality = requestedQuality.clone();
+        testMediaCodecAPI();
+    }
+
+    /**
+     * Tests if streaming with the given configuration (bit rate, frame rate, resolution) is possible
+     * and determines the parameter sets. Should not be called by the UI thread.
+     **/
+    private void testMediaCodecAPI() throws RuntimeException
+    {
+        createCamera();
+        updateCamera();
+        try
+        {
+            EncoderDebugger debugger = EncoderDebugger.debug(settings, mimeType, quality.resX, quality.resY);
+            vps = debugger.getBase64VPS();
+            sps = debugger.getBase64SPS();
+            pps = debugger.getBase64PPS();
+        }
+        catch (Exception e)
+        {
+            Log.e(TAG,"Resolution not supported with the MediaCodec API.");
+            throw e;
+        }
+    }
+}
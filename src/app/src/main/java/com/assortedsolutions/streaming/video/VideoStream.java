@@ -10,7 +10,9 @@ import com.assortedsolutions.streaming.exceptions.CameraInUseException;
 import com.assortedsolutions.streaming.exceptions.InvalidSurfaceException;
 import com.assortedsolutions.streaming.hw.EncoderDebugger;
 import com.assortedsolutions.streaming.hw.NV21Convertor;
+import com.assortedsolutions.streaming.rtp.AsyncEncoder;
 import com.assortedsolutions.streaming.rtp.MediaCodecInputStream;
+import com.assortedsolutions.streaming.rtp.TokenBucketPacer;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.hardware.Camera;
@@ -18,6 +20,7 @@ import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.os.Looper;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -49,6 +52,11 @@ public abstract class VideoStream extends MediaStream
     protected boolean unlocked = false;
     protected boolean previewStarted = false;
     protected boolean updated = false;
+    protected boolean adaptiveBitrate = true;
+    protected int minBitrate = 0;
+    protected int maxBitrate = 0;
+    protected BitrateController bitrateController = null;
+    protected boolean forwardErrorCorrection = false;
 
     protected String mimeType;
     protected int cameraImageFormat;
@@ -191,6 +199,68 @@ public abstract class VideoStream extends MediaStream
         }
     }
 
+    /**
+     * Lets the bit rate of the encoder follow the network while streaming, see {@link BitrateController}.
+     * Enabled by default. Changes will take effect next time you start the stream.
+     */
+    public void setAdaptiveBitrate(boolean enabled)
+    {
+        adaptiveBitrate = enabled;
+    }
+
+    /**
+     * Sets the range the adaptive bit rate stays in, in bit per second.
+     * By default the bit rate goes from a quarter to twice the one of the {@link VideoQuality}.
+     * Changes will take effect next time you start the stream.
+     * @param floor The lowest bit rate, 0 for the default
+     * @param ceiling The highest bit rate, 0 for the default
+     */
+    public void setBitrateRange(int floor, int ceiling)
+    {
+        minBitrate = floor;
+        maxBitrate = ceiling;
+    }
+
+    /**
+     * Protects the packets with parity packets (RFC 5109), for links where retransmissions come too late.
+     * The ratio of parity packets follows the loss reported by the receivers when the bit rate is adaptive.
+     * Disabled by default. Changes will take effect next time you start the stream.
+     */
+    public void setForwardErrorCorrection(boolean enabled)
+    {
+        forwardErrorCorrection = enabled;
+    }
+
+    /** Returns the controller adapting the bit rate while streaming, null if there is none. */
+    public BitrateController getBitrateController()
+    {
+        return bitrateController;
+    }
+
+    /**
+     * Asks the encoder for a key frame right away rather than at the end of its interval,
+     * so that a client starting to play does not wait up to a whole GOP for its first picture.
+     */
+    public synchronized void requestSyncFrame()
+    {
+        if (!streaming || mediaCodec == null)
+        {
+            return;
+        }
+
+        try
+        {
+            Bundle parameters = new Bundle();
+            parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mediaCodec.setParameters(parameters);
+        }
+        catch (IllegalStateException e)
+        {
+            // The encoder was released in the meantime
+            Log.e(TAG, "Requesting a sync frame threw", e);
+        }
+    }
+
     /**
      * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called
      * @param prefs The SharedPreferences that will be used to save SPS and PPS parameters
@@ -233,6 +303,12 @@ public abstract class VideoStream extends MediaStream
         {
             camera.setPreviewCallbackWithBuffer(null);
 
+            if (bitrateController != null)
+            {
+                bitrateController.stop();
+                bitrateController = null;
+            }
+
             super.stop();
 
             // We need to restart the preview
@@ -302,11 +378,12 @@ public abstract class VideoStream extends MediaStream
             }
         }
 
-        EncoderDebugger debugger = EncoderDebugger.debug(settings, quality.resX, quality.resY);
+        EncoderDebugger debugger = EncoderDebugger.debug(settings, mimeType, quality.resX, quality.resY);
         final NV21Convertor converter = debugger.getNV21Convertor();
 
         mediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", quality.resX, quality.resY);
+        encoder = new AsyncEncoder(mediaCodec, "VideoEncoder");
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType, quality.resX, quality.resY);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, quality.bitrate);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, quality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,debugger.getEncoderColorFormat());
@@ -317,7 +394,6 @@ public abstract class VideoStream extends MediaStream
         Camera.PreviewCallback callback = new Camera.PreviewCallback()
         {
             long now = System.nanoTime()/1000, oldnow = now, i=0;
-            ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();
 
             @Override
             public void onPreviewFrame(byte[] data, Camera camera)
@@ -331,24 +407,26 @@ public abstract class VideoStream extends MediaStream
 
                 try
                 {
-                    int bufferIndex = mediaCodec.dequeueInputBuffer(500000);
+                    // The looper of the camera never waits for the encoder, the frame is dropped when it is late
+                    int bufferIndex = encoder.pollInputBuffer();
                     if (bufferIndex>=0)
                     {
-                        inputBuffers[bufferIndex].clear();
+                        ByteBuffer inputBuffer = mediaCodec.getInputBuffer(bufferIndex);
+                        inputBuffer.clear();
                         if (data == null)
                         {
                             Log.e(TAG,"Symptom of the \"Callback buffer was to small\" problem...");
                         }
                         else
                         {
-                            converter.convert(data, inputBuffers[bufferIndex]);
+                            converter.convert(data, inputBuffer);
                         }
 
-                        mediaCodec.queueInputBuffer(bufferIndex, 0, inputBuffers[bufferIndex].position(), now, 0);
+                        mediaCodec.queueInputBuffer(bufferIndex, 0, inputBuffer.position(), now, 0);
                     }
                     else
                     {
-                        Log.e(TAG,"No buffer available !");
+                        Log.w(TAG,"No buffer available, frame dropped");
                     }
                 }
                 finally
@@ -365,9 +443,25 @@ public abstract class VideoStream extends MediaStream
 
         camera.setPreviewCallbackWithBuffer(callback);
 
+        // An IDR frame would otherwise leave as a burst of datagrams large enough to overrun the queue of the access point
+        packetizer.getRtpSocket().setPacer(new TokenBucketPacer(quality.bitrate));
+        packetizer.getRtpSocket().setForwardErrorCorrection(forwardErrorCorrection ? 10 : 0, 1);
+
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        packetizer.setInputStream(new MediaCodecInputStream(mediaCodec));
+        packetizer.setInputStream(new MediaCodecInputStream(encoder));
         packetizer.start();
+
+        if (adaptiveBitrate)
+        {
+            bitrateController = new BitrateController(
+                mediaCodec,
+                packetizer.getRtpSocket(),
+                quality.bitrate,
+                minBitrate > 0 ? minBitrate : quality.bitrate / 4,
+                maxBitrate > 0 ? maxBitrate : quality.bitrate * 2);
+            bitrateController.start();
+        }
+
         streaming = true;
     }
 
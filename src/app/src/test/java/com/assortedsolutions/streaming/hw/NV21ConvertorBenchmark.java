@@ -0,0 +1,158 @@
+package com.assortedsolutions.streaming.hw;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Times the conversion of a frame on the calling thread only and in stripes, at 320x240, 720p and 1080p,
+ * and looks for the size of the chroma plane from which the stripes pay off, see {@link NV21Convertor#PARALLEL_THRESHOLD}.
+ * The conversion eight bytes at a time is also compared with the byte loop it replaced.
+ * Run on the host, the numbers are only meant to be compared with each other.
+ */
+public class NV21ConvertorBenchmark
+{
+    private static final int[][] SIZES = { { 320, 240 }, { 1280, 720 }, { 1920, 1080 } };
+    private static final int THREADS = 4;
+    private static final int RUNS = 200;
+
+    @Test
+    public void compareStripesWithSingleThread()
+    {
+        for (int planar = 0; planar <= 1; planar++)
+        {
+            for (int[] size : SIZES)
+            {
+                long single = time(size[0], size[1], planar, 1);
+                long striped = time(size[0], size[1], planar, THREADS);
+                System.out.println("NV21ConvertorBenchmark: " + (planar == 1 ? "planar " : "semi planar ") + size[0] + "x" + size[1] +
+                        ", single thread " + single / 1000 + " us, " + THREADS + " threads " + striped / 1000 + " us");
+            }
+        }
+    }
+
+    @Test
+    public void compareWithTheByteLoop()
+    {
+        for (int planar = 0; planar <= 1; planar++)
+        {
+            for (int[] size : SIZES)
+            {
+                // Alternated a few times, the JIT warms up both
+                long bytes = Long.MAX_VALUE;
+                long words = Long.MAX_VALUE;
+                for (int i = 0; i < 3; i++)
+                {
+                    bytes = Math.min(bytes, timeByteLoop(size[0], size[1], planar == 1));
+                    words = Math.min(words, time(size[0], size[1], planar, 1));
+                }
+
+                System.out.println("NV21ConvertorBenchmark: " + (planar == 1 ? "planar " : "semi planar ") + size[0] + "x" + size[1] +
+                        ", byte loop " + bytes / 1000 + " us, words " + words / 1000 + " us");
+            }
+        }
+    }
+
+    @Test
+    public void findTheCrossover()
+    {
+        // Handing the stripes of a frame too small to be worth converting costs the overhead of the workers only
+        long overhead = time(64, 16, 0, 2) - time(64, 16, 0, 1);
+
+        // What a byte of chroma costs on the calling thread, luma copy included
+        int width = 1280;
+        int height = 720;
+        double costPerByte = (double) time(width, height, 0, 1) / (width * height / 2);
+
+        // Two threads save half the conversion, the crossover is where that is worth the overhead
+        long estimate = (long) (2 * overhead / costPerByte);
+        System.out.println("NV21ConvertorBenchmark: overhead of the stripes " + overhead / 1000 + " us, " +
+                String.format("%.2f", costPerByte) + " ns per byte of chroma, estimated crossover " + estimate / 1024 + " KB of chroma");
+
+        if (Runtime.getRuntime().availableProcessors() < 2)
+        {
+            System.out.println("NV21ConvertorBenchmark: a single core, the stripes can't pay off");
+            return;
+        }
+
+        // The frames of 1280 pixel wide rows get higher until the stripes are faster
+        for (height = 16; height <= 1088; height += 16)
+        {
+            if (time(width, height, 0, THREADS) < time(width, height, 0, 1))
+            {
+                System.out.println("NV21ConvertorBenchmark: measured crossover " + width * height / 2 / 1024 + " KB of chroma");
+                return;
+            }
+        }
+
+        System.out.println("NV21ConvertorBenchmark: the stripes never paid off");
+    }
+
+    /**
+     * Returns the best time in ns to convert a frame as the convertor did before converting eight bytes at a time:
+     * the chroma was swapped a byte at a time in the frame itself, or gathered in a buffer and copied back,
+     * and the frame was then copied in the buffer of the encoder.
+     */
+    private static long timeByteLoop(int width, int height, boolean planar)
+    {
+        int size = width * height;
+        byte[] frame = new byte[size * 3 / 2];
+        byte[] planes = new byte[size / 2];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++)
+        {
+            buffer.clear();
+            long start = System.nanoTime();
+            if (!planar)
+            {
+                for (int j = size; j < frame.length; j += 2)
+                {
+                    byte v = frame[j];
+                    frame[j] = frame[j + 1];
+                    frame[j + 1] = v;
+                }
+            }
+            else
+            {
+                int quarter = size / 4;
+                for (int j = 0; j < quarter; j++)
+                {
+                    planes[j] = frame[size + 2 * j + 1];
+                    planes[quarter + j] = frame[size + 2 * j];
+                }
+
+                System.arraycopy(planes, 0, frame, size, size / 2);
+            }
+
+            buffer.put(frame);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best;
+    }
+
+    /** Returns the best time in ns to convert a frame. */
+    private static long time(int width, int height, int planar, int threads)
+    {
+        NV21Convertor convertor = NV21ConvertorTest.convertor(width, height, planar);
+        convertor.setParallelism(threads);
+        convertor.setParallelThreshold(0);
+
+        byte[] frame = new byte[width * height * 3 / 2];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(convertor.getEncoderBufferSize());
+
+        // The first runs warm the JIT up
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++)
+        {
+            buffer.clear();
+            long start = System.nanoTime();
+            convertor.convert(frame, buffer);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,173 @@
+package com.assortedsolutions.streaming.hw;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NV21ConvertorTest
+{
+    // Widths and heights whose chroma rows do not split evenly in stripes
+    private static final int[][] SIZES = { { 176, 144 }, { 320, 240 }, { 352, 290 }, { 1280, 720 } };
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void stripesMatchTheSingleThreadedConversion()
+    {
+        for (int[] size : SIZES)
+        {
+            for (int layout = 0; layout < 16; layout++)
+            {
+                int width = size[0];
+                int height = size[1];
+                byte[] frame = frame(width, height);
+
+                NV21Convertor single = convertor(width, height, layout);
+                single.setParallelism(1);
+
+                for (int threads = 2; threads <= 4; threads++)
+                {
+                    NV21Convertor striped = convertor(width, height, layout);
+                    striped.setParallelism(threads);
+                    striped.setParallelThreshold(0);
+
+                    ByteOrder order = (layout & 8) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+                    String message = width + "x" + height + ", layout " + layout + ", " + threads + " threads";
+                    assertArrayEquals(message, convert(single, frame, order), convert(striped, frame, order));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesTheScalarConversion()
+    {
+        // Rows of a multiple of 8 bytes, and rows ending with 2, 4 or 6 bytes left over by the word loops
+        int[] widths = { 16, 18, 20, 22, 64, 70, 176, 318 };
+        for (int width : widths)
+        {
+            for (int height = 2; height <= 10; height += 4)
+            {
+                for (int layout = 0; layout < 16; layout++)
+                {
+                    byte[] frame = frame(width, height);
+                    byte[] copy = frame.clone();
+                    NV21Convertor convertor = convertor(width, height, layout);
+                    convertor.setParallelism(1);
+
+                    ByteOrder order = (layout & 8) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+                    String message = width + "x" + height + ", layout " + layout;
+                    assertArrayEquals(message, reference(convertor, width, height, frame, (byte) 0xA5), convert(convertor, frame, order));
+                    assertArrayEquals("The frame of the camera was modified", copy, frame);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void convertsInABufferOfItsOwn()
+    {
+        NV21Convertor convertor = convertor(318, 10, 5);
+        byte[] frame = frame(318, 10);
+        byte[] out = convertor.convert(frame);
+
+        // A new buffer is filled with zeros
+        byte[] expected = reference(convertor, 318, 10, frame, (byte) 0);
+        assertArrayEquals(Arrays.copyOfRange(expected, 16, expected.length), out);
+    }
+
+    /**
+     * Converts a frame a byte at a time, as laid out by the convertor after 16 bytes of padding.
+     * @param padding The value of the bytes of the padding, they are left alone
+     */
+    static byte[] reference(NV21Convertor convertor, int width, int height, byte[] frame, byte padding)
+    {
+        int stride = convertor.getStride();
+        int sliceHeight = convertor.getSliceHeigth();
+        int size = width * height;
+        int offset = 16;
+        int chroma = offset + stride * sliceHeight + convertor.getYPadding();
+
+        byte[] out = new byte[offset + convertor.getEncoderBufferSize()];
+        Arrays.fill(out, padding);
+
+        for (int row = 0; row < height; row++)
+        {
+            System.arraycopy(frame, row * width, out, offset + row * stride, width);
+        }
+
+        for (int row = 0; row < height / 2; row++)
+        {
+            for (int pair = 0; pair < width / 2; pair++)
+            {
+                byte v = frame[size + row * width + 2 * pair];
+                byte u = frame[size + row * width + 2 * pair + 1];
+                if (!convertor.getPlanar())
+                {
+                    int position = chroma + row * stride + 2 * pair;
+                    out[position] = convertor.getUVPanesReversed() ? v : u;
+                    out[position + 1] = convertor.getUVPanesReversed() ? u : v;
+                }
+                else
+                {
+                    int position = chroma + row * (stride / 2) + pair;
+                    int second = (stride / 2) * (sliceHeight / 2);
+                    out[position] = convertor.getUVPanesReversed() ? v : u;
+                    out[position + second] = convertor.getUVPanesReversed() ? u : v;
+                }
+            }
+        }
+
+        return out;
+    }
+
+    /** Bit 0 planar, bit 1 panes reversed, bit 2 padded rows and slices, bit 3 little endian buffer. */
+    static NV21Convertor convertor(int width, int height, int layout)
+    {
+        NV21Convertor convertor = new NV21Convertor();
+        convertor.setSize(width, height);
+        convertor.setPlanar((layout & 1) != 0);
+        convertor.setColorPanesReversed((layout & 2) != 0);
+        if ((layout & 4) != 0)
+        {
+            convertor.setStride((width + 63) / 64 * 64 + 64);
+            convertor.setSliceHeigth((height + 15) / 16 * 16 + 16);
+            convertor.setYPadding(1024);
+        }
+
+        return convertor;
+    }
+
+    /** Converts in a direct buffer as the ones of the encoders, filled beforehand so that the bytes left alone are compared too. */
+    static byte[] convert(NV21Convertor convertor, byte[] frame, ByteOrder order)
+    {
+        int offset = 16;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(offset + convertor.getEncoderBufferSize()).order(order);
+        for (int i = 0; i < buffer.capacity(); i++)
+        {
+            buffer.put(i, (byte) 0xA5);
+        }
+
+        buffer.position(offset);
+        convertor.convert(frame, buffer);
+        assertEquals(offset + convertor.getEncoderBufferSize(), buffer.position());
+        assertEquals(order, buffer.order());
+
+        byte[] out = new byte[buffer.capacity()];
+        buffer.position(0);
+        buffer.get(out);
+        return out;
+    }
+
+    byte[] frame(int width, int height)
+    {
+        byte[] frame = new byte[width * height * 3 / 2];
+        random.nextBytes(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,125 @@
+package com.assortedsolutions.streaming.rtcp;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SenderReportTest
+{
+    private static final int SSRC = 0x12345678;
+    private static final int SENDER = 0x11111111;
+    private static final int RECEIVER = 0x22222222;
+
+    private SenderReport report;
+
+    @Before
+    public void setUp()
+    {
+        report = new SenderReport();
+        report.setSSRC(SSRC);
+    }
+
+    @After
+    public void tearDown()
+    {
+        report.close();
+    }
+
+    @Test
+    public void filesTheReportBlocksOfACompoundPacketUnderTheirReporter()
+    {
+        ByteBuffer packet = ByteBuffer.allocate(1500);
+        putSenderReport(packet, SENDER, 1000, 64, 10);
+        putReceiverReport(packet, RECEIVER, 128, 20);
+        report.parse(packet.array(), packet.position(), System.nanoTime());
+
+        // The octet count of the SR grows, its reports must still be filed under the same receiver
+        packet.clear();
+        putSenderReport(packet, SENDER, 250000, 32, 12);
+        report.parse(packet.array(), packet.position(), System.nanoTime());
+
+        List<ReceiverStatistics> receivers = report.getReceiverStatistics();
+        assertEquals(2, receivers.size());
+
+        ReceiverStatistics sender = find(receivers, SENDER);
+        assertEquals(2, sender.getReportCount());
+        assertEquals(32 / 256f, sender.getFractionLost(), 0);
+        assertEquals(12, sender.getCumulativeLost());
+
+        ReceiverStatistics receiver = find(receivers, RECEIVER);
+        assertEquals(1, receiver.getReportCount());
+        assertEquals(128 / 256f, receiver.getFractionLost(), 0);
+        assertEquals(20, receiver.getCumulativeLost());
+    }
+
+    @Test
+    public void ignoresTheBlocksAboutOtherSources()
+    {
+        ByteBuffer packet = ByteBuffer.allocate(1500);
+        putHeader(packet, 1, 201, 7);
+        packet.putInt(RECEIVER);
+        putReportBlock(packet, SSRC + 1, 128, 20);
+        report.parse(packet.array(), packet.position(), System.nanoTime());
+
+        assertTrue(report.getReceiverStatistics().isEmpty());
+    }
+
+    private static void putSenderReport(ByteBuffer packet, int ssrc, int octetCount, int fractionLost, int cumulativeLost)
+    {
+        putHeader(packet, 1, 200, 12);
+        packet.putInt(ssrc);
+
+        // NTP timestamp, RTP timestamp, packet count and octet count
+        packet.putLong(0x0123456789ABCDEFL);
+        packet.putInt(90000);
+        packet.putInt(octetCount / 100);
+        packet.putInt(octetCount);
+
+        putReportBlock(packet, SSRC, fractionLost, cumulativeLost);
+    }
+
+    private static void putReceiverReport(ByteBuffer packet, int ssrc, int fractionLost, int cumulativeLost)
+    {
+        putHeader(packet, 1, 201, 7);
+        packet.putInt(ssrc);
+        putReportBlock(packet, SSRC, fractionLost, cumulativeLost);
+    }
+
+    private static void putHeader(ByteBuffer packet, int count, int type, int length)
+    {
+        packet.put((byte) (0x80 | count));
+        packet.put((byte) type);
+        packet.putShort((short) length);
+    }
+
+    private static void putReportBlock(ByteBuffer packet, int ssrc, int fractionLost, int cumulativeLost)
+    {
+        packet.putInt(ssrc);
+        packet.putInt(fractionLost << 24 | cumulativeLost);
+        packet.putInt(1000);
+        packet.putInt(30);
+
+        // No SR received yet, no round trip time
+        packet.putInt(0);
+        packet.putInt(0);
+    }
+
+    private static ReceiverStatistics find(List<ReceiverStatistics> receivers, int ssrc)
+    {
+        for (ReceiverStatistics statistics : receivers)
+        {
+            if (statistics.getSSRC() == ssrc)
+            {
+                return statistics;
+            }
+        }
+
+        fail("No statistics for " + Integer.toHexString(ssrc));
+        return null;
+    }
+}
@@ -0,0 +1,179 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AnnexBParserTest
+{
+    @Test
+    public void splitsOnThreeAndFourBytesStartCodes()
+    {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[] {
+                0, 0, 0, 1, 0x09, 0x10,
+                0, 0, 1, 0x67, 1, 2, 3,
+                0, 0, 0, 1, 0x68, 4,
+                0, 0, 1, 0x65, 5, 6, 7, 8, 9, 10, 11, 12, 13
+        });
+
+        AnnexBParser parser = new AnnexBParser();
+        assertEquals(4, parser.split(frame, 0, frame.limit()));
+        assertNalUnit(parser, 0, 4, 6);
+        assertNalUnit(parser, 1, 9, 13);
+        assertNalUnit(parser, 2, 17, 19);
+        assertNalUnit(parser, 3, 22, 32);
+    }
+
+    @Test
+    public void findsTheStartCodesAcrossTheWordBoundary()
+    {
+        // The start code begins on each of the last bytes of the first word
+        for (int at = 5; at <= 8; at++)
+        {
+            byte[] bytes = new byte[24];
+            fill(bytes, 0, bytes.length);
+            bytes[0] = 0;
+            bytes[1] = 0;
+            bytes[2] = 1;
+            bytes[at] = 0;
+            bytes[at + 1] = 0;
+            bytes[at + 2] = 1;
+
+            ByteBuffer frame = ByteBuffer.wrap(bytes);
+            assertEquals("Start code at " + at, at, AnnexBParser.findStartCode(frame, 3, bytes.length));
+
+            AnnexBParser parser = new AnnexBParser();
+            assertEquals(2, parser.split(frame, 0, bytes.length));
+            assertNalUnit(parser, 0, 3, at);
+            assertNalUnit(parser, 1, at + 3, bytes.length);
+        }
+    }
+
+    @Test
+    public void takesABufferWithoutStartCodeForASingleNalUnit()
+    {
+        byte[] bytes = new byte[37];
+        fill(bytes, 0, bytes.length);
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+
+        assertEquals(bytes.length, AnnexBParser.findStartCode(frame, 0, bytes.length));
+
+        AnnexBParser parser = new AnnexBParser();
+        assertEquals(1, parser.split(frame, 0, bytes.length));
+        assertNalUnit(parser, 0, 0, bytes.length);
+    }
+
+    @Test
+    public void leavesTheTrailingZerosOut()
+    {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[] {
+                0, 0, 1, 0x67, 1, 2, 0, 0,
+                0, 0, 0, 1, 0x65, 3, 4
+        });
+
+        AnnexBParser parser = new AnnexBParser();
+        assertEquals(2, parser.split(frame, 0, frame.limit()));
+        assertNalUnit(parser, 0, 3, 6);
+        assertNalUnit(parser, 1, 12, 15);
+    }
+
+    @Test
+    public void splitsTheAccessUnitBetweenPositionAndLimit()
+    {
+        byte[] bytes = new byte[64];
+        fill(bytes, 0, bytes.length);
+        int position = 13;
+        int limit = 50;
+        bytes[position] = 0;
+        bytes[position + 1] = 0;
+        bytes[position + 2] = 1;
+        bytes[30] = 0;
+        bytes[31] = 0;
+        bytes[32] = 1;
+
+        // A start code right after the limit is not looked at
+        bytes[limit] = 0;
+        bytes[limit + 1] = 0;
+        bytes[limit + 2] = 1;
+
+        AnnexBParser parser = new AnnexBParser();
+        assertEquals(2, parser.split(ByteBuffer.wrap(bytes), position, limit));
+        assertNalUnit(parser, 0, position + 3, 30);
+        assertNalUnit(parser, 1, 33, limit);
+    }
+
+    @Test
+    public void splitsMoreNalUnitsThanItFirstHasRoomFor()
+    {
+        int count = 40;
+        byte[] bytes = new byte[count * 8];
+        for (int i = 0; i < count; i++)
+        {
+            bytes[i * 8 + 2] = 1;
+            fill(bytes, i * 8 + 3, i * 8 + 8);
+        }
+
+        AnnexBParser parser = new AnnexBParser();
+        assertEquals(count, parser.split(ByteBuffer.wrap(bytes), 0, bytes.length));
+        for (int i = 0; i < count; i++)
+        {
+            assertNalUnit(parser, i, i * 8 + 3, i * 8 + 8);
+        }
+    }
+
+    @Test
+    public void findsTheSameStartCodesAsAByteLoop()
+    {
+        Random random = new Random(42);
+        byte[] bytes = new byte[4096];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            // Mostly zeros and ones, so that there are many start codes and many near misses
+            int n = random.nextInt(8);
+            bytes[i] = (byte) (n < 4 ? 0 : n < 6 ? 1 : random.nextInt(256));
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int position = 0; position < 16; position++)
+        {
+            for (int i = position; i < bytes.length; i++)
+            {
+                int limit = Math.min(bytes.length, i + 1 + random.nextInt(32));
+                assertEquals("From " + i + " to " + limit, findStartCode(bytes, i, limit),
+                        AnnexBParser.findStartCode(buffer, i, limit));
+            }
+        }
+    }
+
+    private static int findStartCode(byte[] bytes, int position, int limit)
+    {
+        for (int i = position; i + 2 < limit; i++)
+        {
+            if (bytes[i] == 0 && bytes[i + 1] == 0 && bytes[i + 2] == 1)
+            {
+                return i;
+            }
+        }
+
+        return limit;
+    }
+
+    /** Fills with bytes that are never part of a start code. */
+    private static void fill(byte[] bytes, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            bytes[i] = (byte) (0x40 + i % 64);
+        }
+    }
+
+    private static void assertNalUnit(AnnexBParser parser, int index, int start, int end)
+    {
+        assertEquals("Start of " + index, start, parser.getStart(index));
+        assertEquals("End of " + index, end, parser.getEnd(index));
+        assertEquals(end - start, parser.getLength(index));
+    }
+}
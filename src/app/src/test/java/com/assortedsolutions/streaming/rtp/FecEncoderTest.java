@@ -0,0 +1,257 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.assortedsolutions.streaming.rtcp.SenderReport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FecEncoderTest
+{
+    private static final int SEQUENCE_OFFSET = 1000;
+    private static final long TIMESTAMP_OFFSET = 0xFFFFFF00L;
+
+    private final Random random = new Random(42);
+    private CapturingSocket socket;
+    private FecEncoder encoder;
+
+    /** Keeps the parity packets the encoder hands to the socket, as the destination would receive them. */
+    private static class CapturingSocket extends RtpSocket
+    {
+        FecEncoder encoder;
+        RtpDestination destination;
+        final List<byte[]> parityPackets = new ArrayList<>();
+
+        @Override
+        void sendParity(FecEncoder.Group group) throws IOException
+        {
+            byte[] out = new byte[MTU];
+            int length = encoder.write(group, destination, out, ByteBuffer.wrap(out));
+            parityPackets.add(Arrays.copyOf(out, length));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        socket = new CapturingSocket();
+        encoder = new FecEncoder(socket);
+        socket.encoder = encoder;
+        socket.destination = new RtpDestination(socket, InetAddress.getByName("127.0.0.1"), 9, 9, 0x11223344,
+                SEQUENCE_OFFSET, TIMESTAMP_OFFSET, new SenderReport(), null);
+    }
+
+    @After
+    public void tearDown()
+    {
+        socket.close();
+    }
+
+    @Test
+    public void recoversAnyPacketOfARow() throws IOException
+    {
+        encoder.setLayout(5, 1);
+        Map<Integer, byte[]> packets = send(100, 10);
+
+        assertEquals(2, socket.parityPackets.size());
+        recoverEachPacket(packets);
+    }
+
+    @Test
+    public void recoversAnyPacketOfABlockFromItsRowOrItsColumn() throws IOException
+    {
+        encoder.setLayout(4, 3);
+        Map<Integer, byte[]> packets = send(200, 12);
+
+        // Three rows and four columns
+        assertEquals(7, socket.parityPackets.size());
+        recoverEachPacket(packets);
+    }
+
+    @Test
+    public void recoversAcrossTheSequenceWrap() throws IOException
+    {
+        encoder.setLayout(4, 3);
+        Map<Integer, byte[]> packets = send(0xFFFA, 24);
+
+        assertEquals(14, socket.parityPackets.size());
+        recoverEachPacket(packets);
+    }
+
+    @Test
+    public void recoversAcrossTheSequenceWrapOfTheDestination() throws IOException
+    {
+        // The sequence numbers of the destination are offset, they wrap around in the middle of the first block
+        encoder.setLayout(4, 3);
+        Map<Integer, byte[]> packets = send(0x10000 - SEQUENCE_OFFSET - 6, 24);
+
+        assertEquals(14, socket.parityPackets.size());
+        recoverEachPacket(packets);
+    }
+
+    @Test
+    public void leavesTheDroppedPacketsOutOfTheMask() throws IOException
+    {
+        encoder.setLayout(4, 3);
+        Map<Integer, byte[]> packets = new HashMap<>();
+        for (int i = 0; i < 12; i++)
+        {
+            // Packets dropped under congestion take a sequence number but are not sent
+            if (i != 2 && i != 7)
+            {
+                packets.put(i, add(i));
+            }
+        }
+
+        encoder.add(new byte[RtpSocket.RTP_HEADER_LENGTH + 1], ByteBuffer.allocate(RtpSocket.RTP_HEADER_LENGTH + 1),
+                RtpSocket.RTP_HEADER_LENGTH + 1, 12, 12);
+        assertEquals(7, socket.parityPackets.size());
+
+        for (byte[] parity : socket.parityPackets)
+        {
+            for (int sequence : protectedSequences(parity))
+            {
+                assertTrue(sequence + " was not sent", packets.containsKey((sequence - SEQUENCE_OFFSET) & 0xFFFF));
+            }
+        }
+
+        recoverEachPacket(packets);
+    }
+
+    /** Sends count packets from a sequence number, returns them by sequence number. */
+    private Map<Integer, byte[]> send(int first, int count) throws IOException
+    {
+        Map<Integer, byte[]> packets = new HashMap<>();
+        for (int i = 0; i < count; i++)
+        {
+            int sequence = (first + i) & 0xFFFF;
+            packets.put(sequence, add(sequence));
+        }
+
+        return packets;
+    }
+
+    /** Adds a packet with a random payload of a random length, the tail of the payload is rarely a whole word. */
+    private byte[] add(int sequence) throws IOException
+    {
+        int length = RtpSocket.RTP_HEADER_LENGTH + 1 + random.nextInt(300);
+        byte[] packet = new byte[length];
+        random.nextBytes(packet);
+
+        // Version 2 without CSRC nor extension, the marker bit and the payload type vary
+        packet[0] = (byte) (0x80 | (random.nextBoolean() ? 0x20 : 0));
+        packet[1] = (byte) ((random.nextBoolean() ? 0x80 : 0) | 96);
+
+        encoder.add(packet, ByteBuffer.wrap(packet), length, sequence, timestamp(sequence));
+        return packet;
+    }
+
+    private static long timestamp(int sequence)
+    {
+        return sequence / 3 * 3000L;
+    }
+
+    /** Drops each packet in turn and rebuilds it from each parity packet protecting it and the other packets. */
+    private void recoverEachPacket(Map<Integer, byte[]> packets)
+    {
+        int recovered = 0;
+        for (byte[] parity : socket.parityPackets)
+        {
+            List<Integer> sequences = protectedSequences(parity);
+            assertTrue(sequences.size() > 1);
+
+            for (int lost : sequences)
+            {
+                byte[] expected = packets.get((lost - SEQUENCE_OFFSET) & 0xFFFF);
+                assertArrayEquals("Packet " + lost, expected, recover(parity, sequences, lost, packets));
+                recovered++;
+            }
+        }
+
+        // Each packet is protected by its row, and by its column when there are rows
+        assertTrue(recovered >= packets.size());
+    }
+
+    /** Returns the sequence numbers seen by the destination of the packets protected by a parity packet. */
+    private static List<Integer> protectedSequences(byte[] parity)
+    {
+        ByteBuffer view = ByteBuffer.wrap(parity);
+        assertEquals(RtpSocket.FEC_PAYLOAD_TYPE, parity[1] & 0x7F);
+
+        int offset = RtpSocket.RTP_HEADER_LENGTH;
+        int base = view.getShort(offset + 2) & 0xFFFF;
+        long mask = (view.getShort(offset + 12) & 0xFFFFL) << 32 | view.getInt(offset + 14) & 0xFFFFFFFFL;
+
+        List<Integer> sequences = new ArrayList<>();
+        for (int i = 0; i < FecEncoder.MAX_SPAN; i++)
+        {
+            if ((mask & 1L << (FecEncoder.MAX_SPAN - 1 - i)) != 0)
+            {
+                sequences.add((base + i) & 0xFFFF);
+            }
+        }
+
+        return sequences;
+    }
+
+    /**
+     * Rebuilds a lost packet as a receiver would, see section 8.2 of RFC 5109.
+     * The packet is returned as it was sent, before the destination rewrote its sequence number, timestamp and SSRC.
+     */
+    private byte[] recover(byte[] parity, List<Integer> sequences, int lost, Map<Integer, byte[]> packets)
+    {
+        ByteBuffer view = ByteBuffer.wrap(parity);
+        int offset = RtpSocket.RTP_HEADER_LENGTH;
+        int header = (parity[offset] & 0x3F) << 8 | parity[offset + 1] & 0xFF;
+        long timestamp = view.getInt(offset + 4) & 0xFFFFFFFFL;
+        int length = view.getShort(offset + 8) & 0xFFFF;
+        int protectionLength = view.getShort(offset + 10) & 0xFFFF;
+        byte[] payload = Arrays.copyOfRange(parity, offset + FecEncoder.HEADER_LENGTH, offset + FecEncoder.HEADER_LENGTH + protectionLength);
+
+        for (int sequence : sequences)
+        {
+            if (sequence == lost)
+            {
+                continue;
+            }
+
+            byte[] packet = packets.get((sequence - SEQUENCE_OFFSET) & 0xFFFF);
+            header ^= (packet[0] & 0x3F) << 8 | packet[1] & 0xFF;
+            timestamp ^= socket.destination.getTimestamp(timestamp((sequence - SEQUENCE_OFFSET) & 0xFFFF));
+            length ^= packet.length - RtpSocket.RTP_HEADER_LENGTH;
+            for (int i = RtpSocket.RTP_HEADER_LENGTH; i < packet.length; i++)
+            {
+                payload[i - RtpSocket.RTP_HEADER_LENGTH] ^= packet[i];
+            }
+        }
+
+        int original = (lost - SEQUENCE_OFFSET) & 0xFFFF;
+        assertEquals("Timestamp of " + lost, socket.destination.getTimestamp(timestamp(original)), timestamp);
+        assertTrue(length <= protectionLength);
+        for (int i = length; i < protectionLength; i++)
+        {
+            assertEquals("Padding of " + lost, 0, payload[i]);
+        }
+
+        // The sequence number, the timestamp and the SSRC of the header are the ones of the stream
+        byte[] packet = new byte[RtpSocket.RTP_HEADER_LENGTH + length];
+        byte[] sent = packets.get(original);
+        packet[0] = (byte) (0x80 | header >> 8);
+        packet[1] = (byte) header;
+        System.arraycopy(sent, 2, packet, 2, RtpSocket.RTP_HEADER_LENGTH - 2);
+        System.arraycopy(payload, 0, packet, RtpSocket.RTP_HEADER_LENGTH, length);
+        return packet;
+    }
+}
@@ -0,0 +1,70 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Times the encoding of 20 ms packets of samples with the tables of the {@link G711Packetizer}
+ * and with the computation of the reference implementation, a sample at a time.
+ * Run on the host, the numbers are only meant to be compared with each other.
+ */
+public class G711PacketizerBenchmark
+{
+    private static final int PACKET_SAMPLES = 160;
+
+    // 100 s of audio
+    private static final int PACKETS = 5000;
+    private static final int RUNS = 5;
+
+    @Test
+    public void compareTablesWithComputation()
+    {
+        short[] samples = new short[PACKET_SAMPLES];
+        Random random = new Random(42);
+        for (int i = 0; i < samples.length; i++)
+        {
+            // Speech stays well below full scale
+            samples[i] = (short) (random.nextGaussian() * 4000);
+        }
+
+        byte[] packet = new byte[PACKET_SAMPLES];
+        long tables = Long.MAX_VALUE;
+        long computation = Long.MAX_VALUE;
+        // Read back so that the JIT can not drop the loops
+        int sink = 0;
+
+        // The first runs warm the JIT up, the best run is kept
+        for (int run = 0; run < RUNS; run++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < PACKETS; i++)
+            {
+                for (int j = 0; j < PACKET_SAMPLES; j++)
+                {
+                    packet[j] = G711Packetizer.ULAW[(samples[j] & 0xFFFF) >> 2];
+                }
+
+                sink += packet[i % PACKET_SAMPLES];
+            }
+
+            tables = Math.min(tables, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < PACKETS; i++)
+            {
+                for (int j = 0; j < PACKET_SAMPLES; j++)
+                {
+                    packet[j] = G711Reference.linear2ulaw(samples[j]);
+                }
+
+                sink += packet[i % PACKET_SAMPLES];
+            }
+
+            computation = Math.min(computation, System.nanoTime() - start);
+        }
+
+        System.out.println("G711PacketizerBenchmark: tables " + tables / PACKETS + " ns/packet, computation " + computation / PACKETS +
+                " ns/packet, checksum " + sink);
+    }
+}
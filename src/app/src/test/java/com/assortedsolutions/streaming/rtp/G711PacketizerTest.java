@@ -0,0 +1,37 @@
+package com.assortedsolutions.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class G711PacketizerTest
+{
+    @Test
+    public void ulawMatchesTheReferenceForEverySample()
+    {
+        for (int sample = Short.MIN_VALUE; sample <= Short.MAX_VALUE; sample++)
+        {
+            assertEquals("Sample " + sample, G711Reference.linear2ulaw((short) sample), G711Packetizer.ULAW[(sample & 0xFFFF) >> 2]);
+        }
+    }
+
+    @Test
+    public void alawMatchesTheReferenceForEverySample()
+    {
+        for (int sample = Short.MIN_VALUE; sample <= Short.MAX_VALUE; sample++)
+        {
+            assertEquals("Sample " + sample, G711Reference.linear2alaw((short) sample), G711Packetizer.ALAW[(sample & 0xFFFF) >> 3]);
+        }
+    }
+
+    @Test
+    public void encodesTheEdges()
+    {
+        assertEquals((byte) 0xFF, G711Packetizer.ULAW[0]);
+        assertEquals((byte) 0x80, G711Packetizer.ULAW[0x7FFF >> 2]);
+        assertEquals((byte) 0x00, G711Packetizer.ULAW[0x8000 >> 2]);
+        assertEquals((byte) 0xD5, G711Packetizer.ALAW[0]);
+        assertEquals((byte) 0xAA, G711Packetizer.ALAW[0x7FFF >> 3]);
+        assertEquals((byte) 0x2A, G711Packetizer.ALAW[0x8000 >> 3]);
+    }
+}
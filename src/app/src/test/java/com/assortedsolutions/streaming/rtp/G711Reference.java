@@ -0,0 +1,94 @@
+package com.assortedsolutions.streaming.rtp;
+
+/** The encoders of the g711.c reference implementation of the ITU-T (Sun Microsystems), a sample at a time. */
+final class G711Reference
+{
+    private static final int QUANT_MASK = 0xF;
+    private static final int SEG_SHIFT = 4;
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 8159;
+
+    private static final short[] SEG_AEND = { 0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF };
+    private static final short[] SEG_UEND = { 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF };
+
+    private G711Reference()
+    {
+    }
+
+    private static int search(int val, short[] table)
+    {
+        for (int i = 0; i < table.length; i++)
+        {
+            if (val <= table[i])
+            {
+                return i;
+            }
+        }
+
+        return table.length;
+    }
+
+    static byte linear2alaw(short pcmVal)
+    {
+        int mask;
+        int val = pcmVal >> 3;
+        if (val >= 0)
+        {
+            mask = 0xD5;
+        }
+        else
+        {
+            mask = 0x55;
+            val = -val - 1;
+        }
+
+        int seg = search(val, SEG_AEND);
+        if (seg >= 8)
+        {
+            return (byte) (0x7F ^ mask);
+        }
+
+        int aval = seg << SEG_SHIFT;
+        if (seg < 2)
+        {
+            aval |= (val >> 1) & QUANT_MASK;
+        }
+        else
+        {
+            aval |= (val >> seg) & QUANT_MASK;
+        }
+
+        return (byte) (aval ^ mask);
+    }
+
+    static byte linear2ulaw(short pcmVal)
+    {
+        int mask;
+        int val = pcmVal >> 2;
+        if (val < 0)
+        {
+            val = -val;
+            mask = 0x7F;
+        }
+        else
+        {
+            mask = 0xFF;
+        }
+
+        if (val > CLIP)
+        {
+            val = CLIP;
+        }
+
+        val += BIAS >> 2;
+
+        int seg = search(val, SEG_UEND);
+        if (seg >= 8)
+        {
+            return (byte) (0x7F ^ mask);
+        }
+
+        int uval = (seg << 4) | ((val >> (seg + 1)) & QUANT_MASK);
+        return (byte) (uval ^ mask);
+    }
+}
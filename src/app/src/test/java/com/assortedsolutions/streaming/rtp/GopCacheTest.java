@@ -0,0 +1,128 @@
+package com.assortedsolutions.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GopCacheTest
+{
+    private static final int LENGTH = 200;
+
+    @Test
+    public void ignoresThePacketsBeforeTheFirstKeyFrame()
+    {
+        GopCache cache = new GopCache(64 * 1024);
+        add(cache, 1, 3000, false);
+        add(cache, 2, 6000, false);
+
+        assertFalse(cache.isValid());
+        assertEquals(0, cache.getCount());
+
+        add(cache, 3, 9000, true);
+        add(cache, 4, 9000, false);
+
+        assertTrue(cache.isValid());
+        assertCached(cache, 3, 4);
+    }
+
+    @Test
+    public void keepsEveryPacketOfTheAccessUnitOfTheKeyFrame()
+    {
+        GopCache cache = new GopCache(64 * 1024);
+        add(cache, 10, 3000, true);
+        add(cache, 11, 3000, false);
+        add(cache, 12, 6000, false);
+        add(cache, 13, 6000, false);
+
+        // An AUD and an SEI sent before the first slice of the next key frame, then its other slices
+        add(cache, 14, 9000, false);
+        add(cache, 15, 9000, false);
+        add(cache, 16, 9000, true);
+        add(cache, 17, 9000, false);
+        add(cache, 18, 9000, false);
+        add(cache, 19, 12000, false);
+
+        assertCached(cache, 14, 19);
+    }
+
+    @Test
+    public void startsOverWhenTheWholeCacheIsTheAccessUnitOfTheKeyFrame()
+    {
+        GopCache cache = new GopCache(64 * 1024);
+        add(cache, 10, 3000, false);
+        add(cache, 11, 3000, true);
+        add(cache, 12, 3000, false);
+
+        assertCached(cache, 11, 12);
+    }
+
+    @Test
+    public void staysEmptyUntilTheNextKeyFrameWhenTheGopDoesNotFit()
+    {
+        GopCache cache = new GopCache(5 * LENGTH);
+        add(cache, 1, 3000, true);
+        for (int i = 2; i <= 6; i++)
+        {
+            add(cache, i, 3000 * i, false);
+        }
+
+        assertFalse(cache.isValid());
+        assertEquals(0, cache.getCount());
+
+        // The packets sent with the timestamp of the next key frame were not cached, they cannot be kept
+        add(cache, 7, 21000, false);
+        add(cache, 8, 21000, true);
+        add(cache, 9, 21000, false);
+
+        assertTrue(cache.isValid());
+        assertCached(cache, 8, 9);
+    }
+
+    @Test
+    public void staysEmptyUntilTheNextKeyFrameWhenInvalidated()
+    {
+        GopCache cache = new GopCache(64 * 1024);
+        add(cache, 1, 3000, true);
+        add(cache, 2, 6000, false);
+        cache.invalidate();
+        add(cache, 3, 9000, false);
+
+        assertFalse(cache.isValid());
+        assertEquals(0, cache.getCount());
+
+        add(cache, 4, 12000, true);
+        assertCached(cache, 4, 4);
+    }
+
+    /** Adds a packet filled with its sequence number. */
+    private static void add(GopCache cache, int sequence, long timestamp, boolean keyFrame)
+    {
+        byte[] packet = new byte[LENGTH + sequence];
+        for (int i = 0; i < packet.length; i++)
+        {
+            packet[i] = (byte) sequence;
+        }
+
+        cache.add(packet, packet.length, sequence, timestamp, keyFrame);
+    }
+
+    /** Checks that the cache holds the packets from first to last, in order. */
+    private static void assertCached(GopCache cache, int first, int last)
+    {
+        assertEquals(last - first + 1, cache.getCount());
+
+        byte[] out = new byte[2 * LENGTH];
+        for (int i = 0; i < cache.getCount(); i++)
+        {
+            int sequence = first + i;
+            assertEquals(sequence, cache.getSequence(i));
+
+            int length = cache.copy(i, out);
+            assertEquals(LENGTH + sequence, length);
+            for (int j = 0; j < length; j++)
+            {
+                assertEquals("Byte " + j + " of " + sequence, (byte) sequence, out[j]);
+            }
+        }
+    }
+}
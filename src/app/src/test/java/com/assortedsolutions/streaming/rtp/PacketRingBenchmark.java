@@ -0,0 +1,132 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the {@link PacketRing} with the pair of semaphores the FIFO of the {@link RtpSocket} used before,
+ * a producer thread hands packets to a consumer thread through a FIFO of the size of the one of the socket.
+ * Run on the host, the numbers are only meant to be compared with each other.
+ */
+public class PacketRingBenchmark
+{
+    private static final int CAPACITY = 300;
+    private static final int PACKETS = 1000000;
+    private static final int RUNS = 5;
+
+    /** One side of a FIFO, the producer calls {@link #put()} and the consumer {@link #take()}. */
+    private interface Fifo
+    {
+        void put() throws InterruptedException;
+
+        /** Returns the number of packets read. */
+        int take() throws InterruptedException;
+    }
+
+    private static class SemaphoreFifo implements Fifo
+    {
+        private final Semaphore requested = new Semaphore(CAPACITY);
+        private final Semaphore committed = new Semaphore(0);
+
+        @Override
+        public void put() throws InterruptedException
+        {
+            requested.acquire();
+            committed.release();
+        }
+
+        @Override
+        public int take() throws InterruptedException
+        {
+            if (!committed.tryAcquire(4, TimeUnit.SECONDS))
+            {
+                return 0;
+            }
+
+            requested.release();
+            return 1;
+        }
+    }
+
+    private static class RingFifo implements Fifo
+    {
+        private final PacketRing ring = new PacketRing(CAPACITY);
+
+        @Override
+        public void put() throws InterruptedException
+        {
+            ring.awaitFree();
+            ring.publish();
+        }
+
+        @Override
+        public int take() throws InterruptedException
+        {
+            int available = ring.awaitAvailable(4, TimeUnit.SECONDS);
+            ring.consume(available);
+            ring.release(available);
+            return available;
+        }
+    }
+
+    @Test
+    public void compareWithSemaphores() throws Exception
+    {
+        long semaphores = Long.MAX_VALUE;
+        long ring = Long.MAX_VALUE;
+
+        // The first runs warm the JIT up, the best run is kept
+        for (int i = 0; i < RUNS; i++)
+        {
+            semaphores = Math.min(semaphores, run(new SemaphoreFifo()));
+            ring = Math.min(ring, run(new RingFifo()));
+        }
+
+        System.out.println("PacketRingBenchmark: semaphores " + semaphores / PACKETS + " ns/packet, ring " + ring / PACKETS + " ns/packet");
+    }
+
+    /** Returns the time in ns it took to hand all the packets over. */
+    private static long run(final Fifo fifo) throws Exception
+    {
+        final int[] received = new int[1];
+        Thread consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    int count = 0;
+                    int taken;
+                    while (count < PACKETS && (taken = fifo.take()) > 0)
+                    {
+                        count += taken;
+                    }
+
+                    received[0] = count;
+                }
+                catch (InterruptedException ignore)
+                {
+                    // The count stays short, the test fails
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        consumer.start();
+        for (int i = 0; i < PACKETS; i++)
+        {
+            fifo.put();
+        }
+
+        consumer.join();
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(PACKETS, received[0]);
+        return elapsed;
+    }
+}
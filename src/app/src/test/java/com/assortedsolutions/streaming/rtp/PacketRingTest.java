@@ -0,0 +1,146 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketRingTest
+{
+    @Test
+    public void isEmptyAtFirst() throws InterruptedException
+    {
+        PacketRing ring = new PacketRing(4);
+        assertEquals(0, ring.size());
+        assertTrue(ring.hasFree());
+        assertEquals(0, ring.awaitAvailable(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void isFullOnceEverySlotIsPublished() throws InterruptedException
+    {
+        PacketRing ring = new PacketRing(4);
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(ring.hasFree());
+            ring.awaitFree();
+            ring.publish();
+        }
+
+        assertFalse(ring.hasFree());
+        assertEquals(4, ring.size());
+        assertEquals(4, ring.awaitAvailable(0, TimeUnit.MILLISECONDS));
+
+        // The slots read but kept by the consumer are still taken
+        ring.consume(4);
+        assertFalse(ring.hasFree());
+        assertEquals(0, ring.awaitAvailable(1, TimeUnit.MILLISECONDS));
+
+        ring.release(1);
+        assertTrue(ring.hasFree());
+        assertEquals(3, ring.size());
+    }
+
+    @Test
+    public void wrapsAround() throws InterruptedException
+    {
+        PacketRing ring = new PacketRing(3);
+        int[] slots = new int[3];
+        int written = 0;
+        int read = 0;
+
+        for (int round = 0; round < 100; round++)
+        {
+            // A varying number of slots per round so that the batches straddle the end of the slots
+            int count = round % 3 + 1;
+            for (int i = 0; i < count; i++)
+            {
+                ring.awaitFree();
+                slots[written % 3] = written;
+                written++;
+                ring.publish();
+            }
+
+            int available = ring.awaitAvailable(0, TimeUnit.MILLISECONDS);
+            assertEquals(count, available);
+            for (int i = 0; i < available; i++)
+            {
+                assertEquals(read, slots[read % 3]);
+                read++;
+            }
+
+            ring.consume(available);
+            ring.release(available);
+            assertEquals(0, ring.size());
+        }
+    }
+
+    @Test
+    public void resetEmptiesTheRing() throws InterruptedException
+    {
+        PacketRing ring = new PacketRing(2);
+        ring.publish();
+        ring.publish();
+        ring.consume(1);
+        ring.reset();
+
+        assertEquals(0, ring.size());
+        assertTrue(ring.hasFree());
+        assertEquals(0, ring.awaitAvailable(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void handsTheSlotsOverInOrder() throws Exception
+    {
+        final int capacity = 16;
+        final int count = 1000000;
+        final PacketRing ring = new PacketRing(capacity);
+        final long[] slots = new long[capacity];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    long expected = 0;
+                    while (expected < count)
+                    {
+                        int available = ring.awaitAvailable(5, TimeUnit.SECONDS);
+                        assertTrue("The producer stalled", available > 0);
+                        for (int i = 0; i < available; i++, expected++)
+                        {
+                            assertEquals(expected, slots[(int) (expected % capacity)]);
+                        }
+
+                        ring.consume(available);
+                        ring.release(available);
+                    }
+                }
+                catch (Throwable e)
+                {
+                    failure.set(e);
+                }
+            }
+        });
+        consumer.start();
+
+        for (long i = 0; i < count; i++)
+        {
+            ring.awaitFree();
+            slots[(int) (i % capacity)] = i;
+            ring.publish();
+        }
+
+        consumer.join(30000);
+        assertFalse("The consumer is stuck", consumer.isAlive());
+        if (failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
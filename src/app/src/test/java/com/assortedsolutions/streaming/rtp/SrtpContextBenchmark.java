@@ -0,0 +1,44 @@
+package com.assortedsolutions.streaming.rtp;
+
+import org.junit.Test;
+
+/**
+ * Times the protection of 1300 byte RTP packets, what SRTP costs each packet of a stream.
+ * Run on the host, the numbers are only meant to be compared with each other.
+ */
+public class SrtpContextBenchmark
+{
+    private static final int PACKET_LENGTH = 1300;
+    private static final int PACKETS = 20000;
+    private static final int RUNS = 5;
+
+    @Test
+    public void protectRtp()
+    {
+        SrtpContext context = new SrtpContext(SrtpContext.generateKeyMaterial());
+        byte[] packet = new byte[PACKET_LENGTH];
+        byte[] out = new byte[PACKET_LENGTH + SrtpContext.AUTH_TAG_LENGTH];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) 96;
+
+        // The first runs warm the JIT up, the best run is kept
+        long best = Long.MAX_VALUE;
+        int sequence = 0;
+        for (int run = 0; run < RUNS; run++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < PACKETS; i++, sequence++)
+            {
+                packet[2] = (byte) (sequence >> 8);
+                packet[3] = (byte) sequence;
+                context.protectRtp(packet, PACKET_LENGTH, out);
+            }
+
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        long perPacket = best / PACKETS;
+        System.out.println("SrtpContextBenchmark: " + perPacket + " ns per " + PACKET_LENGTH + " byte packet, " +
+                (long) PACKET_LENGTH * PACKETS * 1000 / best + " MB/s");
+    }
+}
@@ -0,0 +1,175 @@
+package com.assortedsolutions.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SrtpContextTest
+{
+    // Appendix B.3 of RFC 3711
+    private static final byte[] MASTER_KEY = hex("E1F97A0D3E018BE0D64FA32C06DE4139");
+    private static final byte[] MASTER_SALT = hex("0EC675AD498AFEEBB6960B3AABE6");
+    private static final byte[] CIPHER_KEY = hex("C61E7A93744F39EE10734AFE3FF7A087");
+    private static final byte[] CIPHER_SALT = hex("30CBBC08863D8C85D49DB34A9AE1");
+    private static final byte[] AUTH_KEY = hex("CEBE321F6FF7716B6FD4AB49AF256A156D38BAA4");
+
+    private static final int SSRC = 0xDEADBEEF;
+
+    @Test
+    public void keystreamMatchesAppendixB2() throws Exception
+    {
+        SrtpContext.Transform transform = new SrtpContext.Transform(hex("2B7E151628AED2A6ABF7158809CF4F3C"), new byte[20],
+                hex("F0F1F2F3F4F5F6F7F8F9FAFBFCFD"));
+
+        // Encrypting zeros gives the keystream, of SSRC 0 and index 0
+        byte[] keystream = new byte[48];
+        transform.crypt(new byte[48], keystream, 0, 48, 0, 0);
+
+        assertArrayEquals(hex("E03EAD0935C95E80E166B16DD92B4EB4" + "D23513162B02D0F72A43A2FE4A5F97AB" + "41E95B3BB0A2E8DD477901E4FCA894C0"), keystream);
+    }
+
+    @Test
+    public void keyDerivationMatchesAppendixB3() throws Exception
+    {
+        Cipher master = Cipher.getInstance("AES/ECB/NoPadding");
+        master.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(MASTER_KEY, "AES"));
+
+        assertArrayEquals(CIPHER_KEY, SrtpContext.Transform.derive(master, MASTER_SALT, 0x00, 16));
+        assertArrayEquals(AUTH_KEY, SrtpContext.Transform.derive(master, MASTER_SALT, 0x01, 20));
+        assertArrayEquals(CIPHER_SALT, SrtpContext.Transform.derive(master, MASTER_SALT, 0x02, 14));
+    }
+
+    @Test
+    public void protectsRtpAcrossTheSequenceWrap() throws Exception
+    {
+        SrtpContext context = new SrtpContext(concat(MASTER_KEY, MASTER_SALT));
+
+        // The rollover counter goes to 1 when the sequence number wraps
+        int[] sequences = { 0xFFFE, 0xFFFF, 0x0000, 0x0001 };
+        int[] rollovers = { 0, 0, 1, 1 };
+        for (int i = 0; i < sequences.length; i++)
+        {
+            byte[] packet = rtpPacket(sequences[i], 1300);
+            byte[] out = new byte[packet.length + SrtpContext.AUTH_TAG_LENGTH];
+            int length = context.protectRtp(packet, packet.length, out);
+
+            assertEquals(packet.length + SrtpContext.AUTH_TAG_LENGTH, length);
+            assertArrayEquals(expectedRtp(packet, rollovers[i]), out);
+        }
+    }
+
+    @Test
+    public void protectsRtpInPlace() throws Exception
+    {
+        SrtpContext context = new SrtpContext(concat(MASTER_KEY, MASTER_SALT));
+        byte[] packet = rtpPacket(1234, 100);
+        byte[] expected = expectedRtp(packet, 0);
+
+        byte[] buffer = Arrays.copyOf(packet, expected.length);
+        assertEquals(expected.length, context.protectRtp(buffer, packet.length, buffer));
+        assertArrayEquals(expected, buffer);
+    }
+
+    @Test
+    public void rtcpGoesThroughAnotherContextWithTheSameKey()
+    {
+        byte[] keyMaterial = SrtpContext.generateKeyMaterial();
+        SrtpContext sender = new SrtpContext(keyMaterial);
+        SrtpContext receiver = new SrtpContext(keyMaterial);
+
+        byte[] report = new byte[28];
+        report[0] = (byte) 0x80;
+        report[1] = (byte) 200;
+        report[3] = 6;
+        ByteBuffer.wrap(report).putInt(4, SSRC);
+        for (int i = 8; i < report.length; i++)
+        {
+            report[i] = (byte) i;
+        }
+
+        byte[] out = new byte[report.length + SrtpContext.SRTCP_TRAILER_LENGTH];
+        assertEquals(out.length, sender.protectRtcp(report, report.length, out));
+        assertFalse(Arrays.equals(report, Arrays.copyOf(out, report.length)));
+
+        byte[] tampered = out.clone();
+        tampered[20] ^= 1;
+        assertEquals(-1, receiver.unprotectRtcp(tampered, tampered.length));
+
+        assertEquals(report.length, receiver.unprotectRtcp(out, out.length));
+        assertArrayEquals(report, Arrays.copyOf(out, report.length));
+    }
+
+    /**
+     * Protects a RTP packet with the JCE AES/CTR and HmacSHA1 from the session keys of Appendix B.3,
+     * the IV and the authenticated bytes built as section 4.1.1 and 4.2 of RFC 3711 describe them.
+     */
+    private static byte[] expectedRtp(byte[] packet, int rollover) throws Exception
+    {
+        int sequence = (packet[2] & 0xFF) << 8 | packet[3] & 0xFF;
+        long index = (long) rollover << 16 | sequence;
+
+        // IV = (salt * 2^16) XOR (SSRC * 2^64) XOR (index * 2^16)
+        byte[] iv = Arrays.copyOf(CIPHER_SALT, 16);
+        ByteBuffer ivBuffer = ByteBuffer.wrap(iv);
+        ivBuffer.putInt(4, ivBuffer.getInt(4) ^ SSRC);
+        ivBuffer.putLong(6, ivBuffer.getLong(6) ^ index);
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(CIPHER_KEY, "AES"), new IvParameterSpec(iv));
+
+        byte[] expected = new byte[packet.length + SrtpContext.AUTH_TAG_LENGTH];
+        System.arraycopy(packet, 0, expected, 0, RtpSocket.RTP_HEADER_LENGTH);
+        cipher.doFinal(packet, RtpSocket.RTP_HEADER_LENGTH, packet.length - RtpSocket.RTP_HEADER_LENGTH, expected, RtpSocket.RTP_HEADER_LENGTH);
+
+        // HMAC-SHA1 of the packet followed by the rollover counter, truncated to 80 bits
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(AUTH_KEY, "HmacSHA1"));
+        mac.update(expected, 0, packet.length);
+        mac.update(ByteBuffer.allocate(4).putInt(rollover).array());
+        System.arraycopy(mac.doFinal(), 0, expected, packet.length, SrtpContext.AUTH_TAG_LENGTH);
+
+        return expected;
+    }
+
+    private static byte[] rtpPacket(int sequence, int length)
+    {
+        byte[] packet = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 96);
+        buffer.putShort((short) sequence);
+        buffer.putInt(sequence * 3000);
+        buffer.putInt(SSRC);
+        for (int i = RtpSocket.RTP_HEADER_LENGTH; i < length; i++)
+        {
+            packet[i] = (byte) (i * 7 + sequence);
+        }
+
+        return packet;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] hex(String s)
+    {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return bytes;
+    }
+}
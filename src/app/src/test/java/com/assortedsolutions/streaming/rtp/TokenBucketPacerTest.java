@@ -0,0 +1,36 @@
+package com.assortedsolutions.streaming.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketPacerTest
+{
+    private static final long FRAME_INTERVAL = 33000000L;
+    private static final int PACKET_LENGTH = 1200;
+
+    @Test
+    public void pacesTheRestOfALateFrame() throws InterruptedException
+    {
+        // The bit rate is unknown, the packets are only spread over the frame interval
+        TokenBucketPacer pacer = new TokenBucketPacer(0);
+        pacer.pace(PACKET_LENGTH, FRAME_INTERVAL, PACKET_LENGTH);
+
+        int packets = 50;
+        int frameBytes = packets * PACKET_LENGTH;
+        pacer.pace(PACKET_LENGTH, 2 * FRAME_INTERVAL, frameBytes);
+        frameBytes -= PACKET_LENGTH;
+
+        // The deadline of the frame passes before the rest of it is sent
+        Thread.sleep(FRAME_INTERVAL / 1000000);
+
+        for (int i = 1; i < packets; i++)
+        {
+            pacer.pace(PACKET_LENGTH, 2 * FRAME_INTERVAL, frameBytes);
+            frameBytes -= PACKET_LENGTH;
+        }
+
+        assertEquals(packets + 1, pacer.getPacedPackets());
+        assertTrue(pacer.getDelayedPackets() > 0);
+    }
+}